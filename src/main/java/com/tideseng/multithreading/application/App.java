@@ -1,22 +1,100 @@
 package com.tideseng.multithreading.application;
 
+import com.tideseng.multithreading.juc.FileBackingStore;
+
+import javax.management.JMException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
 public class App {
 
     private static IRequestProcessor requestProcessor;
+    // 检查点：source登记从请求日志读取的请求，SaveProcessor幂等保存，崩溃重启后从最早未确认的请求开始重放
+    private static CheckpointManager checkpoints;
+    private static OffsetTracker source;
+    private static long replayOffset;
+    private static Path journal;
 
     static {
-        // 构建责任链
-        SaveProcessor saveProcessor = new SaveProcessor();
-        PrintProcessor printProcessor = new PrintProcessor(saveProcessor);
-        PreProcessor preProcessor = new PreProcessor(printProcessor);
-        saveProcessor.start();
-        printProcessor.start();
+        Path dir = Paths.get(System.getProperty("app.dir", System.getProperty("java.io.tmpdir") + "/multithreading-app"));
+        journal = dir.resolve("requests.journal");
+        IdempotentSaveProcessor store;
+        try {
+            Files.createDirectories(dir);
+            store = new IdempotentSaveProcessor(new FileBackingStore<>(dir.resolve("store.bin"), 0), 100);
+            checkpoints = new CheckpointManager(dir.resolve("checkpoint.bin"));
+            CheckpointManager.Checkpoint checkpoint = checkpoints.load();
+            replayOffset = checkpoint == null ? 0 : checkpoint.getReplayOffset();
+            store.restore(checkpoint, "SaveProcessor", Files.exists(journal) ? Files.size(journal) : 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // 构建责任链，PrintProcessor和SaveProcessor运行时可以通过JMX或-D处理器名称.workers等系统属性调整线程数、容量、批量大小和等待策略
+        ScalableStage saveProcessor = scalable(new ScalableStage("SaveProcessor", SaveProcessor::handle, store, 1, 1000));
+        ScalableStage printProcessor = scalable(new ScalableStage("PrintProcessor", PrintProcessor::handle, saveProcessor, 1, 1000));
+        PreProcessor preProcessor = new PreProcessor(printProcessor, new FairRequestQueue()); // 多个租户共用责任链时按租户公平调度，入口只有一个出队线程
         preProcessor.start();
 
+        source = new OffsetTracker(replayOffset);
+        checkpoints.register("source", source); // 先上游后下游，检查点时先快照下游
+        checkpoints.register("SaveProcessor", store);
+        checkpoints.schedule(1, TimeUnit.SECONDS); // 同时写出未满的保存批次
+
         requestProcessor = preProcessor;
     }
 
-    public static void main(String[] args) throws InterruptedException {
+    private static ScalableStage scalable(ScalableStage stage) {
+        stage.configure(System.getProperties());
+        try {
+            stage.registerMBean();
+        } catch (JMException e) {
+            System.out.println(stage.getName() + "注册MBean失败: " + e); // 不影响处理请求，只是不能通过JMX调整
+        }
+        return stage;
+    }
+
+    /**
+     * 从检查点的偏移量开始，将请求日志中的请求交给责任链
+     * @return 全部请求完成（或失败）时完成
+     */
+    static CompletableFuture<Void> replay(Path journal) throws IOException {
+        JournalSpliterator requests = JournalSpliterator.open(journal, 0);
+        requests.skipTo(replayOffset); // 检查点之前的请求都已确认
+        List<CompletableFuture<Result>> futures = new ArrayList<>();
+        requests.forEachRemaining(request -> {
+            source.track(request);
+            futures.add(requestProcessor.processAsync(request));
+        });
+        System.out.println("从偏移量" + replayOffset + "重放" + futures.size() + "个请求");
+        return CompletableFuture.allOf(futures.stream().map(future -> future.handle((result, e) -> null)).toArray(CompletableFuture[]::new));
+    }
+
+    public static void main(String[] args) throws Exception {
+        // 异步提交，不阻塞调用线程，请求经过SaveProcessor后回调
+        requestProcessor.processAsync(new Request("佳欢-async"))
+                .thenAccept(result -> System.out.println("完成: " + result))
+                .exceptionally(e -> {
+                    System.out.println("失败: " + e);
+                    return null;
+                }).join();
+
+        // 第一次运行时生成请求日志，之后每次运行从检查点继续，已确认的请求不再重放
+        if (!Files.exists(journal))
+            JournalSpliterator.write(journal, IntStream.range(0, 100).mapToObj(i -> new Request("佳欢-" + i, 0, 0, "tenant-" + i % 3)).collect(Collectors.toList()));
+        replay(journal).get(30, TimeUnit.SECONDS);
+        checkpoints.close(); // 最后一个检查点
+        System.out.println("检查点偏移量: " + source.getWatermark() + ", 未确认: " + source.getPendingCount());
+
         Request request = new Request("佳欢");
 
         requestProcessor.shutdown(); // 关闭
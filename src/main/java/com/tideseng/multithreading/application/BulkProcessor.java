@@ -0,0 +1,177 @@
+package com.tideseng.multithreading.application;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 批量模式，用于回填大量历史请求
+ * 背景：
+ *      责任链的每个处理器只有一个线程，请求逐个经过三个线程，回填速度受限于最慢的处理器，与CPU核数无关
+ * 原理：
+ *      数据源是可拆分的Spliterator（集合或JournalSpliterator），ForkJoin任务按trySplit()递归拆分，直到分区大小不超过阈值
+ *      每个分区在一个工作线程中顺序执行所有处理器的逻辑(stages)，请求不需要在线程之间传递，没有队列和线程切换
+ *      处理完的请求在分区内攒成批次交给sink（如批量写库），sink每次收到batchSize个请求
+ *      分区数量由数据源大小和并行度决定，空闲的工作线程会窃取其它线程的子任务，处理时间随核数线性下降
+ * 说明：
+ *      批量模式不保证请求之间的顺序，需要按顺序处理的请求仍然使用责任链
+ */
+public class BulkProcessor {
+
+    private final List<Consumer<Request>> stages;
+    private final Consumer<List<Request>> sink;
+    private final int batchSize;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param stages 依次执行的处理逻辑
+     * @param sink 批量接收处理完的请求，会被多个线程并发调用
+     */
+    public BulkProcessor(List<Consumer<Request>> stages, Consumer<List<Request>> sink, int batchSize, ForkJoinPool pool) {
+        this.stages = new ArrayList<>(stages);
+        this.sink = sink;
+        this.batchSize = batchSize;
+        this.pool = pool;
+    }
+
+    /**
+     * 与App中责任链相同的处理逻辑：PreProcessor -> PrintProcessor -> SaveProcessor
+     */
+    public static BulkProcessor ofChain(int batchSize, ForkJoinPool pool) {
+        return new BulkProcessor(Arrays.asList(PreProcessor::handle, PrintProcessor::handle),
+                batch -> batch.forEach(SaveProcessor::handle), batchSize, pool);
+    }
+
+    /**
+     * 处理数据源中的全部请求
+     * @return 处理成功的请求数量，处理逻辑或批量写入失败的请求以异常完成
+     */
+    public long process(Spliterator<Request> source) {
+        long threshold = Math.max(batchSize, source.estimateSize() / (pool.getParallelism() * 4L)); // 每个线程约4个分区，便于任务窃取
+        return pool.invoke(new Partition(source, threshold));
+    }
+
+    /**
+     * 以并行流的方式处理，适合不需要批量sink的场景
+     * @return 处理成功的请求数量，失败的请求以异常完成
+     */
+    public long processStream(Spliterator<Request> source) {
+        return pool.submit(() -> StreamSupport.stream(source, true).mapToLong(request -> { // 在指定的线程池中执行并行流
+            try {
+                for (Consumer<Request> stage : stages) stage.accept(request);
+                request.complete("BulkProcessor");
+                return 1;
+            } catch (RuntimeException e) { // 与processLocal()一致，单个请求失败不影响其它请求
+                request.fail(e);
+                return 0;
+            }
+        }).sum()).join();
+    }
+
+    class Partition extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Spliterator<Request> source;
+        private final long threshold;
+
+        Partition(Spliterator<Request> source, long threshold) {
+            this.source = source;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Long compute() {
+            Spliterator<Request> split;
+            List<Partition> forked = new ArrayList<>();
+            while (source.estimateSize() > threshold && (split = source.trySplit()) != null) { // 拆出前一半交给其它线程
+                Partition partition = new Partition(split, threshold);
+                partition.fork();
+                forked.add(partition);
+            }
+            long count = processLocal();
+            for (Partition partition : forked) count += partition.join();
+            return count;
+        }
+
+        private long processLocal() {
+            List<Request> batch = new ArrayList<>(batchSize);
+            long[] count = new long[1];
+            source.forEachRemaining(request -> {
+                try {
+                    for (Consumer<Request> stage : stages) stage.accept(request);
+                    batch.add(request);
+                } catch (RuntimeException e) {
+                    request.fail(e);
+                }
+                if (batch.size() == batchSize) count[0] += flush(batch);
+            });
+            return count[0] + flush(batch);
+        }
+
+        private int flush(List<Request> batch) {
+            if (batch.isEmpty()) return 0;
+            int size = batch.size();
+            try {
+                sink.accept(batch);
+                for (Request request : batch) request.complete("BulkProcessor");
+            } catch (RuntimeException e) {
+                for (Request request : batch) request.fail(e);
+                size = 0; // 与processStream()一样，失败的请求不计入处理数量
+            } finally {
+                batch.clear();
+            }
+            return size;
+        }
+    }
+
+    /**
+     * 将请求写入日志文件，分别用1个线程和全部CPU回填，对比耗时
+     *      处理逻辑模拟CPU密集的校验，不打印每个请求
+     */
+    public static void main(String[] args) throws Exception {
+        Path journal = Files.createTempFile("requests", ".journal");
+        int n = 1_000_000;
+        JournalSpliterator.write(journal, () -> IntStream.range(0, n).mapToObj(i -> new Request("佳欢-" + i, i % 10, 0)).iterator());
+        System.out.println("日志大小: " + Files.size(journal) / 1024 + "KB");
+
+        Consumer<Request> validate = request -> { // 模拟CPU密集的处理逻辑
+            int h = 0;
+            for (int i = 0; i < 20; i++) h = 31 * h + request.getName().hashCode() + i;
+            if (h == 42) System.out.println(h);
+        };
+        LongAdder saved = new LongAdder();
+        Consumer<List<Request>> sink = batch -> saved.add(batch.size()); // 模拟批量写库
+
+        for (int parallelism : new int[]{1, Runtime.getRuntime().availableProcessors()}) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            BulkProcessor processor = new BulkProcessor(Arrays.asList(validate), sink, 1000, pool);
+            for (int round = 0; round < 3; round++) {
+                saved.reset();
+                long start = System.nanoTime();
+                long processed = processor.process(JournalSpliterator.open(journal, 0));
+                System.out.println("并行度" + parallelism + ": 处理" + processed + "个请求, 写入" + saved.sum() + "个, 耗时: "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            }
+            pool.shutdown();
+        }
+
+        List<Request> requests = IntStream.range(0, 3).mapToObj(i -> new Request("佳欢" + i)).collect(Collectors.toList());
+        ForkJoinPool pool = new ForkJoinPool(2);
+        System.out.println("责任链逻辑处理: " + BulkProcessor.ofChain(2, pool).process(requests.spliterator())); // ArrayList的Spliterator同样是SIZED|SUBSIZED
+        pool.shutdown();
+        Files.deleteIfExists(journal);
+    }
+
+}
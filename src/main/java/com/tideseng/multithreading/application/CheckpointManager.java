@@ -0,0 +1,225 @@
+package com.tideseng.multithreading.application;
+
+import com.tideseng.multithreading.log.Logger;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 处理器偏移量的检查点，崩溃后从检查点重放请求日志，不需要从头处理
+ * 原理：
+ *      每个处理器注册为参与者，检查点时由参与者在自己的锁内写出状态并返回偏移量，两者一致
+ *      偏移量是请求日志中的位置，该位置之前的请求都已确认（见OffsetTracker），请求乱序完成时偏移量停在最早未确认的请求
+ *      按注册的逆序依次快照（先下游后上游），上游（读取请求日志的一方）登记所有已读取的请求，在途的请求不会被越过
+ *      全部参与者的快照写入临时文件并fsync，再原子替换检查点文件，进程崩溃时只会看到完整的旧检查点或新检查点
+ *      文件末尾带CRC32，读取时校验，损坏的检查点被忽略
+ * 说明：
+ *      重放从所有处理器中最小的偏移量开始，每个处理器跳过自己偏移量之前的请求；有副作用的处理器需要幂等（见IdempotentSaveProcessor）
+ */
+public class CheckpointManager implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(CheckpointManager.class);
+    private static final int MAGIC = 0x43484B50; // "CHKP"
+
+    /**
+     * 参与检查点的处理器
+     */
+    public interface Participant {
+
+        /**
+         * 写出状态并返回与状态一致的偏移量：请求日志中的位置，该位置之前的请求都已确认
+         */
+        long snapshot(DataOutputStream out) throws IOException;
+
+    }
+
+    private final Path file;
+    private final Map<String, Participant> participants = new LinkedHashMap<>(); // 由this保护
+    private long nextId;
+    private ScheduledExecutorService scheduler;
+
+    public CheckpointManager(Path file) {
+        this.file = file;
+        Checkpoint last = load();
+        this.nextId = last == null ? 1 : last.getId() + 1;
+    }
+
+    public synchronized void register(String stage, Participant participant) {
+        participants.put(stage, participant);
+    }
+
+    /**
+     * 定期生成检查点
+     */
+    public synchronized void schedule(long interval, TimeUnit unit) {
+        if (scheduler != null) throw new IllegalStateException("已经启动");
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("检查点失败", e); // 下一个周期重试，上一个检查点仍然有效
+            }
+        }, interval, interval, unit);
+    }
+
+    /**
+     * 立即生成检查点
+     */
+    public synchronized Checkpoint checkpoint() throws IOException {
+        List<String> stages = new ArrayList<>(participants.keySet());
+        Collections.reverse(stages); // 先下游后上游
+        Map<String, Long> offsets = new LinkedHashMap<>();
+        Map<String, byte[]> states = new LinkedHashMap<>();
+        for (String stage : stages) {
+            ByteArrayOutputStream state = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(state)) {
+                offsets.put(stage, participants.get(stage).snapshot(out));
+            }
+            states.put(stage, state.toByteArray());
+        }
+        Checkpoint checkpoint = new Checkpoint(nextId++, System.currentTimeMillis(), offsets, states);
+        write(checkpoint);
+        return checkpoint;
+    }
+
+    private void write(Checkpoint checkpoint) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeLong(checkpoint.id);
+            out.writeLong(checkpoint.timestamp);
+            out.writeInt(checkpoint.offsets.size());
+            for (Map.Entry<String, Long> entry : checkpoint.offsets.entrySet()) {
+                byte[] state = checkpoint.states.get(entry.getKey());
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+                out.writeInt(state.length);
+                out.write(state);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        new DataOutputStream(bytes).writeLong(crc.getValue());
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            bytes.writeTo(out);
+        }
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true); // 替换前落盘，避免替换后的文件内容还在页缓存中
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 读取最近的检查点，不存在或已损坏时返回null
+     */
+    public Checkpoint load() {
+        if (!Files.exists(file)) return null;
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            if (bytes.length < 8) return null;
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 8);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            in.skipBytes(bytes.length - 8);
+            if (in.readLong() != crc.getValue()) {
+                LOGGER.warn("检查点已损坏: {}", file);
+                return null;
+            }
+            in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+            if (in.readInt() != MAGIC) return null;
+            long id = in.readLong();
+            long timestamp = in.readLong();
+            int count = in.readInt();
+            Map<String, Long> offsets = new LinkedHashMap<>();
+            Map<String, byte[]> states = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                String stage = in.readUTF();
+                offsets.put(stage, in.readLong());
+                byte[] state = new byte[in.readInt()];
+                in.readFully(state);
+                states.put(stage, state);
+            }
+            return new Checkpoint(id, timestamp, offsets, states);
+        } catch (IOException e) {
+            LOGGER.warn("读取检查点失败: {}", e);
+            return null;
+        }
+    }
+
+    /**
+     * 停止定期检查点并生成最后一个检查点
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (scheduler != null) scheduler.shutdownNow();
+        }
+        checkpoint();
+    }
+
+    public static class Checkpoint {
+        private final long id;
+        private final long timestamp;
+        private final Map<String, Long> offsets;
+        private final Map<String, byte[]> states;
+
+        Checkpoint(long id, long timestamp, Map<String, Long> offsets, Map<String, byte[]> states) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.offsets = Collections.unmodifiableMap(offsets);
+            this.states = states;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * 处理器的偏移量，没有该处理器时返回0
+         */
+        public long getOffset(String stage) {
+            return offsets.getOrDefault(stage, 0L);
+        }
+
+        /**
+         * 所有处理器中最小的偏移量，即重放的起点
+         */
+        public long getReplayOffset() {
+            return offsets.isEmpty() ? 0 : Collections.min(offsets.values());
+        }
+
+        /**
+         * 处理器的状态，没有该处理器时返回null
+         */
+        public DataInputStream getState(String stage) {
+            byte[] state = states.get(stage);
+            return state == null ? null : new DataInputStream(new ByteArrayInputStream(state));
+        }
+
+        @Override
+        public String toString() {
+            return "Checkpoint{id=" + id + ", offsets=" + offsets + '}';
+        }
+    }
+
+}
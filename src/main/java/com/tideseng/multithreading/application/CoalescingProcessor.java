@@ -0,0 +1,156 @@
+package com.tideseng.multithreading.application;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 责任链之请求合并（去重）
+ *      突发流量下大量相同的请求(name相同)会逐个经过每个处理器，合并后只有一个请求交给下游，下游工作量按重复率减少
+ * 原理：
+ *      同一个key的第一个请求作为leader，在时间窗口结束或合并数量达到上限时交给下一个责任链
+ *      leader处理完成之前到达的相同请求作为follower挂在leader上，不再交给下游（包括leader已经分发、正在下游处理的情况）
+ *      leader完成后将同一个结果通知所有follower，失败时所有follower一起失败，然后移除该key，之后的请求重新开始合并
+ *      可以插入到责任链的任意位置
+ */
+public class CoalescingProcessor implements IRequestProcessor {
+
+    // 下一个处理器
+    private final IRequestProcessor nextProcessor;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final Function<Request, Object> keyFunction;
+    private final ConcurrentMap<Object, Group> inFlight = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "coalescing-window");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder coalesced = new LongAdder();
+
+    public CoalescingProcessor(IRequestProcessor nextProcessor) {
+        this(nextProcessor, 10, 1000, Request::getName);
+    }
+
+    /**
+     * @param windowMillis 合并时间窗口，0表示不等待，只合并leader处理期间到达的请求
+     * @param maxBatchSize 合并数量达到上限时立即分发leader
+     * @param keyFunction 判断请求是否重复的key
+     */
+    public CoalescingProcessor(IRequestProcessor nextProcessor, long windowMillis, int maxBatchSize, Function<Request, Object> keyFunction) {
+        this.nextProcessor = nextProcessor;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.keyFunction = keyFunction;
+    }
+
+    @Override
+    public void process(Request request) {
+        Object key;
+        try {
+            key = keyFunction.apply(request);
+        } catch (RuntimeException e) {
+            request.fail(e);
+            return;
+        }
+        while (true) {
+            Group group = inFlight.get(key);
+            if (group == null) {
+                Group created = new Group(key, request);
+                if (inFlight.putIfAbsent(key, created) == null) {
+                    created.start();
+                    return;
+                }
+            } else if (group.join(request)) {
+                coalesced.increment();
+                return;
+            }
+            // leader已完成、组已关闭，重新创建
+        }
+    }
+
+    /**
+     * 被合并（没有交给下游）的请求数量
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    @Override
+    public void shutdown() {
+        scheduler.shutdown();
+        if (nextProcessor != null) nextProcessor.shutdown();
+    }
+
+    class Group {
+        private final Object key;
+        private final Request leader;
+        private final List<Request> followers = new ArrayList<>(); // 由this保护
+        private boolean dispatched; // 由this保护
+        private boolean closed; // 由this保护
+
+        Group(Object key, Request leader) {
+            this.key = key;
+            this.leader = leader;
+        }
+
+        void start() {
+            leader.getFuture().whenComplete((result, e) -> complete(result, e));
+            if (windowMillis <= 0 || maxBatchSize <= 1) dispatch();
+            else scheduler.schedule(this::dispatch, windowMillis, TimeUnit.MILLISECONDS);
+        }
+
+        boolean join(Request request) {
+            boolean full;
+            synchronized (this) {
+                if (closed) return false;
+                followers.add(request);
+                full = !dispatched && followers.size() + 1 >= maxBatchSize;
+            }
+            if (full) dispatch(); // 达到合并上限，不再等待时间窗口
+            return true;
+        }
+
+        void dispatch() {
+            synchronized (this) {
+                if (dispatched) return;
+                dispatched = true;
+            }
+            try {
+                if (nextProcessor != null) nextProcessor.process(leader);
+                else leader.complete("CoalescingProcessor");
+            } catch (RuntimeException e) {
+                leader.fail(e);
+            }
+        }
+
+        private void complete(Result result, Throwable e) {
+            List<Request> waiters;
+            synchronized (this) {
+                closed = true;
+                waiters = new ArrayList<>(followers);
+            }
+            inFlight.remove(key, this);
+            for (Request follower : waiters) { // 同一个结果扇出给所有等待者
+                if (e != null) follower.fail(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                else follower.complete(result.getProcessor());
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        SaveProcessor saveProcessor = new SaveProcessor();
+        saveProcessor.start();
+        CoalescingProcessor coalescingProcessor = new CoalescingProcessor(saveProcessor, 50, 100, Request::getName);
+
+        List<CompletableFuture<Result>> futures = new ArrayList<>();
+        for (int i = 0; i < 30; i++) // 30个请求，只有3个不同的name
+            futures.add(coalescingProcessor.processAsync(new Request("佳欢" + i % 3)));
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        System.out.println("完成: " + futures.size() + ", 合并: " + coalescingProcessor.getCoalescedCount());
+        coalescingProcessor.shutdown();
+        System.exit(0); // 处理器线程阻塞在take()上，直接退出
+    }
+}
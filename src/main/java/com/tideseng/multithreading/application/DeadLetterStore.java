@@ -0,0 +1,99 @@
+package com.tideseng.multithreading.application;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * 有界死信存储，保存重试耗尽的毒请求，供排查和重放
+ *      超过容量时丢弃最早的死信，避免持续失败时内存无限增长
+ *      毒请求进入死信后不再占用处理器线程和重试资源，其它请求的吞吐不受影响
+ */
+public class DeadLetterStore {
+
+    private final int capacity;
+    private final Deque<DeadLetter> letters = new ArrayDeque<>(); // 由this保护
+    private long evicted; // 由this保护
+
+    public DeadLetterStore(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException();
+        this.capacity = capacity;
+    }
+
+    public synchronized void add(Request request, Throwable cause, int attempts) {
+        if (letters.size() == capacity) {
+            letters.pollFirst();
+            evicted++;
+        }
+        letters.addLast(new DeadLetter(request, cause, attempts));
+    }
+
+    /**
+     * 按进入顺序返回快照
+     */
+    public synchronized List<DeadLetter> snapshot() {
+        return new ArrayList<>(letters);
+    }
+
+    /**
+     * 取出全部死信重新提交，如修复下游后重放
+     *      请求的future已经以异常完成，重放的结果只体现在下游的处理中
+     * @return 重放的数量
+     */
+    public int replay(IRequestProcessor processor) {
+        List<DeadLetter> toReplay;
+        synchronized (this) {
+            toReplay = new ArrayList<>(letters);
+            letters.clear();
+        }
+        for (DeadLetter letter : toReplay) processor.process(letter.getRequest()); // 在锁外提交，避免阻塞add()
+        return toReplay.size();
+    }
+
+    public synchronized int size() {
+        return letters.size();
+    }
+
+    /**
+     * 因超过容量被丢弃的死信数量
+     */
+    public synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    public static class DeadLetter {
+        private final Request request;
+        private final Throwable cause;
+        private final int attempts;
+        private final long timestamp = System.currentTimeMillis();
+
+        DeadLetter(Request request, Throwable cause, int attempts) {
+            this.request = request;
+            this.cause = cause;
+            this.attempts = attempts;
+        }
+
+        public Request getRequest() {
+            return request;
+        }
+
+        public Throwable getCause() {
+            return cause;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return "DeadLetter{request=" + request + ", attempts=" + attempts + ", cause=" + cause + "}";
+        }
+    }
+
+}
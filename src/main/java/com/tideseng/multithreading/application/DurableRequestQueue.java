@@ -0,0 +1,449 @@
+package com.tideseng.multithreading.application;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * 基于预写日志(WAL)的持久化阻塞队列，进程崩溃重启后可以恢复未处理的请求
+ * 结构：
+ *      日志按固定大小分段，每段是一个内存映射文件，文件名为段序号
+ *      每条记录为[int crc][RequestCodec编码的帧]，段中剩余空间不足时写入长度0作为段结束标记并切换到下一段
+ *      全局偏移量 = 段序号 * 段大小 + 段内位置
+ *      consumer.offset文件记录已确认(ack)的消费偏移量，每个处理器使用自己的队列目录，即每个处理器有独立的消费偏移量
+ * 确认：
+ *      每个队列只有一个消费线程，take()/poll()取下一条时自动确认上一条（上一条已经交给下一个责任链）
+ *      也可以调用ack()立即确认已经取出的全部记录
+ * 持久化：
+ *      写入和确认都只修改映射内存，每syncEvery次写入或调用sync()时统一force()到磁盘，批量刷盘使吞吐量接近内存队列
+ *      崩溃时可能丢失最后一批未刷盘的数据（由操作系统决定是否已写回），syncEvery为1时每条记录都刷盘
+ * 恢复：
+ *      启动时从确认偏移量开始扫描并校验crc，遇到长度非法或校验失败的记录即为日志末尾，未确认的记录会重新交给消费者
+ *      已确认偏移量之前的段会被删除
+ * 请求对象：
+ *      运行期间写入的请求在取出时返回原来的对象（按记录位置保存在内存中），调用方通过它的future得到结果
+ *      只有恢复的记录从日志解码，生成新的请求，原来的调用方已经不存在
+ */
+public class DurableRequestQueue extends AbstractQueue<Request> implements BlockingQueue<Request>, Closeable {
+
+    private static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+    private static final int DEFAULT_SYNC_EVERY = 4096;
+    private static final String SEGMENT_SUFFIX = ".log";
+    static final int RECORD_HEADER = 4; // crc
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int syncEvery;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final CRC32 crc = new CRC32(); // 由lock保护
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>(); // 段序号 -> 映射内存
+    private final MappedByteBuffer offsetFile;
+    private final Map<Long, Request> live = new HashMap<>(); // 记录位置 -> 运行期间写入、未取出的请求，由lock保护
+
+    // 以下字段由lock保护
+    private long writeOffset; // 下一条记录的写入位置
+    private long readOffset; // 下一条记录的读取位置
+    private long lastTaken = -1; // 最后取出但未确认的记录位置
+    private long committedOffset; // 已确认的偏移量
+    private int count; // 未取出的记录数
+    private int unsynced;
+    private boolean closed;
+
+    public DurableRequestQueue(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_EVERY);
+    }
+
+    /**
+     * @param segmentSize 段大小
+     * @param syncEvery 每写入多少条记录刷一次盘
+     */
+    public DurableRequestQueue(Path directory, int segmentSize, int syncEvery) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.syncEvery = Math.max(1, syncEvery);
+        this.offsetFile = map(directory.resolve("consumer.offset"), 8);
+        this.committedOffset = offsetFile.getLong(0);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                ids.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(ids);
+        long committedSegment = committedOffset / segmentSize;
+        for (long id : ids) {
+            if (id < committedSegment) Files.delete(segmentPath(id)); // 已全部确认
+            else segments.put(id, map(segmentPath(id), segmentSize));
+        }
+        if (segments.isEmpty()) segments.put(committedSegment, map(segmentPath(committedSegment), segmentSize));
+
+        // 从确认偏移量开始扫描，找到日志末尾并统计未确认的记录数
+        readOffset = Math.max(committedOffset, segments.firstKey() * segmentSize);
+        long offset = readOffset;
+        while (true) {
+            int length = validRecordLength(offset);
+            if (length > 0) {
+                offset += length;
+                count++;
+            } else if (length == 0 && segments.containsKey(offset / segmentSize + 1)) {
+                offset = (offset / segmentSize + 1) * segmentSize; // 段结束标记，继续扫描下一段
+            } else {
+                break;
+            }
+        }
+        writeOffset = offset;
+        for (Long id : new ArrayList<>(segments.tailMap(writeOffset / segmentSize, false).keySet()))
+            Files.delete(segmentPath(id)); // 日志末尾之后的段是无效数据
+        segments.tailMap(writeOffset / segmentSize, false).clear();
+    }
+
+    /**
+     * 校验offset处的记录，返回记录长度，0表示段结束，-1表示无效记录
+     */
+    private int validRecordLength(long offset) {
+        MappedByteBuffer segment = segments.get(offset / segmentSize);
+        int position = (int) (offset % segmentSize);
+        if (segment == null || position + RECORD_HEADER + 4 > segmentSize) return 0;
+        int frameLength = segment.getInt(position + RECORD_HEADER);
+        if (frameLength == 0) return 0;
+        int length = RECORD_HEADER + 4 + frameLength;
+        if (frameLength < 0 || position + length > segmentSize) return -1;
+        ByteBuffer frame = segment.duplicate();
+        frame.limit(position + length).position(position + RECORD_HEADER);
+        crc.reset();
+        crc.update(frame);
+        return (int) crc.getValue() == segment.getInt(position) ? length : -1;
+    }
+
+    @Override
+    public boolean offer(Request request) {
+        int length = RECORD_HEADER + RequestCodec.encodedLength(request);
+        if (length > segmentSize) throw new IllegalArgumentException("Request is larger than a segment");
+        lock.lock();
+        try {
+            if (closed) throw new IllegalStateException("Queue closed");
+            int position = (int) (writeOffset % segmentSize);
+            if (position + length > segmentSize) { // 当前段空间不足，写入结束标记并切换到下一段
+                if (position + RECORD_HEADER + 4 <= segmentSize) segment(writeOffset).putInt(position + RECORD_HEADER, 0);
+                writeOffset = (writeOffset / segmentSize + 1) * segmentSize;
+                position = 0;
+            }
+            MappedByteBuffer segment = segment(writeOffset);
+            ByteBuffer target = segment.duplicate();
+            target.position(position + RECORD_HEADER);
+            RequestCodec.encode(request, target); // 直接编码到映射内存
+            ByteBuffer frame = segment.duplicate();
+            frame.limit(position + length).position(position + RECORD_HEADER);
+            crc.reset();
+            crc.update(frame);
+            segment.putInt(position, (int) crc.getValue()); // 最后写入crc，崩溃时半条记录校验失败
+            live.put(writeOffset, request);
+            writeOffset += length;
+            count++;
+            if (++unsynced >= syncEvery) sync();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Request request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(Request request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public Request poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Request take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) notEmpty.await();
+            return dequeue(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Request poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param take 是否取出，peek()和iterator()读取后会恢复读取位置，运行期间写入的请求需要留在内存中
+     */
+    private Request dequeue(boolean take) {
+        if (lastTaken >= 0) commit(lastTaken); // 取下一条时确认上一条
+        int position = (int) (readOffset % segmentSize);
+        MappedByteBuffer segment = segments.get(readOffset / segmentSize);
+        if (segment == null || position + RECORD_HEADER + 4 > segmentSize || segment.getInt(position + RECORD_HEADER) == 0) { // 段结束标记
+            readOffset = (readOffset / segmentSize + 1) * segmentSize;
+            position = 0;
+            segment = segments.get(readOffset / segmentSize);
+        }
+        Request request = take ? live.remove(readOffset) : live.get(readOffset);
+        if (request != null) {
+            readOffset += RECORD_HEADER + 4 + segment.getInt(position + RECORD_HEADER);
+        } else { // 恢复的记录，恢复时已经校验过crc，不需要再次校验
+            ByteBuffer frame = segment.duplicate();
+            frame.position(position + RECORD_HEADER);
+            request = RequestCodec.decode(frame, readOffset); // 记录的全局偏移量作为请求的位置
+            readOffset += frame.position() - position;
+        }
+        lastTaken = readOffset;
+        count--;
+        return request;
+    }
+
+    /**
+     * 确认已取出的全部记录
+     */
+    public void ack() {
+        lock.lock();
+        try {
+            if (lastTaken >= 0) commit(lastTaken);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void commit(long offset) {
+        lastTaken = -1;
+        if (offset <= committedOffset) return;
+        long oldSegment = committedOffset / segmentSize;
+        committedOffset = offset;
+        offsetFile.putLong(0, offset);
+        for (long id = oldSegment; id < offset / segmentSize; id++) { // 删除已全部确认的段
+            if (segments.remove(id) != null) {
+                try {
+                    Files.deleteIfExists(segmentPath(id));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 将日志和消费偏移量刷到磁盘
+     */
+    public void sync() {
+        lock.lock();
+        try {
+            MappedByteBuffer current = segments.get(writeOffset / segmentSize);
+            if (current != null) current.force();
+            offsetFile.force();
+            unsynced = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCommittedOffset() {
+        lock.lock();
+        try {
+            return committedOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private MappedByteBuffer segment(long offset) {
+        long id = offset / segmentSize;
+        MappedByteBuffer segment = segments.get(id);
+        if (segment == null) {
+            if (unsynced > 0 && !segments.isEmpty()) segments.lastEntry().getValue().force(); // 切换前刷新上一段
+            try {
+                segment = map(segmentPath(id), segmentSize);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            segments.put(id, segment);
+        }
+        return segment;
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size); // 关闭channel后映射仍然有效
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Request peek() {
+        lock.lock();
+        try {
+            if (count == 0) return null;
+            long saved = readOffset, savedTaken = lastTaken;
+            lastTaken = -1;
+            int savedCount = count;
+            try {
+                return dequeue(false);
+            } finally {
+                readOffset = saved;
+                lastTaken = savedTaken;
+                count = savedCount;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request> c, int maxElements) {
+        if (c == this) throw new IllegalArgumentException();
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && count > 0) {
+                c.add(dequeue(true));
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 返回未取出记录的快照
+     */
+    @Override
+    public Iterator<Request> iterator() {
+        lock.lock();
+        try {
+            List<Request> snapshot = new ArrayList<>(count);
+            long saved = readOffset, savedTaken = lastTaken;
+            int savedCount = count;
+            lastTaken = -1;
+            try {
+                while (count > 0) {
+                    snapshot.add(dequeue(false));
+                    lastTaken = -1;
+                }
+            } finally {
+                readOffset = saved;
+                lastTaken = savedTaken;
+                count = savedCount;
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) return;
+            sync();
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("wal");
+        int n = 200_000;
+
+        DurableRequestQueue queue = new DurableRequestQueue(directory);
+        for (int i = 0; i < 5; i++) queue.put(new Request("佳欢" + i));
+        System.out.println("取出: " + queue.take() + ", " + queue.take()); // 只确认了第一条
+        queue.close();
+
+        queue = new DurableRequestQueue(directory); // 模拟重启
+        System.out.println("重启后未确认的记录数: " + queue.size() + ", 第一条: " + queue.peek());
+        queue.drainTo(new ArrayList<>());
+        queue.ack();
+
+        for (int round = 0; round < 3; round++) { // 前几轮用于JIT预热
+            System.out.println("第" + (round + 1) + "轮 DurableRequestQueue: " + benchmark(queue, n) + "ms, "
+                    + "LinkedBlockingQueue: " + benchmark(new LinkedBlockingQueue<>(), n) + "ms");
+        }
+        queue.close();
+    }
+
+    private static long benchmark(BlockingQueue<Request> queue, int n) throws InterruptedException {
+        long start = System.nanoTime();
+        Thread consumer = new Thread(() -> {
+            try {
+                for (int i = 0; i < n; i++) queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < n; i++) queue.put(new Request("佳欢" + i));
+        consumer.join();
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+}
@@ -0,0 +1,512 @@
+package com.tideseng.multithreading.application;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 多租户公平调度的阻塞队列，替换PreProcessor中所有生产者共用的LinkedBlockingQueue
+ * 背景：
+ *      多个上游服务共用一条责任链，某个租户突发大量请求时占满先进先出的队列，其它租户的请求都排在它后面，延迟被拉高
+ * 原理（加权差额轮询，Deficit Round Robin）：
+ *      每个租户有自己的子队列，有积压的租户按到达顺序排成一个环
+ *      轮到某个租户时其额度(deficit)增加weight，每出队一个请求消耗1个额度，额度用完后轮到下一个租户
+ *      出队顺序按额度在租户之间交替，每轮各租户最多出队weight个请求，与各自积压了多少请求无关
+ *      重载租户的请求只在自己的子队列中排队，其它租户的请求最多等待一轮
+ * 说明：
+ *      每个租户有入队配额（最大积压数量），超过配额时offer()返回false，put()只阻塞该租户的生产者
+ *      出队时丢弃已过期的请求，以TimeoutException异常完成
+ *      按租户统计入队、出队、拒绝、过期数量和排队时间，通过getStats()获取
+ */
+public class FairRequestQueue extends AbstractQueue<Request> implements BlockingQueue<Request> {
+
+    /**
+     * 没有指定租户的请求所属的租户
+     */
+    public static final String DEFAULT_TENANT = "default";
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Map<String, Tenant> tenants = new HashMap<>(); // 由lock保护
+    private final Deque<Tenant> active = new ArrayDeque<>(); // 有积压的租户，队首为当前轮到的租户
+    private final Map<String, Integer> weights = new ConcurrentHashMap<>();
+    private final Map<String, Integer> quotas = new ConcurrentHashMap<>();
+    private final int defaultQuota;
+    private int count;
+
+    public FairRequestQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param defaultQuota 每个租户默认的最大积压数量
+     */
+    public FairRequestQueue(int defaultQuota) {
+        this.defaultQuota = defaultQuota;
+    }
+
+    /**
+     * 设置租户的权重，每轮最多出队weight个请求，默认为1
+     */
+    public FairRequestQueue weight(String tenant, int weight) {
+        if (weight < 1) throw new IllegalArgumentException("weight: " + weight);
+        weights.put(tenant, weight);
+        lock.lock();
+        try {
+            Tenant t = tenants.get(tenant);
+            if (t != null) t.weight = weight;
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * 设置租户的最大积压数量
+     */
+    public FairRequestQueue quota(String tenant, int quota) {
+        quotas.put(tenant, quota);
+        lock.lock();
+        try {
+            Tenant t = tenants.get(tenant);
+            if (t != null) {
+                t.quota = quota;
+                t.notFull.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    @Override
+    public boolean offer(Request request) {
+        lock.lock();
+        try {
+            Tenant tenant = tenant(request);
+            if (tenant.queue.size() >= tenant.quota) {
+                tenant.rejected++;
+                return false;
+            }
+            enqueue(tenant, request);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Request request) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Tenant tenant = tenant(request);
+            while (tenant.queue.size() >= tenant.quota) tenant.notFull.await(); // 只阻塞超过配额的租户
+            enqueue(tenant, request);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Request request, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Tenant tenant = tenant(request);
+            while (tenant.queue.size() >= tenant.quota) {
+                if (nanos <= 0) {
+                    tenant.rejected++;
+                    return false;
+                }
+                nanos = tenant.notFull.awaitNanos(nanos);
+            }
+            enqueue(tenant, request);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Request take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Request request;
+            while ((request = dequeue()) == null) notEmpty.await();
+            return request;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Request poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Request request;
+            while ((request = dequeue()) == null) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return request;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Request poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Request peek() {
+        lock.lock();
+        try {
+            Tenant tenant = active.peekFirst();
+            return tenant == null ? null : tenant.queue.peekFirst().request;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Tenant tenant(Request request) {
+        String name = request.getTenant() == null ? DEFAULT_TENANT : request.getTenant();
+        Tenant tenant = tenants.get(name);
+        if (tenant == null) {
+            tenant = new Tenant(name, weights.getOrDefault(name, 1), quotas.getOrDefault(name, defaultQuota), lock.newCondition());
+            tenants.put(name, tenant);
+        }
+        return tenant;
+    }
+
+    private void enqueue(Tenant tenant, Request request) {
+        tenant.queue.addLast(new Entry(request, System.nanoTime()));
+        tenant.enqueued++;
+        if (tenant.queue.size() == 1) { // 开始积压，加入轮询环的末尾
+            tenant.deficit = tenant.weight;
+            active.addLast(tenant);
+        }
+        count++;
+        notEmpty.signal();
+    }
+
+    /**
+     * 按差额轮询出队，过期的请求直接失败
+     */
+    private Request dequeue() {
+        while (true) {
+            Tenant tenant = active.peekFirst();
+            if (tenant == null) return null;
+            if (tenant.deficit <= 0) { // 本轮额度用完，轮到下一个租户
+                active.pollFirst();
+                tenant.deficit = tenant.weight;
+                active.addLast(tenant);
+                continue;
+            }
+            Entry entry = tenant.queue.pollFirst();
+            count--;
+            if (tenant.queue.isEmpty()) {
+                active.pollFirst(); // 没有积压，退出轮询环，不保留剩余额度
+                tenant.deficit = 0;
+            }
+            tenant.notFull.signal();
+            Request request = entry.request;
+            if (request.isExpired(System.currentTimeMillis())) {
+                tenant.expired++;
+                request.fail(new TimeoutException("Deadline exceeded: " + request));
+                continue;
+            }
+            tenant.deficit--;
+            tenant.dequeued++;
+            long wait = System.nanoTime() - entry.enqueuedNanos;
+            tenant.totalWaitNanos += wait;
+            tenant.maxWaitNanos = Math.max(tenant.maxWaitNanos, wait);
+            return request;
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 容量按租户配额限制，队列整体没有容量限制
+     */
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request> c, int maxElements) {
+        if (c == this) throw new IllegalArgumentException();
+        lock.lock();
+        try {
+            int n = 0;
+            Request request;
+            while (n < maxElements && (request = dequeue()) != null) {
+                c.add(request);
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从所属租户的子队列中移除请求（按引用比较），子队列变空时租户退出轮询环
+     */
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Request)) return false;
+        Request request = (Request) o;
+        lock.lock();
+        try {
+            Tenant tenant = tenants.get(request.getTenant() == null ? DEFAULT_TENANT : request.getTenant());
+            if (tenant == null) return false;
+            for (Iterator<Entry> it = tenant.queue.iterator(); it.hasNext(); ) {
+                if (it.next().request != request) continue;
+                it.remove();
+                count--;
+                if (tenant.queue.isEmpty()) { // 与出队一样退出轮询环，不保留剩余额度
+                    active.remove(tenant);
+                    tenant.deficit = 0;
+                }
+                tenant.notFull.signal();
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 按租户返回积压请求的快照，不代表出队顺序
+     * 迭代器的remove()从队列中移除当前请求（见remove(Object)），removeAll()/retainAll()可以正常使用
+     */
+    @Override
+    public Iterator<Request> iterator() {
+        List<Request> snapshot;
+        lock.lock();
+        try {
+            snapshot = new ArrayList<>(count);
+            for (Tenant tenant : active)
+                for (Entry entry : tenant.queue) snapshot.add(entry.request);
+        } finally {
+            lock.unlock();
+        }
+        Iterator<Request> it = snapshot.iterator();
+        return new Iterator<Request>() {
+            private Request last;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Request next() {
+                return last = it.next();
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) throw new IllegalStateException();
+                FairRequestQueue.this.remove(last); // 已经出队时忽略
+                last = null;
+            }
+        };
+    }
+
+    /**
+     * 租户的统计信息，没有该租户的请求时返回null
+     */
+    public TenantStats getStats(String tenant) {
+        lock.lock();
+        try {
+            Tenant t = tenants.get(tenant);
+            return t == null ? null : new TenantStats(t);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 所有租户的统计信息
+     */
+    public List<TenantStats> getStats() {
+        lock.lock();
+        try {
+            List<TenantStats> stats = new ArrayList<>(tenants.size());
+            for (Tenant tenant : tenants.values()) stats.add(new TenantStats(tenant));
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 租户的子队列和统计，由lock保护
+     */
+    private static class Tenant {
+        final String name;
+        final ArrayDeque<Entry> queue = new ArrayDeque<>();
+        final Condition notFull;
+        int weight;
+        int quota;
+        int deficit;
+        long enqueued, dequeued, rejected, expired;
+        long totalWaitNanos, maxWaitNanos;
+
+        Tenant(String name, int weight, int quota, Condition notFull) {
+            this.name = name;
+            this.weight = weight;
+            this.quota = quota;
+            this.notFull = notFull;
+        }
+    }
+
+    private static class Entry {
+        final Request request;
+        final long enqueuedNanos;
+
+        Entry(Request request, long enqueuedNanos) {
+            this.request = request;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    /**
+     * 租户统计信息的快照
+     */
+    public static class TenantStats {
+        private final String tenant;
+        private final int weight;
+        private final int queued;
+        private final long enqueued, dequeued, rejected, expired;
+        private final long averageWaitMicros, maxWaitMicros;
+
+        TenantStats(Tenant t) {
+            this.tenant = t.name;
+            this.weight = t.weight;
+            this.queued = t.queue.size();
+            this.enqueued = t.enqueued;
+            this.dequeued = t.dequeued;
+            this.rejected = t.rejected;
+            this.expired = t.expired;
+            this.averageWaitMicros = t.dequeued == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(t.totalWaitNanos / t.dequeued);
+            this.maxWaitMicros = TimeUnit.NANOSECONDS.toMicros(t.maxWaitNanos);
+        }
+
+        public String getTenant() {
+            return tenant;
+        }
+
+        public int getQueued() {
+            return queued;
+        }
+
+        public long getEnqueued() {
+            return enqueued;
+        }
+
+        public long getDequeued() {
+            return dequeued;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getExpired() {
+            return expired;
+        }
+
+        public long getAverageWaitMicros() {
+            return averageWaitMicros;
+        }
+
+        public long getMaxWaitMicros() {
+            return maxWaitMicros;
+        }
+
+        @Override
+        public String toString() {
+            return tenant + "{weight=" + weight + ", queued=" + queued + ", enqueued=" + enqueued + ", dequeued=" + dequeued
+                    + ", rejected=" + rejected + ", expired=" + expired + ", avgWait=" + averageWaitMicros + "us, maxWait=" + maxWaitMicros + "us}";
+        }
+    }
+
+    /**
+     * 租户heavy积压5000个请求后，租户a、b各提交100个请求，对比FIFO队列和公平队列中a、b请求的等待时间
+     *      公平队列中b的权重为2，heavy的配额为5000，超出部分被拒绝
+     */
+    public static void main(String[] args) throws InterruptedException {
+        FairRequestQueue fair = new FairRequestQueue(10_000).weight("b", 2).quota("heavy", 5000);
+        for (BlockingQueue<Request> queue : Arrays.<BlockingQueue<Request>>asList(new LinkedBlockingQueue<>(), fair)) {
+            Map<String, long[]> latency = new ConcurrentHashMap<>(); // 租户 -> [完成数量, 总等待微秒]
+            int light = 200;
+            CountDownLatch done = new CountDownLatch(light);
+            Thread consumer = new Thread(() -> {
+                try {
+                    while (done.getCount() > 0) {
+                        Request request = queue.take();
+                        TimeUnit.MICROSECONDS.sleep(20); // 模拟处理耗时
+                        long[] stat = latency.computeIfAbsent(request.getTenant(), k -> new long[2]);
+                        stat[0]++;
+                        stat[1] += TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - Long.parseLong(request.getName()));
+                        if (!"heavy".equals(request.getTenant())) done.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    // 结束
+                }
+            });
+            int accepted = 0;
+            for (int i = 0; i < 6000; i++)
+                if (queue.offer(new Request(String.valueOf(System.nanoTime()), 0, 0, "heavy"))) accepted++;
+            consumer.start();
+            for (int i = 0; i < light / 2; i++) {
+                queue.put(new Request(String.valueOf(System.nanoTime()), 0, 0, "a"));
+                queue.put(new Request(String.valueOf(System.nanoTime()), 0, 0, "b"));
+                TimeUnit.MICROSECONDS.sleep(50);
+            }
+            done.await();
+            consumer.interrupt();
+            consumer.join();
+            StringBuilder result = new StringBuilder(queue.getClass().getSimpleName()).append(": heavy入队").append(accepted).append("个");
+            for (String tenant : Arrays.asList("a", "b")) {
+                long[] stat = latency.get(tenant);
+                result.append(", ").append(tenant).append("平均等待").append(stat[1] / stat[0]).append("us");
+            }
+            System.out.println(result);
+        }
+        for (TenantStats stats : fair.getStats()) System.out.println(stats);
+    }
+
+}
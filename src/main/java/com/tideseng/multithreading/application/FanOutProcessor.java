@@ -0,0 +1,67 @@
+package com.tideseng.multithreading.application;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * 责任链之扇出
+ *      将同一个请求对象（不复制）并行交给多个分支处理，所有分支完成后由JoinProcessor汇合并交给下一个责任链
+ *      分支的下一个处理器是JoinProcessor，分支通常是带有自己线程和队列的处理器，所以分支之间并行执行
+ *      分支列表采用写时复制，运行期间可以增删分支，已分发的请求按分发时的分支数量汇合，不受增删影响
+ *      注意：删除的分支需要处理完队列中的请求后再关闭，否则这些请求无法汇合
+ */
+public class FanOutProcessor implements IRequestProcessor {
+
+    private final JoinProcessor join;
+    // 分支列表，写时复制
+    private volatile List<IRequestProcessor> branches = Collections.emptyList();
+
+    public FanOutProcessor(IRequestProcessor nextProcessor) {
+        this.join = new JoinProcessor(nextProcessor);
+    }
+
+    /**
+     * 添加分支
+     * @param factory 以JoinProcessor为下一个处理器创建分支，分支是未启动的线程时会自动启动
+     */
+    public synchronized IRequestProcessor addBranch(Function<IRequestProcessor, ? extends IRequestProcessor> factory) {
+        IRequestProcessor branch = factory.apply(join);
+        if (branch instanceof Thread && ((Thread) branch).getState() == Thread.State.NEW)
+            ((Thread) branch).start();
+        List<IRequestProcessor> copy = new ArrayList<>(branches);
+        copy.add(branch);
+        branches = Collections.unmodifiableList(copy);
+        return branch;
+    }
+
+    public synchronized boolean removeBranch(IRequestProcessor branch) {
+        List<IRequestProcessor> copy = new ArrayList<>(branches);
+        boolean removed = copy.remove(branch);
+        branches = Collections.unmodifiableList(copy);
+        return removed;
+    }
+
+    public List<IRequestProcessor> getBranches() {
+        return branches;
+    }
+
+    @Override
+    public void process(Request request) {
+        List<IRequestProcessor> current = branches; // 分发时的分支快照
+        if (current.isEmpty()) {
+            join.expect(request, 1);
+            join.process(request);
+            return;
+        }
+        join.expect(request, current.size());
+        for (IRequestProcessor branch : current) branch.process(request);
+    }
+
+    @Override
+    public void shutdown() {
+        for (IRequestProcessor branch : branches) branch.shutdown();
+        join.shutdownNext();
+    }
+}
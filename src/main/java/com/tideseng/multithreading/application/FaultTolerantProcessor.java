@@ -0,0 +1,159 @@
+package com.tideseng.multithreading.application;
+
+import com.tideseng.multithreading.pool.CircuitBreaker;
+import com.tideseng.multithreading.pool.HierarchicalTimingWheel;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 责任链之容错，包装可能失败的下游处理器
+ * 原理：
+ *      每次尝试把请求的副本交给下游，观察副本的future：下游抛出RuntimeException或之后在自己的线程中fail()时，按指数退避重试
+ *      退避时间为base * 2^(n-1)，不超过maxBackoff，并加入随机抖动避免重试同时到达；副本成功完成时才完成原请求
+ *      重试由时间轮调度，不占用调用方线程（上一个处理器的线程），其它请求可以继续处理
+ *      熔断器打开时不再调用下游，请求等到熔断结束后再重试，下游恢复前不会被重试请求压垮
+ *      重试次数耗尽的请求放入死信存储并以异常完成，单个毒请求不会反复占用资源
+ */
+public class FaultTolerantProcessor implements IRequestProcessor {
+
+    // 下游处理器
+    private final IRequestProcessor delegate;
+    private final CircuitBreaker breaker;
+    private final DeadLetterStore deadLetters;
+    private final HierarchicalTimingWheel timer;
+    private final int maxAttempts;
+    private final long baseBackoffNanos;
+    private final long maxBackoffNanos;
+    private final LongAdder retries = new LongAdder();
+
+    /**
+     * @param maxAttempts 最多调用下游的次数（包括第一次）
+     * @param baseBackoff 第一次重试的退避时间
+     * @param maxBackoff 退避时间上限
+     */
+    public FaultTolerantProcessor(IRequestProcessor delegate, CircuitBreaker breaker, DeadLetterStore deadLetters,
+                                  HierarchicalTimingWheel timer, int maxAttempts, long baseBackoff, long maxBackoff, TimeUnit unit) {
+        if (maxAttempts <= 0) throw new IllegalArgumentException();
+        this.delegate = delegate;
+        this.breaker = breaker;
+        this.deadLetters = deadLetters;
+        this.timer = timer;
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffNanos = unit.toNanos(baseBackoff);
+        this.maxBackoffNanos = unit.toNanos(maxBackoff);
+    }
+
+    @Override
+    public void process(Request request) {
+        attempt(request, 1);
+    }
+
+    private void attempt(Request request, int attempt) {
+        if (!breaker.tryAcquire()) { // 熔断中，不调用下游
+            retryOrDeadLetter(request, attempt, new RejectedExecutionException("Circuit open"), breaker.remainingOpenNanos());
+            return;
+        }
+        Request copy = request.copy(); // 下游的处理器在自己的线程中通过future报告结果，每次尝试使用新的future
+        copy.getFuture().whenComplete((result, e) -> {
+            if (e == null) {
+                breaker.onSuccess();
+                request.complete(result.getProcessor());
+            } else {
+                breaker.onFailure();
+                retryOrDeadLetter(request, attempt, e, 0);
+            }
+        });
+        try {
+            delegate.process(copy);
+        } catch (RuntimeException e) { // 同步抛出的异常与异步失败一样处理
+            copy.fail(e);
+        }
+    }
+
+    private void retryOrDeadLetter(Request request, int attempt, Throwable cause, long minDelayNanos) {
+        if (attempt >= maxAttempts) {
+            deadLetters.add(request, cause, attempt);
+            request.abandon(cause); // 终态，检查点不会停在毒请求上，需要时从死信存储重新提交
+            return;
+        }
+        retries.increment();
+        long delay = Math.max(minDelayNanos, backoff(attempt));
+        try {
+            timer.schedule(() -> attempt(request, attempt + 1), delay, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) { // 时间轮已停止
+            request.fail(cause);
+        }
+    }
+
+    /**
+     * 带抖动的指数退避，结果在[backoff/2, backoff]之间
+     */
+    private long backoff(int attempt) {
+        long backoff = baseBackoffNanos << Math.min(attempt - 1, 30);
+        if (backoff <= 0 || backoff > maxBackoffNanos) backoff = maxBackoffNanos;
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    /**
+     * 累计重试次数
+     */
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    /**
+     * 下游间歇性故障、中途整体不可用一段时间、并且存在毒请求时，观察请求的完成情况
+     */
+    public static void main(String[] args) throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        long outageStart = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long outageEnd = outageStart + TimeUnit.MILLISECONDS.toNanos(100);
+        IRequestProcessor flaky = new IRequestProcessor() {
+            @Override
+            public void process(Request request) {
+                long now = System.nanoTime();
+                if (request.getName().startsWith("poison")) throw new IllegalArgumentException("Bad request: " + request);
+                if (now > outageStart && now < outageEnd) throw new IllegalStateException("Downstream unavailable");
+                if (calls.incrementAndGet() % 10 == 0) {
+                    request.fail(new IllegalStateException("Transient failure")); // 与责任链的处理器一样通过future报告失败
+                    return;
+                }
+                request.complete("flaky");
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        };
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        HierarchicalTimingWheel timer = new HierarchicalTimingWheel(1, TimeUnit.MILLISECONDS, executorService);
+        CircuitBreaker breaker = new CircuitBreaker(5, 20, TimeUnit.MILLISECONDS);
+        DeadLetterStore deadLetters = new DeadLetterStore(100);
+        FaultTolerantProcessor processor = new FaultTolerantProcessor(flaky, breaker, deadLetters, timer, 8, 2, 100, TimeUnit.MILLISECONDS);
+
+        int n = 3000;
+        CountDownLatch done = new CountDownLatch(n);
+        LongAdder succeeded = new LongAdder();
+        for (int i = 0; i < n; i++) {
+            processor.processAsync(new Request(i % 500 == 0 ? "poison-" + i : "佳欢-" + i)).whenComplete((result, e) -> {
+                if (e == null) succeeded.increment();
+                done.countDown();
+            });
+            TimeUnit.MICROSECONDS.sleep(100);
+        }
+        done.await();
+        System.out.println("成功: " + succeeded.sum() + "/" + n + ", 重试: " + processor.getRetryCount() + ", " + breaker);
+        System.out.println("死信: " + deadLetters.size() + ", 例如: " + deadLetters.snapshot().get(0));
+        timer.stop();
+        executorService.shutdown();
+    }
+
+}
@@ -1,9 +1,20 @@
 package com.tideseng.multithreading.application;
 
+import java.util.concurrent.CompletableFuture;
+
 public interface IRequestProcessor {
 
     void process(Request request);
 
     void shutdown();
 
+    /**
+     * 异步处理请求，返回的future在责任链的最后一个处理器完成时完成，任意处理器失败时异常完成
+     * 调用方不需要阻塞线程等待，可以同时提交大量请求并通过thenAccept等方法处理结果
+     */
+    default CompletableFuture<Result> processAsync(Request request) {
+        process(request);
+        return request.getFuture();
+    }
+
 }
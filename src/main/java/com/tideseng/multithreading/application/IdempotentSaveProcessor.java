@@ -0,0 +1,259 @@
+package com.tideseng.multithreading.application;
+
+import com.tideseng.multithreading.juc.BackingStore;
+import com.tideseng.multithreading.juc.FileBackingStore;
+import com.tideseng.multithreading.juc.RollingBloomFilter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 责任链之幂等保存，配合CheckpointManager实现崩溃重放后存储中的效果恰好一次
+ * 背景：
+ *      SaveProcessor收到的请求没有标识，上游重试、重复投递或崩溃后重放时同一个请求会被保存多次，也无法知道崩溃前保存到了哪里
+ * 原理：
+ *      按请求id去重，每个请求依次检查：
+ *          精确窗口（最近window个id）命中 -> 重复
+ *          滚动布隆过滤器未命中 -> 最近一定没有出现过，直接保存，不访问存储
+ *          布隆过滤器命中但不在精确窗口（可能误判或出现得较早）-> 查询存储确认
+ *      请求攒成批次后一次storeAll()，写入成功后才记录到去重索引、完成请求并确认请求在请求日志中的位置（见OffsetTracker）
+ *      写入失败的请求以异常完成，由上游决定重试、进入死信或在重放时重新保存（上游的OffsetTracker在请求以终态完成之前不确认它）
+ *      本处理器的偏移量只停在已接收、未写出的请求，失败的请求被上游重试多次后进入死信时，偏移量不会永远停在它的位置
+ *      检查点时先写出未满的批次，再写出去重索引和偏移量（最早未确认的位置），三者一致
+ * 崩溃恢复：
+ *      从检查点恢复去重索引，从所有参与者中最小的偏移量开始重放；检查点之后、崩溃之前已保存的请求不在恢复的索引中
+ *      上游会重排请求（公平调度、多个工作线程）或直接丢弃过期的请求，保存顺序与请求日志的顺序无关
+ *      因此位置在recoverUntil（重启时请求日志的末尾）之前的重放请求都可能已保存，布隆过滤器未命中时也查询存储确认
+ * 说明：
+ *      去重范围为布隆过滤器记住的最近几代id，更早的重复请求需要由存储的主键覆盖（按id写入的storeAll()本身是幂等的）
+ *      未满的批次只在检查点（CheckpointManager.checkpoint()，或schedule()定期生成）和shutdown()时写出
+ *      单独使用、不注册到定期检查点的CheckpointManager时需要自己调用，否则批次中的请求一直不完成
+ */
+public class IdempotentSaveProcessor implements IRequestProcessor, CheckpointManager.Participant {
+
+    private static final String NAME = "IdempotentSaveProcessor";
+
+    private final BackingStore<Long, String> store;
+    private final int batchSize;
+    private final RollingBloomFilter seen;
+    private final Set<Long> recent; // 精确窗口，按插入顺序淘汰
+    private final Map<Long, String> pending = new LinkedHashMap<>(); // 待写入的批次
+    private final List<Request> pendingRequests = new ArrayList<>(); // 待完成的请求，包括重复的请求
+    private OffsetTracker offsets = new OffsetTracker(); // 已接收请求在请求日志中的位置
+    private long recoverUntil = -1; // 位置在此之前的请求需要查询存储确认
+    private final LongAdder saved = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder storeChecks = new LongAdder();
+
+    public IdempotentSaveProcessor(BackingStore<Long, String> store, int batchSize) {
+        this(store, batchSize, 10_000, new RollingBloomFilter(100_000, 0.01, 4));
+    }
+
+    /**
+     * @param store 按请求id保存请求
+     * @param window 精确窗口的大小
+     * @param seen 去重用的布隆过滤器
+     */
+    public IdempotentSaveProcessor(BackingStore<Long, String> store, int batchSize, int window, RollingBloomFilter seen) {
+        this.store = store;
+        this.batchSize = batchSize;
+        this.seen = seen;
+        this.recent = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > window;
+            }
+        });
+    }
+
+    /**
+     * 重放之前调用，从检查点恢复去重索引和偏移量
+     * @param checkpoint 最近的检查点，没有检查点（第一次检查点之前崩溃）时为null，仍然需要确认
+     * @param recoverUntil 重启时请求日志的末尾，位置在此之前的请求在崩溃前可能已经保存
+     */
+    public synchronized void restore(CheckpointManager.Checkpoint checkpoint, String stage, long recoverUntil) throws IOException {
+        this.recoverUntil = recoverUntil;
+        DataInputStream in = checkpoint == null ? null : checkpoint.getState(stage);
+        if (in == null) return;
+        seen.readFrom(in);
+        recent.clear();
+        for (int i = in.readInt(); i > 0; i--) recent.add(in.readLong());
+        offsets = new OffsetTracker(checkpoint.getOffset(stage));
+    }
+
+    @Override
+    public synchronized void process(Request request) {
+        long id = request.getId();
+        long offset = request.getOffset();
+        if (offset >= 0) offsets.received(offset);
+        try {
+            if (pending.containsKey(id) || isDuplicate(id, offset)) duplicates.increment();
+            else pending.put(id, request.getName());
+        } catch (Exception e) {
+            if (offset >= 0) offsets.acknowledge(offset); // 是否重放由上游的OffsetTracker决定
+            request.fail(e);
+            return;
+        }
+        pendingRequests.add(request);
+        if (pending.isEmpty() || pending.size() >= batchSize) flush(); // 只有重复的请求时不需要等待批次
+    }
+
+    private boolean isDuplicate(long id, long offset) throws Exception {
+        if (recent.contains(id)) return true;
+        boolean recovering = offset >= 0 && offset < recoverUntil; // 崩溃前可能已保存，不能只依赖恢复的索引
+        if (!recovering && !seen.mightContain(id)) return false;
+        storeChecks.increment();
+        if (store.contains(id)) {
+            remember(id); // 恢复时确认的id补充到索引中，之后重复投递时不再查询存储
+            return true;
+        }
+        return false;
+    }
+
+    private void remember(long id) {
+        seen.put(id);
+        recent.add(id);
+    }
+
+    /**
+     * 写入当前批次并完成请求
+     */
+    private void flush() {
+        if (!pending.isEmpty()) {
+            try {
+                store.storeAll(new HashMap<>(pending));
+            } catch (Exception e) {
+                for (Request request : pendingRequests) {
+                    if (request.getOffset() >= 0) offsets.acknowledge(request.getOffset()); // 是否重放由上游的OffsetTracker决定
+                    request.fail(e);
+                }
+                pending.clear();
+                pendingRequests.clear();
+                return;
+            }
+            for (Long id : pending.keySet()) remember(id);
+            saved.add(pending.size());
+            pending.clear();
+        }
+        for (Request request : pendingRequests) {
+            if (request.getOffset() >= 0) offsets.acknowledge(request.getOffset());
+            request.complete(NAME);
+        }
+        pendingRequests.clear();
+    }
+
+    @Override
+    public synchronized long snapshot(DataOutputStream out) throws IOException {
+        flush();
+        seen.writeTo(out);
+        out.writeInt(recent.size());
+        for (Long id : recent) out.writeLong(id);
+        return offsets.getWatermark();
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        flush();
+    }
+
+    public long getSavedCount() {
+        return saved.sum();
+    }
+
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    /**
+     * 查询存储的次数，正常情况下只有布隆过滤器误判和恢复后确认时才查询
+     */
+    public long getStoreCheckCount() {
+        return storeChecks.sum();
+    }
+
+    /**
+     * 请求日志中有1万个不同的请求和约1500个重复投递（id相同），第一次运行处理到7300个时崩溃，第二次从检查点恢复
+     *      上游按id的奇偶交替乱序送达，第一次运行中每30次写入失败一次
+     *      统计存储中的请求数量和实际写入的次数，两者相同说明没有重复保存，存储中有1万个说明没有丢失
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("checkpoint");
+        Path journal = dir.resolve("requests.journal");
+        List<Request> requests = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            Request request = new Request("佳欢-" + i);
+            requests.add(request);
+            if (i % 10 == 0) requests.add(new Request(request.getId(), request.getName(), 0, 0, null)); // 上游重试
+            if (i % 20 == 0) { // 较早请求的重复投递
+                Request earlier = requests.get(random.nextInt(requests.size()));
+                requests.add(new Request(earlier.getId(), earlier.getName(), 0, 0, null));
+            }
+        }
+        JournalSpliterator.write(journal, requests);
+
+        LongAdder writes = new LongAdder();
+        System.out.println("第一次运行: " + run(dir, writes, 7300));
+        System.out.println("第二次运行: " + run(dir, writes, -1));
+        FileBackingStore<Long, String> store = new FileBackingStore<>(dir.resolve("store.bin"), 0);
+        System.out.println("请求日志: " + requests.size() + "条, 存储中: " + store.size() + "个, 写入次数: " + writes.sum());
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    private static String run(Path dir, LongAdder writes, long crashAt) throws Exception {
+        FileBackingStore<Long, String> file = new FileBackingStore<>(dir.resolve("store.bin"), 0);
+        LongAdder calls = new LongAdder();
+        BackingStore<Long, String> store = new BackingStore<Long, String>() {
+            @Override
+            public String load(Long key) throws Exception {
+                return file.load(key);
+            }
+
+            @Override
+            public void storeAll(Map<Long, String> entries) throws Exception {
+                calls.increment();
+                if (crashAt >= 0 && calls.sum() % 30 == 0) throw new IOException("Store unavailable"); // 写入失败的请求source不确认，重放时重新保存
+                file.storeAll(entries);
+                writes.add(entries.size());
+            }
+        };
+        Path journal = dir.resolve("requests.journal");
+        IdempotentSaveProcessor save = new IdempotentSaveProcessor(store, 100);
+        CheckpointManager manager = new CheckpointManager(dir.resolve("checkpoint.bin"));
+        CheckpointManager.Checkpoint checkpoint = manager.load();
+        long replayOffset = checkpoint == null ? 0 : checkpoint.getReplayOffset();
+        save.restore(checkpoint, "SaveProcessor", Files.size(journal));
+        OffsetTracker source = new OffsetTracker(replayOffset);
+        manager.register("source", source); // 上游：读取时登记，完成时确认
+        manager.register("SaveProcessor", save);
+
+        JournalSpliterator requests = JournalSpliterator.open(journal, 0);
+        requests.skipTo(replayOffset); // 跳过检查点之前的请求
+        Deque<Request> reordered = new ArrayDeque<>(); // 模拟上游乱序：id为奇数的请求晚一个送达
+        long[] count = {0};
+        while (count[0] != crashAt && requests.tryAdvance(request -> {
+            source.track(request);
+            if ((request.getId() & 1) == 1) reordered.addLast(request);
+            else save.process(request);
+            if (reordered.size() > 1) save.process(reordered.pollFirst());
+        })) {
+            if (++count[0] % 1000 == 0) manager.checkpoint();
+        }
+        if (count[0] != crashAt) { // 正常结束时生成最后一个检查点，崩溃时不生成
+            while (!reordered.isEmpty()) save.process(reordered.pollFirst());
+            manager.close();
+        }
+        return "从" + replayOffset + "重放" + count[0] + "个请求, 保存" + save.getSavedCount() + "个, 重复" + save.getDuplicateCount()
+                + "个, 查询存储" + save.getStoreCheckCount() + "次, 未确认" + source.getPendingCount() + "个";
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.tideseng.multithreading.application;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * IngressServer的客户端，批量编码请求后通过阻塞的SocketChannel发送
+ * main()为本地压测工具：启动服务端和多个客户端，统计端到端的吞吐量
+ */
+public class IngressClient implements Closeable {
+
+    private final SocketChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    public IngressClient(int port) throws IOException {
+        this.channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+
+    /**
+     * 请求先写入缓冲区，缓冲区满时发送
+     */
+    public void send(Request request) throws IOException {
+        if (buffer.remaining() < RequestCodec.encodedLength(request)) flush();
+        RequestCodec.encode(request, buffer);
+    }
+
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = 4, requestsPerClient = 250_000;
+        LongAdder processed = new LongAdder();
+        IRequestProcessor counter = new IRequestProcessor() { // 只计数，测量接入服务本身的开销
+            @Override
+            public void process(Request request) {
+                processed.increment();
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        };
+        try (IngressServer server = new IngressServer(0, counter, 2)) {
+            server.start();
+            long start = System.nanoTime();
+            Thread[] threads = new Thread[clients];
+            for (int i = 0; i < clients; i++) {
+                final int id = i;
+                threads[i] = new Thread(() -> {
+                    try (IngressClient client = new IngressClient(server.getPort())) {
+                        for (int j = 0; j < requestsPerClient; j++)
+                            client.send(new Request("佳欢-" + id + "-" + j));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) thread.join();
+            long total = (long) clients * requestsPerClient;
+            while (processed.sum() < total) TimeUnit.MILLISECONDS.sleep(1);
+            long elapsed = System.nanoTime() - start;
+            System.out.println("请求数: " + total + ", 耗时: " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms, 吞吐量: "
+                    + total * 1_000_000_000L / elapsed + " req/s");
+        }
+    }
+
+}
@@ -0,0 +1,229 @@
+package com.tideseng.multithreading.application;
+
+import com.tideseng.multithreading.log.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 本机请求接入服务，其它进程通过本地回环地址提交请求到责任链
+ * 原理（Reactor模式）：
+ *      少量reactor线程各自持有一个Selector，第一个reactor同时负责accept，新连接轮询分配给各个reactor
+ *      连接为非阻塞的SocketChannel，没有每连接一个线程的开销
+ *      每个连接从缓冲池中借用一个DirectByteBuffer，可读时读取数据并按RequestCodec的帧格式拆包
+ *      解码出的Request直接交给目标处理器（如PreProcessor），由处理器的队列完成线程切换
+ *      连接关闭时缓冲区归还到缓冲池，避免反复分配堆外内存
+ * 说明：
+ *      项目编译目标为JDK8，不支持Unix domain socket(JDK16)，这里只监听回环地址
+ *      客户端发送的帧大于缓冲区容量时视为协议错误，直接关闭连接
+ *      accept、设置选项、注册或读取时出错只关闭出错的连接，reactor继续服务其它连接；关闭时等待注册的连接也会被关闭
+ */
+public class IngressServer implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(IngressServer.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final IRequestProcessor target;
+    private final ServerSocketChannel serverChannel;
+    private final Reactor[] reactors;
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE);
+    private final AtomicInteger nextReactor = new AtomicInteger();
+    private final LongAdder received = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * @param port 监听端口，0表示随机端口
+     * @param target 接收请求的处理器
+     * @param reactorCount reactor线程数
+     */
+    public IngressServer(int port, IRequestProcessor target, int reactorCount) throws IOException {
+        this.target = target;
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        this.reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++)
+            reactors[i] = new Reactor(Selector.open(), "ingress-reactor-" + i);
+        serverChannel.register(reactors[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public void start() {
+        for (Reactor reactor : reactors) reactor.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * 已接收的请求数量
+     */
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverChannel.close();
+        for (Reactor reactor : reactors) reactor.selector.wakeup();
+    }
+
+    class Reactor extends Thread {
+
+        final Selector selector;
+        final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>(); // 等待注册的新连接
+
+        Reactor(Selector selector, String name) {
+            super(name);
+            this.selector = selector;
+            setDaemon(true);
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup(); // 唤醒阻塞在select()上的reactor，由它自己完成注册
+            if (closed) closePending(); // reactor可能已经退出，不会再处理队列中的连接
+        }
+
+        /**
+         * 单个连接或单个事件的异常只关闭对应的连接，只有Selector本身出错时reactor才退出
+         */
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        try {
+                            channel.register(selector, SelectionKey.OP_READ, bufferPool.acquire());
+                        } catch (IOException | RuntimeException e) { // 连接已被对方关闭等
+                            closeQuietly(channel);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            if (!key.isValid()) continue;
+                            if (key.isAcceptable()) accept();
+                            else if (key.isReadable()) read(key);
+                        } catch (CancelledKeyException e) {
+                            closeConnection(key);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (!closed) LOGGER.error(getName() + "退出", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) closeConnection(key);
+                closePending();
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * 接受全部等待中的连接，单个连接初始化失败时只关闭该连接
+         */
+        private void accept() {
+            while (!closed) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (IOException e) { // 如文件描述符耗尽，不影响已有连接，下一次select()时重试
+                    LOGGER.warn("接受连接失败: {}", e);
+                    return;
+                }
+                if (channel == null) return;
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException | RuntimeException e) {
+                    closeQuietly(channel);
+                    continue;
+                }
+                reactors[Math.abs(nextReactor.getAndIncrement() % reactors.length)].register(channel);
+            }
+        }
+
+        private void closePending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) closeQuietly(channel);
+        }
+
+        private void read(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            ByteBuffer buffer = (ByteBuffer) key.attachment();
+            try {
+                int n = channel.read(buffer);
+                buffer.flip();
+                int length;
+                while ((length = RequestCodec.frameLength(buffer)) > 0) { // 拆包，一次读取可能包含多个帧；帧长度非法时抛出异常
+                    int end = buffer.position() + length;
+                    Request request = RequestCodec.decode(buffer); // 字段越界时抛出异常
+                    buffer.position(end);
+                    received.increment();
+                    target.process(request);
+                }
+                // 声明的帧长度超过缓冲区时永远收不全，连接只能关闭，否则缓冲区写满后每次读取都是0字节
+                boolean tooLarge = buffer.remaining() >= 4 && 4L + buffer.getInt(buffer.position()) > buffer.capacity();
+                buffer.compact(); // 半包留到下一次读取
+                if (n < 0 || tooLarge) closeConnection(key);
+            } catch (IOException | RuntimeException e) { // 包括客户端发送的非法帧，关闭连接
+                closeConnection(key);
+            }
+        }
+
+        private void closeConnection(SelectionKey key) {
+            key.cancel();
+            Object attachment = key.attach(null);
+            if (attachment instanceof ByteBuffer) bufferPool.release((ByteBuffer) attachment);
+            closeQuietly(key.channel());
+        }
+
+        private void closeQuietly(Channel channel) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 堆外缓冲池
+     */
+    static class BufferPool {
+        private final int bufferSize;
+        private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+        BufferPool(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        ByteBuffer acquire() {
+            ByteBuffer buffer = buffers.poll();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        void release(ByteBuffer buffer) {
+            buffer.clear();
+            buffers.offer(buffer);
+        }
+    }
+
+}
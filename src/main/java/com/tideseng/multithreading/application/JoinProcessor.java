@@ -0,0 +1,51 @@
+package com.tideseng.multithreading.application;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 责任链之汇合，与FanOutProcessor配合使用
+ *      FanOutProcessor分发请求前登记需要等待的分支数量，每个分支处理完成后调用process()
+ *      所有分支都到达后才把请求交给下一个责任链，任意分支失败时请求异常完成并清理等待状态
+ */
+public class JoinProcessor implements IRequestProcessor {
+
+    // 等待中的请求，Request没有重写equals()，按对象身份匹配
+    private final ConcurrentMap<Request, AtomicInteger> pending = new ConcurrentHashMap<>();
+    // 下一个处理器
+    private final IRequestProcessor nextProcessor;
+
+    public JoinProcessor(IRequestProcessor nextProcessor) {
+        this.nextProcessor = nextProcessor;
+    }
+
+    void expect(Request request, int branches) {
+        pending.put(request, new AtomicInteger(branches));
+        request.getFuture().whenComplete((result, e) -> pending.remove(request)); // 分支失败时清理
+    }
+
+    @Override
+    public void process(Request request) {
+        AtomicInteger remaining = pending.get(request);
+        if (remaining == null || remaining.decrementAndGet() > 0) return; // 已失败或还有分支未完成
+        pending.remove(request);
+        if (nextProcessor != null) nextProcessor.process(request);
+        else request.complete("JoinProcessor");
+    }
+
+    /**
+     * 每个分支关闭时都会调用该方法，下游由FanOutProcessor统一关闭
+     */
+    @Override
+    public void shutdown() {
+    }
+
+    void shutdownNext() {
+        if (nextProcessor != null) nextProcessor.shutdown();
+    }
+
+    public int pendingCount() {
+        return pending.size();
+    }
+}
@@ -0,0 +1,129 @@
+package com.tideseng.multithreading.application;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * 按帧拆分请求日志文件的Spliterator，用于并行流和ForkJoin批量处理
+ * 原理：
+ *      日志文件由RequestCodec编码的帧依次组成，帧是变长的，无法直接按字节位置二分
+ *      打开时先顺序扫描一遍只读取每帧的长度，建立帧偏移量索引（不解码），之后按索引区间二分，拆分是O(1)且两半的大小准确
+ *      因此可以报告SIZED|SUBSIZED，并行流可以据此均匀拆分任务、预分配toArray()的结果数组
+ *      文件整体映射为MappedByteBuffer，每个拆分出的Spliterator使用自己的duplicate()，并行解码时互不影响position
+ *      解码出的请求以帧在文件中的位置作为getOffset()，检查点记录的偏移量可以通过skipTo()定位
+ * 说明：
+ *      recordHeader为每帧前的额外字节数，普通日志为0，DurableRequestQueue的段文件为4(crc)，遇到长度为0的帧视为结束
+ *      单个文件受MappedByteBuffer限制不能超过2GB
+ */
+public class JournalSpliterator implements Spliterator<Request> {
+
+    private final ByteBuffer buffer;
+    private final int[] offsets; // 每帧的起始位置（帧长度字段）
+    private int index;
+    private final int end;
+
+    private JournalSpliterator(ByteBuffer buffer, int[] offsets, int index, int end) {
+        this.buffer = buffer;
+        this.offsets = offsets;
+        this.index = index;
+        this.end = end;
+    }
+
+    /**
+     * 打开请求日志文件并建立帧索引
+     */
+    public static JournalSpliterator open(Path file, int recordHeader) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // 映射在关闭通道后仍然有效
+        }
+        int[] offsets = new int[1024];
+        int count = 0;
+        int position = 0;
+        while (position + recordHeader + 4 <= buffer.limit()) {
+            int frameLength = buffer.getInt(position + recordHeader);
+            int next = position + recordHeader + 4 + frameLength;
+            if (frameLength <= 0 || next > buffer.limit()) break; // 段结束标记或不完整的帧
+            if (count == offsets.length) offsets = Arrays.copyOf(offsets, count * 2);
+            offsets[count++] = position + recordHeader;
+            position = next;
+        }
+        return new JournalSpliterator(buffer, offsets, 0, count);
+    }
+
+    /**
+     * 将请求依次编码写入日志文件
+     */
+    public static void write(Path file, Iterable<Request> requests) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            for (Request request : requests) {
+                if (buffer.remaining() < RequestCodec.encodedLength(request)) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                    buffer.clear();
+                }
+                RequestCodec.encode(request, buffer);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Request> action) {
+        if (index >= end) return false;
+        int offset = offsets[index++];
+        buffer.position(offset);
+        action.accept(RequestCodec.decode(buffer, offset));
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Request> action) {
+        ByteBuffer buffer = this.buffer;
+        for (int i = index; i < end; i++) {
+            buffer.position(offsets[i]);
+            action.accept(RequestCodec.decode(buffer, offsets[i]));
+        }
+        index = end;
+    }
+
+    /**
+     * 跳过位置在offset之前的帧，用于从检查点的偏移量开始重放
+     */
+    public void skipTo(long offset) {
+        int i = Arrays.binarySearch(offsets, index, end, (int) Math.min(offset, Integer.MAX_VALUE));
+        index = Math.max(index, i >= 0 ? i : -i - 1);
+    }
+
+    /**
+     * 按帧数二分
+     */
+    @Override
+    public Spliterator<Request> trySplit() {
+        int mid = (index + end) >>> 1;
+        if (mid <= index) return null;
+        JournalSpliterator prefix = new JournalSpliterator(buffer.duplicate(), offsets, index, mid);
+        index = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return end - index;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+
+}
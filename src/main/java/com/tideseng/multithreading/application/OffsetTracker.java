@@ -0,0 +1,73 @@
+package com.tideseng.multithreading.application;
+
+import java.io.DataOutputStream;
+import java.util.TreeSet;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 请求日志的确认水位线，作为检查点的偏移量
+ * 背景：
+ *      请求在责任链中不按读取顺序完成：公平调度会重排请求，过期的请求在出队时直接失败，多个工作线程并行处理，失败的请求会重试
+ *      已处理的请求数量不是请求日志中的位置，按数量重放会跳过未完成的请求或重复处理已完成的请求
+ * 原理：
+ *      读取请求时登记它在请求日志中的位置(Request.getOffset())，确认后移除
+ *      水位线为最早未确认的位置，没有未确认的请求时为最后一个请求之后，水位线之前的请求全部已确认
+ *      崩溃后从水位线开始重放，水位线之后已经确认的请求会再处理一次，由幂等的处理器去重（见IdempotentSaveProcessor）
+ * 说明：
+ *      track()在请求完成时自动确认：正常完成、过期（TimeoutException，重放时同样会过期）或以终态失败（Request.abandon()，如进入死信、被限流拒绝）
+ *      其它失败（如保存失败、处理器关闭）不确认，水位线停在该请求，重放时重新处理
+ */
+public class OffsetTracker implements CheckpointManager.Participant {
+
+    private final TreeSet<Long> pending = new TreeSet<>(); // 已登记未确认的位置，由this保护
+    private long next; // 已登记的最大位置 + 1，由this保护
+
+    public OffsetTracker() {
+        this(0);
+    }
+
+    /**
+     * @param start 重放的起点，登记请求之前的水位线
+     */
+    public OffsetTracker(long start) {
+        this.next = start;
+    }
+
+    /**
+     * 登记请求，请求完成时自动确认；不是从请求日志中读取的请求忽略
+     */
+    public void track(Request request) {
+        long offset = request.getOffset();
+        if (offset < 0) return;
+        received(offset);
+        request.getFuture().whenComplete((result, e) -> {
+            if (e == null || e instanceof TimeoutException || request.isAbandoned()) acknowledge(offset);
+        });
+    }
+
+    public synchronized void received(long offset) {
+        pending.add(offset);
+        if (offset >= next) next = offset + 1;
+    }
+
+    public synchronized void acknowledge(long offset) {
+        pending.remove(offset);
+    }
+
+    /**
+     * 该位置之前的请求全部已确认
+     */
+    public synchronized long getWatermark() {
+        return pending.isEmpty() ? next : pending.first();
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public long snapshot(DataOutputStream out) {
+        return getWatermark();
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.tideseng.multithreading.application;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 责任链拓扑构建器，在IRequestProcessor之上组合出有向无环图
+ *      then: 顺序执行的处理器
+ *      thenIf: 满足条件的请求经过该处理器，其它请求直接跳过
+ *      fanOut: 并行执行多个分支，全部完成后汇合
+ * 处理器通过构造方法接收下一个处理器，所以build()时从后往前创建，并启动其中的线程
+ * 构建出的RouteProcessor和FanOutProcessor可以在运行期间修改路由和分支
+ * 使用示例：
+ *      IRequestProcessor pipeline = new PipelineBuilder()
+ *              .then(PreProcessor::new)
+ *              .thenIf(request -> !request.getName().startsWith("bulk"), PrintProcessor::new)
+ *              .fanOut(SaveProcessor::new, PrintProcessor::new)
+ *              .build();
+ */
+public class PipelineBuilder {
+
+    private final List<Function<IRequestProcessor, IRequestProcessor>> steps = new ArrayList<>();
+    private final List<RouteProcessor> routers = new ArrayList<>();
+    private final List<FanOutProcessor> fanOuts = new ArrayList<>();
+
+    public PipelineBuilder then(Function<IRequestProcessor, ? extends IRequestProcessor> stage) {
+        steps.add(next -> start(stage.apply(next)));
+        return this;
+    }
+
+    public PipelineBuilder thenIf(Predicate<Request> predicate, Function<IRequestProcessor, ? extends IRequestProcessor> stage) {
+        steps.add(next -> {
+            RouteProcessor router = new RouteProcessor(next);
+            router.addRoute(predicate, start(stage.apply(next)));
+            routers.add(0, router);
+            return router;
+        });
+        return this;
+    }
+
+    @SafeVarargs
+    public final PipelineBuilder fanOut(Function<IRequestProcessor, ? extends IRequestProcessor>... branches) {
+        steps.add(next -> {
+            FanOutProcessor fanOut = new FanOutProcessor(next);
+            for (Function<IRequestProcessor, ? extends IRequestProcessor> branch : branches)
+                fanOut.addBranch(branch);
+            fanOuts.add(0, fanOut);
+            return fanOut;
+        });
+        return this;
+    }
+
+    /**
+     * @return 责任链的第一个处理器
+     */
+    public IRequestProcessor build() {
+        if (steps.isEmpty()) throw new IllegalStateException("Pipeline has no stage");
+        IRequestProcessor next = null;
+        for (int i = steps.size() - 1; i >= 0; i--)
+            next = steps.get(i).apply(next);
+        return next;
+    }
+
+    /**
+     * 按在责任链中的先后顺序返回构建出的路由处理器
+     */
+    public List<RouteProcessor> getRouters() {
+        return Collections.unmodifiableList(routers);
+    }
+
+    /**
+     * 按在责任链中的先后顺序返回构建出的扇出处理器
+     */
+    public List<FanOutProcessor> getFanOuts() {
+        return Collections.unmodifiableList(fanOuts);
+    }
+
+    private static IRequestProcessor start(IRequestProcessor processor) {
+        if (processor instanceof Thread && ((Thread) processor).getState() == Thread.State.NEW)
+            ((Thread) processor).start();
+        return processor;
+    }
+
+    public static void main(String[] args) {
+        PipelineBuilder builder = new PipelineBuilder()
+                .then(PreProcessor::new)
+                .thenIf(request -> !request.getName().startsWith("bulk"), PrintProcessor::new) // 批量请求跳过打印
+                .fanOut(SaveProcessor::new, PrintProcessor::new); // 保存和审计并行执行
+        IRequestProcessor pipeline = builder.build();
+
+        pipeline.processAsync(new Request("佳欢")).thenAccept(result -> System.out.println("完成: " + result)).join();
+        pipeline.processAsync(new Request("bulk-佳欢")).thenAccept(result -> System.out.println("完成: " + result)).join();
+
+        builder.getFanOuts().get(0).addBranch(SaveProcessor::new); // 运行期间增加分支
+        pipeline.processAsync(new Request("佳欢-3")).thenAccept(result -> System.out.println("完成: " + result)).join();
+        pipeline.shutdown();
+        System.exit(0); // 处理器线程阻塞在take()上，直接退出
+    }
+}
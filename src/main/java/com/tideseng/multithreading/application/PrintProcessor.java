@@ -1,5 +1,8 @@
 package com.tideseng.multithreading.application;
 
+import com.tideseng.multithreading.log.Logger;
+
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
@@ -7,12 +10,16 @@ import java.util.concurrent.LinkedBlockingQueue;
  */
 public class PrintProcessor extends Thread implements IRequestProcessor {
 
+    private static final Logger LOGGER = Logger.getLogger(PrintProcessor.class);
+
     // 阻塞队列
-    private LinkedBlockingQueue<Request> requests = new LinkedBlockingQueue<Request>();
+    private BlockingQueue<Request> requests = new LinkedBlockingQueue<Request>();
     // 下一个处理器
     private IRequestProcessor nextProcessor;
     // 是否关闭的标志
     private volatile boolean isFinished;
+    // 执行run()的线程，被StageSupervisor重启后是新的线程
+    private volatile Thread runner;
 
     public PrintProcessor() {
     }
@@ -21,22 +28,43 @@ public class PrintProcessor extends Thread implements IRequestProcessor {
         this.nextProcessor = nextProcessor;
     }
 
+    /**
+     * 指定队列实现，如使用DurableRequestQueue持久化队列中的请求
+     */
+    public PrintProcessor(IRequestProcessor nextProcessor, BlockingQueue<Request> requests) {
+        this.nextProcessor = nextProcessor;
+        this.requests = requests;
+    }
+
     /**
      * 异步处理请求
      */
     @Override
     public void run() {
+        runner = Thread.currentThread();
         while (!isFinished){
             try {
                 Request request = requests.take();// 阻塞式获取数据
-                System.out.println("PrintProcessor: " + request); // 处理逻辑
-                if(nextProcessor != null) nextProcessor.process(request); // 交给下一个责任链
+                try {
+                    handle(request); // 处理逻辑
+                    if(nextProcessor != null) nextProcessor.process(request); // 交给下一个责任链
+                    else request.complete("PrintProcessor"); // 最后一个责任链，通知请求完成
+                } catch (RuntimeException e) {
+                    request.fail(e); // 处理失败，通知调用方
+                }
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                // shutdown()时被中断，由循环条件退出；其它来源的中断忽略，处理器线程继续工作
             }
         }
     }
 
+    /**
+     * 单个请求的处理逻辑，BulkProcessor批量模式下直接调用
+     */
+    static void handle(Request request) {
+        LOGGER.info("处理请求: {}", request); // 异步写出，不在处理器线程上执行write系统调用
+    }
+
     @Override
     public void process(Request request) {
         this.requests.add(request); // 将请求加入队列异步进行处理
@@ -48,6 +76,8 @@ public class PrintProcessor extends Thread implements IRequestProcessor {
     @Override
     public void shutdown(){
         isFinished = true;
+        Thread runner = this.runner;
+        if (runner != null) runner.interrupt(); // 唤醒阻塞在take()上的线程
         if(nextProcessor != null) nextProcessor.shutdown();
     }
 }
@@ -0,0 +1,197 @@
+package com.tideseng.multithreading.application;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按优先级和截止时间调度的阻塞队列，替换处理器中先进先出的LinkedBlockingQueue
+ * 原理：
+ *      入队时计算排序值rank = 入队时间 - 优先级 * agingNanos，rank越小越先出队
+ *          优先级每高1级，相当于提前agingNanos入队，紧急请求可以越过大量批量请求
+ *          批量请求等待时间超过(优先级差 * agingNanos)后排到新到达的紧急请求之前，不会饿死（老化）
+ *      有截止时间的请求rank不晚于(截止时间 - leadNanos)，即最早截止时间优先(EDF)
+ *      排序值在入队时一次性计算，之后不再变化，可以直接使用PriorityBlockingQueue，rank相同时按入队顺序
+ *      出队时丢弃已过期的请求，以TimeoutException异常完成，不再消耗后续处理器的资源
+ */
+public class PriorityRequestQueue extends AbstractQueue<Request> implements BlockingQueue<Request> {
+
+    private final PriorityBlockingQueue<Entry> queue = new PriorityBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder expired = new LongAdder();
+    private final long agingNanos;
+    private final long leadNanos;
+
+    public PriorityRequestQueue() {
+        this(10, 10, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param aging 每级优先级相当于提前入队的时间
+     * @param lead 有截止时间的请求最晚在截止前多久被调度
+     */
+    public PriorityRequestQueue(long aging, long lead, TimeUnit unit) {
+        this.agingNanos = unit.toNanos(aging);
+        this.leadNanos = unit.toNanos(lead);
+    }
+
+    @Override
+    public boolean offer(Request request) {
+        long now = System.nanoTime();
+        long rank = now - request.getPriority() * agingNanos;
+        if (request.getDeadline() != 0) {
+            long deadlineNanos = now + TimeUnit.MILLISECONDS.toNanos(request.getDeadline() - System.currentTimeMillis());
+            rank = Math.min(rank, deadlineNanos - leadNanos);
+        }
+        return queue.offer(new Entry(request, rank, sequence.getAndIncrement()));
+    }
+
+    @Override
+    public void put(Request request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(Request request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public Request take() throws InterruptedException {
+        while (true) {
+            Request request = live(queue.take());
+            if (request != null) return request;
+        }
+    }
+
+    @Override
+    public Request poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            Entry entry = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (entry == null) return null;
+            Request request = live(entry);
+            if (request != null) return request;
+        }
+    }
+
+    @Override
+    public Request poll() {
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            Request request = live(entry);
+            if (request != null) return request;
+        }
+        return null;
+    }
+
+    /**
+     * 过期的请求直接失败并返回null
+     */
+    private Request live(Entry entry) {
+        Request request = entry.request;
+        if (request.isExpired(System.currentTimeMillis())) {
+            expired.increment();
+            request.fail(new TimeoutException("Deadline exceeded: " + request));
+            return null;
+        }
+        return request;
+    }
+
+    @Override
+    public Request peek() {
+        Entry entry = queue.peek();
+        return entry == null ? null : entry.request;
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request> c, int maxElements) {
+        if (c == this) throw new IllegalArgumentException();
+        int n = 0;
+        Request request;
+        while (n < maxElements && (request = poll()) != null) {
+            c.add(request);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * 按调度顺序返回快照
+     */
+    @Override
+    public Iterator<Request> iterator() {
+        Entry[] entries = queue.toArray(new Entry[0]);
+        Arrays.sort(entries);
+        List<Request> snapshot = new ArrayList<>(entries.length);
+        for (Entry entry : entries) snapshot.add(entry.request);
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    /**
+     * 因过期被丢弃的请求数量
+     */
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    static class Entry implements Comparable<Entry> {
+        final Request request;
+        final long rank;
+        final long sequence;
+
+        Entry(Request request, long rank, long sequence) {
+            this.request = request;
+            this.rank = rank;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int c = Long.compare(rank, other.rank);
+            return c != 0 ? c : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * 处理器饱和时对比FIFO队列和优先级队列中紧急请求的等待时间
+     */
+    public static void main(String[] args) throws InterruptedException {
+        for (BlockingQueue<Request> queue : Arrays.<BlockingQueue<Request>>asList(new LinkedBlockingQueue<>(), new PriorityRequestQueue())) {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < 1000; i++) queue.put(new Request("bulk-" + i)); // 积压的批量请求
+            for (int i = 0; i < 100; i++) queue.put(new Request("expired-" + i, 0, now - 1)); // 已过期
+            long submitted = System.nanoTime();
+            queue.put(new Request("urgent", 10, 0));
+            int position = 0;
+            Request request;
+            while (!(request = queue.take()).getName().equals("urgent")) {
+                position++;
+                TimeUnit.MICROSECONDS.sleep(10); // 模拟处理耗时
+            }
+            System.out.println(queue.getClass().getSimpleName() + ": 紧急请求排在第" + position + "位, 等待"
+                    + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - submitted) + "us, " + request);
+        }
+    }
+
+}
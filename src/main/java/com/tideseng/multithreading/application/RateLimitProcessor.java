@@ -0,0 +1,56 @@
+package com.tideseng.multithreading.application;
+
+import com.tideseng.multithreading.pool.KeyedRateLimiter;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+/**
+ * 责任链之入口限流，防止某个生产者发送过多请求而影响其它生产者
+ *      阻塞模式：拿不到许可时在调用方线程等待，对生产者形成背压
+ *      拒绝模式：拿不到许可时请求以RejectedExecutionException异常完成
+ */
+public class RateLimitProcessor implements IRequestProcessor {
+
+    // 下一个处理器
+    private final IRequestProcessor nextProcessor;
+    private final KeyedRateLimiter<Object> limiter;
+    private final Function<Request, Object> keyFunction;
+    private final boolean blocking;
+
+    /**
+     * @param keyFunction 限流的key，如按租户限流；返回null时使用FairRequestQueue.DEFAULT_TENANT（Request::getTenant对默认租户返回null）
+     * @param blocking 拿不到许可时是否阻塞
+     */
+    public RateLimitProcessor(IRequestProcessor nextProcessor, KeyedRateLimiter<Object> limiter, Function<Request, Object> keyFunction, boolean blocking) {
+        this.nextProcessor = nextProcessor;
+        this.limiter = limiter;
+        this.keyFunction = keyFunction;
+        this.blocking = blocking;
+    }
+
+    @Override
+    public void process(Request request) {
+        Object key = keyFunction.apply(request);
+        if (key == null) key = FairRequestQueue.DEFAULT_TENANT; // ConcurrentHashMap不允许null key，与公平调度一样归入默认租户
+        if (blocking) {
+            try {
+                limiter.acquire(key);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // 恢复中断标识
+                request.fail(e);
+                return;
+            }
+        } else if (!limiter.tryAcquire(key)) {
+            request.abandon(new RejectedExecutionException("Rate limit exceeded: " + key)); // 终态，由生产者决定是否重新发送
+            return;
+        }
+        if (nextProcessor != null) nextProcessor.process(request);
+        else request.complete("RateLimitProcessor");
+    }
+
+    @Override
+    public void shutdown() {
+        if (nextProcessor != null) nextProcessor.shutdown();
+    }
+}
@@ -1,14 +1,146 @@
 package com.tideseng.multithreading.application;
 
+import com.tideseng.multithreading.log.Loggable;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * 多线程应用场景：通过责任链模式处理请求（也可通过分布式消息中间件实现）
  */
-public class Request {
+public class Request implements Loggable {
+
+    // 上一个分配的id，id由毫秒时间戳左移20位再递增，单调递增，进程重启后也不会重复（时钟不回拨时）
+    private static final AtomicLong LAST_ID = new AtomicLong();
 
+    // 请求的唯一标识，随请求编码和持久化，重放或重复投递时不变，用于幂等处理
+    private final long id;
     private String name;
+    // 优先级，值越大越优先
+    private int priority;
+    // 截止时间(毫秒时间戳)，0表示没有截止时间，过期的请求会在处理前被丢弃
+    private long deadline;
+    // 所属租户，用于入口的公平调度和限流，null表示默认租户
+    private String tenant;
+    // 在请求日志中的位置，用于检查点和重放（见OffsetTracker），不是从请求日志中读取的请求为-1
+    private final long offset;
+    // 请求完成的通知，由最后一个处理器完成，任意处理器失败时异常完成
+    private final CompletableFuture<Result> future = new CompletableFuture<>();
+    // 是否以终态失败，在future完成之前写入
+    private volatile boolean abandoned;
 
     public Request(String name) {
+        this(0, name, 0, 0, null);
+    }
+
+    public Request(String name, int priority, long deadline) {
+        this(0, name, priority, deadline, null);
+    }
+
+    public Request(String name, int priority, long deadline, String tenant) {
+        this(0, name, priority, deadline, tenant);
+    }
+
+    Request(long id, String name, int priority, long deadline, String tenant) {
+        this(id, name, priority, deadline, tenant, -1);
+    }
+
+    /**
+     * 解码时使用，保留原请求的id
+     * id为0（旧版本数据）时：从请求日志中读取的请求由位置决定id，重放时不变；其它请求分配新的id
+     */
+    Request(long id, String name, int priority, long deadline, String tenant, long offset) {
+        this.id = id != 0 ? id : offset >= 0 ? Long.MIN_VALUE | offset : nextId(); // 由位置决定的id为负数，与分配的id不会重复
         this.name = name;
+        this.priority = priority;
+        this.deadline = deadline;
+        this.tenant = tenant;
+        this.offset = offset;
+    }
+
+    /**
+     * 重试时使用，id、内容和位置与原请求相同，future是新的，每次尝试的结果单独通知
+     */
+    Request copy() {
+        return new Request(id, name, priority, deadline, tenant, offset);
+    }
+
+    private static long nextId() {
+        while (true) {
+            long last = LAST_ID.get();
+            long id = Math.max(last + 1, System.currentTimeMillis() << 20);
+            if (LAST_ID.compareAndSet(last, id)) return id;
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+
+    /**
+     * 在请求日志中的位置，不是从请求日志中读取的请求返回-1
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public boolean isExpired(long now) {
+        return deadline != 0 && now >= deadline;
+    }
+
+    public CompletableFuture<Result> getFuture() {
+        return future;
+    }
+
+    /**
+     * 责任链的最后一个处理器处理完成后调用
+     */
+    void complete(String processor) {
+        future.complete(new Result(this, processor));
+    }
+
+    /**
+     * 任意处理器处理失败时调用，请求不再交给下一个责任链
+     */
+    void fail(Throwable cause) {
+        future.completeExceptionally(cause);
+    }
+
+    /**
+     * 以终态失败：请求不会再被重试，重放也不应该再处理（如重试次数耗尽进入死信、被限流拒绝）
+     * OffsetTracker确认这样的请求，单个毒请求不会使水位线永远停在它的位置
+     */
+    void abandon(Throwable cause) {
+        abandoned = true;
+        future.completeExceptionally(cause);
+    }
+
+    public boolean isAbandoned() {
+        return abandoned;
+    }
+
+    /**
+     * 作为日志参数时直接追加到日志槽位，不创建临时字符串
+     */
+    @Override
+    public void formatTo(StringBuilder builder) {
+        builder.append("Request{name='").append(name).append('\'').append('}');
     }
 
     @Override
@@ -0,0 +1,232 @@
+package com.tideseng.multithreading.application;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Request的二进制编解码，用于在处理器之间传递、持久化到磁盘或发送给其它进程
+ * 格式（大端序）：
+ *      [int frameLength] 之后的字节数，用于分帧和跳过整条记录
+ *      [byte version] 编码格式版本
+ *      [byte fieldCount] 字段数量
+ *      字段依次为[byte tag][int length][value]
+ * 版本兼容：
+ *      字段按tag标识，解码时跳过不认识的tag（旧版本读取新数据），缺少的字段使用默认值（新版本读取旧数据）
+ *      新增字段只需要分配新的tag，不能修改已有tag的含义
+ * 零拷贝：
+ *      编码时CharsetEncoder直接将name写入目标ByteBuffer，不生成中间的byte[]
+ *      解码时直接从ByteBuffer（可以是DirectByteBuffer或MappedByteBuffer）读取，只在创建Request时生成一次String
+ *      只需要查看字段时使用RequestFlyweight，不需要完整解码
+ * 字符编码：
+ *      编码时字符串中有不成对的代理字符等无法编码的内容时抛出IllegalArgumentException，不会写入被截断的字段
+ *      解码时非法的UTF-8字节替换为U+FFFD，帧长度不受影响，后续字段和帧仍然可以正常读取
+ */
+public class RequestCodec {
+
+    public static final byte VERSION = 4;
+
+    public static final byte TAG_NAME = 1;
+    public static final byte TAG_PRIORITY = 2; // 版本2新增
+    public static final byte TAG_DEADLINE = 3; // 版本2新增
+    public static final byte TAG_TENANT = 4; // 版本3新增
+    public static final byte TAG_ID = 5; // 版本4新增
+
+    static final int FRAME_HEADER = 4 + 1 + 1; // frameLength + version + fieldCount
+    static final int FIELD_HEADER = 1 + 4; // tag + length
+
+    private static final ThreadLocal<CharsetEncoder> ENCODER = ThreadLocal.withInitial(StandardCharsets.UTF_8::newEncoder);
+    private static final ThreadLocal<CharsetDecoder> DECODER = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE));
+    private static final ThreadLocal<CharBuffer> CHARS = ThreadLocal.withInitial(() -> CharBuffer.allocate(256));
+
+    private RequestCodec() {
+    }
+
+    /**
+     * 编码后的字节数（包含frameLength）
+     */
+    public static int encodedLength(Request request) {
+        int length = FRAME_HEADER + FIELD_HEADER + 8; // id
+        if (request.getName() != null) length += FIELD_HEADER + utf8Length(request.getName());
+        if (request.getPriority() != 0) length += FIELD_HEADER + 4;
+        if (request.getDeadline() != 0) length += FIELD_HEADER + 8;
+        if (request.getTenant() != null) length += FIELD_HEADER + utf8Length(request.getTenant());
+        return length;
+    }
+
+    /**
+     * 从buffer的position开始写入一帧，写入后position移动到帧末尾
+     * @throws BufferOverflowException 剩余空间不足时抛出，position保持不变
+     * @throws IllegalArgumentException 字符串无法编码为UTF-8时抛出，position保持不变
+     */
+    public static int encode(Request request, ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < encodedLength(request)) throw new BufferOverflowException();
+        try {
+            return encodeFields(request, buffer, start);
+        } catch (RuntimeException e) {
+            buffer.position(start); // 不留下写了一半的帧
+            throw e;
+        }
+    }
+
+    private static int encodeFields(Request request, ByteBuffer buffer, int start) {
+        buffer.position(start + FRAME_HEADER);
+        buffer.put(TAG_ID).putInt(8).putLong(request.getId());
+        int fieldCount = 1;
+        if (request.getName() != null) {
+            putString(buffer, TAG_NAME, request.getName());
+            fieldCount++;
+        }
+        if (request.getPriority() != 0) { // 默认值不写入，减少体积
+            buffer.put(TAG_PRIORITY).putInt(4).putInt(request.getPriority());
+            fieldCount++;
+        }
+        if (request.getDeadline() != 0) {
+            buffer.put(TAG_DEADLINE).putInt(8).putLong(request.getDeadline());
+            fieldCount++;
+        }
+        if (request.getTenant() != null) {
+            putString(buffer, TAG_TENANT, request.getTenant());
+            fieldCount++;
+        }
+        buffer.put(start + 4, VERSION);
+        buffer.put(start + 5, (byte) fieldCount);
+        int length = buffer.position() - start;
+        buffer.putInt(start, length - 4);
+        return length;
+    }
+
+    /**
+     * 从buffer的position开始读取一帧，读取后position移动到帧末尾
+     * @throws IllegalArgumentException 帧长度或字段长度越界时抛出（数据损坏或客户端发送了非法数据），position保持不变
+     */
+    public static Request decode(ByteBuffer buffer) {
+        return decode(buffer, -1);
+    }
+
+    /**
+     * 读取请求日志中的一帧
+     * @param journalOffset 帧在请求日志中的位置，作为请求的位置，没有id的旧版本帧由位置决定id
+     */
+    public static Request decode(ByteBuffer buffer, long journalOffset) {
+        int start = buffer.position();
+        int end = start + checkFrameLength(buffer.getInt(start));
+        if (end > buffer.limit()) throw new IllegalArgumentException("帧不完整: " + (end - start) + " > " + (buffer.limit() - start));
+        int fieldCount = buffer.get(start + 5) & 0xFF;
+        String name = null;
+        int priority = 0;
+        long deadline = 0;
+        String tenant = null;
+        long id = 0;
+        int offset = start + FRAME_HEADER;
+        for (int i = 0; i < fieldCount; i++) {
+            if (end - offset < FIELD_HEADER) throw new IllegalArgumentException("第" + i + "个字段超出帧末尾");
+            byte tag = buffer.get(offset);
+            int length = buffer.getInt(offset + 1);
+            int value = offset + FIELD_HEADER;
+            if (length < 0 || length > end - value) throw new IllegalArgumentException("第" + i + "个字段长度越界: " + length);
+            if (length < fixedLength(tag)) throw new IllegalArgumentException("第" + i + "个字段(tag " + tag + ")长度不足: " + length);
+            if (tag == TAG_NAME) name = getString(buffer, value, length);
+            else if (tag == TAG_PRIORITY) priority = buffer.getInt(value);
+            else if (tag == TAG_DEADLINE) deadline = buffer.getLong(value);
+            else if (tag == TAG_TENANT) tenant = getString(buffer, value, length);
+            else if (tag == TAG_ID) id = buffer.getLong(value);
+            // 不认识的tag直接跳过
+            offset = value + length;
+        }
+        buffer.position(end);
+        return new Request(id, name, priority, deadline, tenant, journalOffset);
+    }
+
+    /**
+     * 帧的总长度（包含frameLength），buffer中不足一帧时返回-1，用于从流中分帧
+     * @throws IllegalArgumentException 声明的帧长度小于帧头时抛出，流中之后的字节无法再分帧
+     */
+    public static int frameLength(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) return -1;
+        int length = checkFrameLength(buffer.getInt(buffer.position()));
+        return buffer.remaining() < length ? -1 : length;
+    }
+
+    /**
+     * 校验帧开头的frameLength
+     * @return 帧的总长度（包含frameLength）
+     */
+    static int checkFrameLength(int declared) {
+        if (declared < FRAME_HEADER - 4 || declared > Integer.MAX_VALUE - 4)
+            throw new IllegalArgumentException("非法的帧长度: " + declared);
+        return 4 + declared;
+    }
+
+    /**
+     * 定长字段的最小长度，变长和不认识的字段为0
+     */
+    private static int fixedLength(byte tag) {
+        if (tag == TAG_PRIORITY) return 4;
+        if (tag == TAG_DEADLINE || tag == TAG_ID) return 8;
+        return 0;
+    }
+
+    static void putString(ByteBuffer buffer, byte tag, String value) {
+        buffer.put(tag);
+        int lengthAt = buffer.position();
+        buffer.position(lengthAt + 4);
+        CharsetEncoder encoder = ENCODER.get().reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(value), buffer, true); // 直接编码到目标buffer
+        if (result.isUnderflow()) result = encoder.flush(buffer);
+        if (result.isOverflow()) throw new BufferOverflowException();
+        if (result.isError()) throw new IllegalArgumentException("无法编码为UTF-8(" + result + "): " + value);
+        buffer.putInt(lengthAt, buffer.position() - lengthAt - 4);
+    }
+
+    static String getString(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer source = buffer.duplicate();
+        source.limit(offset + length).position(offset);
+        CharBuffer chars = CHARS.get();
+        if (chars.capacity() < length) { // UTF-8的字符数不超过字节数
+            chars = CharBuffer.allocate(length);
+            CHARS.set(chars);
+        }
+        chars.clear();
+        DECODER.get().reset().decode(source, chars, true);
+        chars.flip();
+        return chars.toString();
+    }
+
+    static int utf8Length(CharSequence value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) length += 1;
+            else if (c < 0x800) length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else length += 3;
+        }
+        return length;
+    }
+
+    public static void main(String[] args) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        for (int i = 0; i < 3; i++)
+            RequestCodec.encode(new Request("佳欢" + i, i, 0, "tenant-" + i % 2), buffer);
+        buffer.flip();
+
+        RequestFlyweight flyweight = new RequestFlyweight();
+        for (int offset = 0; offset < buffer.limit(); offset += flyweight.frameLength()) {
+            flyweight.wrap(buffer, offset); // 不解码，直接查看字段
+            System.out.println("version: " + flyweight.version() + ", length: " + flyweight.frameLength() + ", 是否为佳欢1: " + flyweight.nameEquals("佳欢1") + ", priority: " + flyweight.priority() + ", tenant: " + flyweight.tenant());
+        }
+        while (buffer.hasRemaining())
+            System.out.println(RequestCodec.decode(buffer));
+    }
+
+}
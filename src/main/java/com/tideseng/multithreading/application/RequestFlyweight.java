@@ -0,0 +1,122 @@
+package com.tideseng.multithreading.application;
+
+import java.nio.ByteBuffer;
+
+/**
+ * RequestCodec编码数据的只读视图（享元模式）
+ *      wrap()只记录buffer和偏移量，字段按需从buffer中读取，不创建Request和String
+ *      同一个实例可以反复wrap不同的帧，遍历大量数据时没有对象分配
+ *      非线程安全，每个线程使用自己的实例
+ */
+public class RequestFlyweight {
+
+    private ByteBuffer buffer;
+    private int offset;
+
+    public RequestFlyweight wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * 帧的总长度（包含frameLength），用于移动到下一帧
+     */
+    public int frameLength() {
+        return 4 + buffer.getInt(offset);
+    }
+
+    public int version() {
+        return buffer.get(offset + 4);
+    }
+
+    public boolean hasField(byte tag) {
+        return fieldOffset(tag) >= 0;
+    }
+
+    /**
+     * 不解码比较name，逐个字符与UTF-8字节比较
+     */
+    public boolean nameEquals(CharSequence name) {
+        int field = fieldOffset(RequestCodec.TAG_NAME);
+        if (field < 0) return false;
+        int length = buffer.getInt(field + 1);
+        if (length != RequestCodec.utf8Length(name)) return false;
+        int position = field + RequestCodec.FIELD_HEADER;
+        for (int i = 0; i < name.length(); i++) {
+            int c = Character.codePointAt(name, i);
+            if (Character.isSupplementaryCodePoint(c)) i++;
+            if (c < 0x80) {
+                if (buffer.get(position++) != (byte) c) return false;
+            } else if (c < 0x800) {
+                if (buffer.get(position++) != (byte) (0xC0 | (c >> 6))
+                        || buffer.get(position++) != (byte) (0x80 | (c & 0x3F))) return false;
+            } else if (c < 0x10000) {
+                if (buffer.get(position++) != (byte) (0xE0 | (c >> 12))
+                        || buffer.get(position++) != (byte) (0x80 | ((c >> 6) & 0x3F))
+                        || buffer.get(position++) != (byte) (0x80 | (c & 0x3F))) return false;
+            } else {
+                if (buffer.get(position++) != (byte) (0xF0 | (c >> 18))
+                        || buffer.get(position++) != (byte) (0x80 | ((c >> 12) & 0x3F))
+                        || buffer.get(position++) != (byte) (0x80 | ((c >> 6) & 0x3F))
+                        || buffer.get(position++) != (byte) (0x80 | (c & 0x3F))) return false;
+            }
+        }
+        return true;
+    }
+
+    public String name() {
+        int field = fieldOffset(RequestCodec.TAG_NAME);
+        return field < 0 ? null : RequestCodec.getString(buffer, field + RequestCodec.FIELD_HEADER, buffer.getInt(field + 1));
+    }
+
+    /**
+     * 请求id，版本4之前的数据返回0
+     */
+    public long id() {
+        return longField(RequestCodec.TAG_ID, 0);
+    }
+
+    /**
+     * 租户字段，版本3之前的数据返回null
+     */
+    public String tenant() {
+        int field = fieldOffset(RequestCodec.TAG_TENANT);
+        return field < 0 ? null : RequestCodec.getString(buffer, field + RequestCodec.FIELD_HEADER, buffer.getInt(field + 1));
+    }
+
+    public int priority() {
+        return intField(RequestCodec.TAG_PRIORITY, 0);
+    }
+
+    public long deadline() {
+        return longField(RequestCodec.TAG_DEADLINE, 0);
+    }
+
+    /**
+     * 读取长整型字段，字段不存在时（旧版本数据）返回默认值
+     */
+    public long longField(byte tag, long defaultValue) {
+        int field = fieldOffset(tag);
+        return field < 0 ? defaultValue : buffer.getLong(field + RequestCodec.FIELD_HEADER);
+    }
+
+    /**
+     * 读取整型字段，字段不存在时（旧版本数据）返回默认值
+     */
+    public int intField(byte tag, int defaultValue) {
+        int field = fieldOffset(tag);
+        return field < 0 ? defaultValue : buffer.getInt(field + RequestCodec.FIELD_HEADER);
+    }
+
+    private int fieldOffset(byte tag) {
+        int fieldCount = buffer.get(offset + 5) & 0xFF;
+        int position = offset + RequestCodec.FRAME_HEADER;
+        for (int i = 0; i < fieldCount; i++) {
+            if (buffer.get(position) == tag) return position;
+            position += RequestCodec.FIELD_HEADER + buffer.getInt(position + 1);
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,31 @@
+package com.tideseng.multithreading.application;
+
+/**
+ * 请求的处理结果，由责任链的最后一个处理器生成
+ */
+public class Result {
+
+    private final Request request;
+    private final String processor; // 完成请求的处理器
+
+    public Result(Request request, String processor) {
+        this.request = request;
+        this.processor = processor;
+    }
+
+    public Request getRequest() {
+        return request;
+    }
+
+    public String getProcessor() {
+        return processor;
+    }
+
+    @Override
+    public String toString() {
+        return "Result{" +
+                "request=" + request +
+                ", processor='" + processor + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,79 @@
+package com.tideseng.multithreading.application;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * 责任链之条件路由
+ *      按注册顺序匹配谓词，请求交给第一个匹配的处理器，都不匹配时交给下一个责任链（用于跳过某些处理器）
+ *      路由表采用写时复制，process()只读取一次volatile引用，运行期间增删路由不需要停止责任链
+ *      路由在调用方线程中同步执行，不需要额外的线程和队列
+ */
+public class RouteProcessor implements IRequestProcessor {
+
+    // 路由表，写时复制
+    private volatile List<Route> routes = Collections.emptyList();
+    // 下一个处理器
+    private volatile IRequestProcessor nextProcessor;
+
+    public RouteProcessor() {
+    }
+
+    public RouteProcessor(IRequestProcessor nextProcessor) {
+        this.nextProcessor = nextProcessor;
+    }
+
+    public synchronized void addRoute(Predicate<Request> predicate, IRequestProcessor target) {
+        List<Route> copy = new ArrayList<>(routes);
+        copy.add(new Route(predicate, target));
+        routes = Collections.unmodifiableList(copy);
+    }
+
+    public synchronized boolean removeRoute(IRequestProcessor target) {
+        List<Route> copy = new ArrayList<>(routes);
+        boolean removed = copy.removeIf(route -> route.target == target);
+        routes = Collections.unmodifiableList(copy);
+        return removed;
+    }
+
+    public void setNextProcessor(IRequestProcessor nextProcessor) {
+        this.nextProcessor = nextProcessor;
+    }
+
+    @Override
+    public void process(Request request) {
+        try {
+            for (Route route : routes) {
+                if (route.predicate.test(request)) {
+                    route.target.process(request);
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            request.fail(e);
+            return;
+        }
+        IRequestProcessor next = nextProcessor;
+        if (next != null) next.process(request); // 都不匹配，跳过路由的处理器
+        else request.complete("RouteProcessor");
+    }
+
+    @Override
+    public void shutdown() {
+        for (Route route : routes) route.target.shutdown();
+        IRequestProcessor next = nextProcessor;
+        if (next != null) next.shutdown();
+    }
+
+    static class Route {
+        final Predicate<Request> predicate;
+        final IRequestProcessor target;
+
+        Route(Predicate<Request> predicate, IRequestProcessor target) {
+            this.predicate = predicate;
+            this.target = target;
+        }
+    }
+}
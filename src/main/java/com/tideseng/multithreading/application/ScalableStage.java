@@ -0,0 +1,440 @@
+package com.tideseng.multithreading.application;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * 运行时可调整的处理器，工作线程数、队列容量、批量大小和等待策略都可以在处理请求的同时修改
+ * 背景：
+ *      App在静态代码块中一次性构建责任链，每个处理器的线程数、队列类型和容量在类加载时固定，负载变化时只能重启，预热的缓存随之丢失
+ * 原理：
+ *      入队时在队列锁内分配序号，多个工作线程并行处理后进入重排序缓冲区，按序号依次交给下一个处理器，保持与单线程处理器相同的顺序
+ *      增加线程时直接启动新的工作线程；减少线程时被移除的线程处理完手中的批次后退出，不会丢弃已取出的请求
+ *      容量缩小时不丢弃已入队的请求，生产者阻塞到队列降到新容量以下；批量大小和等待策略在工作线程下一次取数据时生效
+ *      通过JMX(registerMBean)或configure(Properties)修改，配置可以来自重新加载的配置文件
+ * 说明：
+ *      失败的请求（包括抛出Error）以异常完成，同时占位释放序号，不会阻塞后续请求
+ *      某个请求处理很慢时，后续已处理完的请求在重排序缓冲区中等待，缓冲区大小可以通过getReorderBufferSize()观察
+ *      已取出未发出的请求（处理中和重排序缓冲区中）不超过capacity个，超过时工作线程等待最早的请求发出后再取，慢请求不会让缓冲区无限增长
+ */
+public class ScalableStage implements IRequestProcessor, ScalableStageMBean {
+
+    /**
+     * 工作线程在队列为空时的等待方式
+     */
+    public enum WaitStrategy {
+        /**
+         * 在Condition上等待，入队时唤醒，不占用CPU，唤醒有线程切换的延迟
+         */
+        BLOCKING,
+        /**
+         * 让出CPU后立即重试，延迟低但空闲时占用CPU
+         */
+        YIELDING,
+        /**
+         * park一小段时间后重试，入队时不需要唤醒
+         */
+        SLEEPING
+    }
+
+    private static final Request FAILED = new Request(null); // 重排序缓冲区中失败请求的占位
+    private static final long BLOCKING_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(50); // 定期醒来检查是否需要退出
+    private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final String name;
+    private final Consumer<Request> handler;
+    // 下一个处理器
+    private final IRequestProcessor nextProcessor;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition notBehind = lock.newCondition(); // 已取出未发出的请求降到capacity以下
+    private volatile int behindWaiters; // 在notBehind上等待的线程数，由lock保护写入
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>(); // 由lock保护
+    private long nextSequence; // 由lock保护
+
+    private final Map<Long, Request> reorderBuffer = new HashMap<>(); // 由自身保护
+    private volatile long nextToEmit; // 由reorderBuffer保护写入，drain()中无锁读取
+
+    private final List<Worker> workers = new CopyOnWriteArrayList<>();
+    private final AtomicInteger workerIds = new AtomicInteger();
+    private volatile int capacity;
+    private volatile int batchSize;
+    private volatile WaitStrategy waitStrategy;
+    private volatile boolean isFinished;
+    private final LongAdder processed = new LongAdder();
+
+    public ScalableStage(String name, Consumer<Request> handler, IRequestProcessor nextProcessor, int workers, int capacity) {
+        this(name, handler, nextProcessor, workers, capacity, 1, WaitStrategy.BLOCKING);
+    }
+
+    /**
+     * @param handler 处理逻辑，会被多个工作线程并发调用
+     * @param nextProcessor 下一个处理器，为null时请求在本处理器完成
+     */
+    public ScalableStage(String name, Consumer<Request> handler, IRequestProcessor nextProcessor,
+                         int workers, int capacity, int batchSize, WaitStrategy waitStrategy) {
+        this.name = name;
+        this.handler = handler;
+        this.nextProcessor = nextProcessor;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.waitStrategy = waitStrategy;
+        setWorkers(workers);
+    }
+
+    /**
+     * 注册到平台MBeanServer，ObjectName为com.tideseng.multithreading:type=ScalableStage,name=处理器名称
+     */
+    public ObjectName registerMBean() throws JMException {
+        ObjectName objectName = new ObjectName("com.tideseng.multithreading:type=ScalableStage,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * 按配置修改参数，配置项为：处理器名称.workers/capacity/batchSize/waitStrategy，缺少的配置项保持不变
+     */
+    public void configure(Properties properties) {
+        String value;
+        if ((value = properties.getProperty(name + ".capacity")) != null) setCapacity(Integer.parseInt(value.trim()));
+        if ((value = properties.getProperty(name + ".batchSize")) != null) setBatchSize(Integer.parseInt(value.trim()));
+        if ((value = properties.getProperty(name + ".waitStrategy")) != null) setWaitStrategy(value.trim());
+        if ((value = properties.getProperty(name + ".workers")) != null) setWorkers(Integer.parseInt(value.trim()));
+    }
+
+    @Override
+    public void process(Request request) {
+        try {
+            lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // 恢复中断标识
+            request.fail(e);
+            return;
+        }
+        try {
+            while (queue.size() >= capacity && !isFinished) notFull.await(); // 队列满时阻塞生产者，形成背压
+            if (isFinished) {
+                request.fail(new RejectedExecutionException(name + " is shut down"));
+                return;
+            }
+            queue.addLast(new Entry(nextSequence++, request));
+            notEmpty.signal();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.fail(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 停止接收新请求，工作线程处理完队列中的请求后退出
+     */
+    @Override
+    public void shutdown() {
+        isFinished = true;
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (nextProcessor != null) nextProcessor.shutdown();
+    }
+
+    /**
+     * 从队列中取出最多max个请求，队列为空时不阻塞
+     * 队首请求与最早未发出的请求相差capacity个以上时等待，直到前面的请求发出；最早未发出的请求总是可以取出，不会互相等待
+     */
+    private void drain(List<Entry> batch, int max, Worker worker) throws InterruptedException {
+        lock.lock();
+        try {
+            Entry entry;
+            while ((entry = queue.peekFirst()) != null && entry.sequence - nextToEmit >= capacity && !worker.retired) {
+                behindWaiters++;
+                try {
+                    if (entry.sequence - nextToEmit >= capacity) notBehind.awaitNanos(BLOCKING_TIMEOUT_NANOS); // 先登记再检查，emit()一定能看到等待者
+                } finally {
+                    behindWaiters--;
+                }
+            }
+            while (batch.size() < max && (entry = queue.peekFirst()) != null && entry.sequence - nextToEmit < capacity) batch.add(queue.pollFirst());
+            if (!batch.isEmpty()) notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void idle() throws InterruptedException {
+        switch (waitStrategy) {
+            case BLOCKING:
+                lock.lock();
+                try {
+                    if (queue.isEmpty() && !isFinished) notEmpty.awaitNanos(BLOCKING_TIMEOUT_NANOS);
+                } finally {
+                    lock.unlock();
+                }
+                break;
+            case YIELDING:
+                Thread.yield();
+                break;
+            default:
+                LockSupport.parkNanos(this, SLEEP_NANOS);
+        }
+    }
+
+    /**
+     * 处理完成（或失败）的请求按序号交给下一个处理器
+     */
+    private void emit(long sequence, Request request) {
+        synchronized (reorderBuffer) {
+            if (sequence != nextToEmit) { // 前面还有请求未处理完，先放入重排序缓冲区
+                reorderBuffer.put(sequence, request);
+                return;
+            }
+            forward(request);
+            nextToEmit++;
+            while ((request = reorderBuffer.remove(nextToEmit)) != null) {
+                forward(request);
+                nextToEmit++;
+            }
+        }
+        if (behindWaiters > 0) {
+            lock.lock();
+            try {
+                notBehind.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void forward(Request request) {
+        if (request == FAILED) return;
+        processed.increment();
+        try {
+            if (nextProcessor != null) nextProcessor.process(request); // 交给下一个责任链
+            else request.complete(name); // 最后一个责任链，通知请求完成
+        } catch (RuntimeException e) { // 异常不能中断发出，否则nextToEmit不再前进
+            request.fail(e);
+        }
+    }
+
+    private class Worker extends Thread {
+
+        private volatile boolean retired;
+
+        Worker(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            List<Entry> batch = new ArrayList<>();
+            while (!retired) {
+                try {
+                    drain(batch, batchSize, this);
+                    if (batch.isEmpty()) {
+                        if (isFinished && getQueueSize() == 0) break; // 已关闭且队列为空
+                        idle();
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    continue; // 中断只用于唤醒，由循环条件决定是否退出
+                }
+                for (Entry entry : batch) { // 取出的请求全部处理完才检查是否退出
+                    Request request = entry.request;
+                    try {
+                        handler.accept(request);
+                    } catch (Throwable e) { // 包括Error，工作线程退出前必须发出已取出的序号，否则后续请求永远停在重排序缓冲区
+                        request.fail(e); // 处理失败，通知调用方
+                        request = FAILED;
+                    }
+                    emit(entry.sequence, request);
+                }
+                batch.clear();
+            }
+            workers.remove(this);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getWorkers() {
+        int count = 0;
+        for (Worker worker : workers) if (!worker.retired) count++;
+        return count;
+    }
+
+    /**
+     * 增加时立即启动新线程，减少时多余的线程处理完当前批次后退出
+     */
+    @Override
+    public synchronized void setWorkers(int count) {
+        if (count < 1) throw new IllegalArgumentException("workers: " + count);
+        List<Worker> running = new ArrayList<>();
+        for (Worker worker : workers) if (!worker.retired) running.add(worker);
+        for (int i = running.size(); i < count; i++) {
+            Worker worker = new Worker(name + "-" + workerIds.incrementAndGet());
+            workers.add(worker);
+            worker.start();
+        }
+        for (int i = running.size() - 1; i >= count; i--) running.get(i).retired = true;
+        lock.lock();
+        try {
+            notEmpty.signalAll(); // 唤醒等待中的线程检查是否退出
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public void setCapacity(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity: " + capacity);
+        lock.lock();
+        try {
+            this.capacity = capacity;
+            notFull.signalAll(); // 扩容后唤醒阻塞的生产者
+            notBehind.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize: " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public String getWaitStrategy() {
+        return waitStrategy.name();
+    }
+
+    @Override
+    public void setWaitStrategy(String waitStrategy) {
+        setWaitStrategy(WaitStrategy.valueOf(waitStrategy.toUpperCase()));
+    }
+
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+        lock.lock();
+        try {
+            notEmpty.signalAll(); // 从BLOCKING切换时唤醒等待中的线程
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getQueueSize() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getReorderBufferSize() {
+        synchronized (reorderBuffer) {
+            return reorderBuffer.size();
+        }
+    }
+
+    @Override
+    public long getProcessedCount() {
+        return processed.sum();
+    }
+
+    private static class Entry {
+        final long sequence;
+        final Request request;
+
+        Entry(long sequence, Request request) {
+            this.sequence = sequence;
+            this.request = request;
+        }
+    }
+
+    /**
+     * 两个可调整的处理器组成责任链，持续提交请求的同时修改线程数、容量、批量大小和等待策略
+     *      最后一个处理器检查请求是否按提交顺序到达
+     */
+    public static void main(String[] args) throws Exception {
+        int n = 20_000;
+        AtomicInteger expected = new AtomicInteger();
+        AtomicInteger outOfOrder = new AtomicInteger();
+        ScalableStage save = new ScalableStage("SaveStage", request -> {
+            if (Integer.parseInt(request.getName()) != expected.getAndIncrement()) outOfOrder.incrementAndGet();
+        }, null, 1, 100);
+        ScalableStage print = new ScalableStage("PrintStage", request -> {
+            LockSupport.parkNanos(ThreadLocalRandom.current().nextInt(20_000)); // 模拟耗时不均匀的处理
+        }, save, 1, 100);
+        System.out.println("注册MBean: " + print.registerMBean() + ", " + save.registerMBean());
+
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < n; i++) print.process(new Request(String.valueOf(i)));
+        });
+        long start = System.nanoTime();
+        producer.start();
+
+        Properties reload = new Properties(); // 模拟重新加载的配置文件
+        reload.setProperty("PrintStage.workers", "4");
+        reload.setProperty("PrintStage.capacity", "1000");
+        reload.setProperty("PrintStage.batchSize", "16");
+        List<Runnable> changes = Arrays.asList(
+                () -> print.configure(reload),
+                () -> print.setWaitStrategy(WaitStrategy.SLEEPING),
+                () -> save.setBatchSize(64),
+                () -> print.setCapacity(10),
+                () -> print.setWorkers(2),
+                () -> print.setWaitStrategy(WaitStrategy.BLOCKING));
+        for (Runnable change : changes) {
+            TimeUnit.MILLISECONDS.sleep(100);
+            change.run();
+            System.out.println("PrintStage: workers=" + print.getWorkers() + ", capacity=" + print.getCapacity() + ", batchSize=" + print.getBatchSize()
+                    + ", waitStrategy=" + print.getWaitStrategy() + ", queue=" + print.getQueueSize() + ", reorder=" + print.getReorderBufferSize()
+                    + ", processed=" + print.getProcessedCount());
+        }
+        producer.join();
+        CompletableFuture<Result> last = print.processAsync(new Request(String.valueOf(n)));
+        last.get(30, TimeUnit.SECONDS);
+        System.out.println("处理" + save.getProcessedCount() + "个请求, 乱序: " + outOfOrder.get() + ", 耗时: "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        print.shutdown();
+    }
+
+}
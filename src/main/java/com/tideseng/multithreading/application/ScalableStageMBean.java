@@ -0,0 +1,35 @@
+package com.tideseng.multithreading.application;
+
+/**
+ * ScalableStage的JMX管理接口，通过jconsole/jmc等工具在运行时查看和调整处理器
+ */
+public interface ScalableStageMBean {
+
+    String getName();
+
+    int getWorkers();
+
+    void setWorkers(int workers);
+
+    int getCapacity();
+
+    void setCapacity(int capacity);
+
+    int getBatchSize();
+
+    void setBatchSize(int batchSize);
+
+    /**
+     * BLOCKING、YIELDING、SLEEPING
+     */
+    String getWaitStrategy();
+
+    void setWaitStrategy(String waitStrategy);
+
+    int getQueueSize();
+
+    int getReorderBufferSize();
+
+    long getProcessedCount();
+
+}
@@ -0,0 +1,130 @@
+package com.tideseng.multithreading.application;
+
+import com.tideseng.multithreading.juc.LatencyHistogram;
+import com.tideseng.multithreading.pool.ThreadAffinity;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 处理器线程的CPU放置（可选，仅Linux）
+ * 背景：
+ *      PreProcessor/PrintProcessor/SaveProcessor的线程由操作系统随意调度，相邻处理器之间交接请求时可能跨越CPU插槽
+ *      跨NUMA节点访问队列和请求对象需要经过互联总线，缓存命中率和延迟都会变差
+ * 原理：
+ *      按责任链顺序为处理器分配CPU，相邻处理器尽量放在同一个NUMA节点的相邻CPU上，节点CPU不足时才使用下一个节点
+ *      也可以通过配置显式指定每个处理器的CPU列表（taskset格式）
+ *      由start()在新线程中执行处理器的run()（与StageSupervisor重启处理器的方式相同），新线程开始时先从/proc/thread-self取得自己的内核线程号并绑定
+ *      不按线程名查找：JVM设置内核线程名是异步的且截断为15个字符，刚启动的线程可能找不到或找到同名前缀的其它线程
+ *      之后可以通过report()查看线程所在CPU和迁移次数
+ * 使用：
+ *      assign()之后调用start()代替处理器自身的start()，取不到线程号（非Linux）时不绑定，处理器照常运行
+ */
+public class StagePlacement {
+
+    private final Map<Thread, String> plan = new LinkedHashMap<>();
+    private final Map<Thread, Integer> tids = new ConcurrentHashMap<>(); // 由处理器线程写入
+
+    /**
+     * 按顺序自动分配CPU
+     */
+    public StagePlacement assign(Thread... stages) {
+        List<Integer> cpus = new ArrayList<>();
+        for (List<Integer> node : ThreadAffinity.numaTopology().values()) cpus.addAll(node); // 同一节点的CPU相邻
+        for (int i = 0; i < stages.length; i++)
+            assign(stages[i], String.valueOf(cpus.get(i % cpus.size())));
+        return this;
+    }
+
+    /**
+     * 显式指定CPU列表
+     */
+    public StagePlacement assign(Thread stage, String cpuList) {
+        if (stage.getState() != Thread.State.NEW)
+            throw new IllegalStateException("Stage must be assigned before it starts: " + stage.getName());
+        if (stage.getName().startsWith("Thread-")) // 默认线程名不便于查找，改为处理器名
+            stage.setName(stage.getClass().getSimpleName() + "-" + plan.size());
+        plan.put(stage, cpuList);
+        return this;
+    }
+
+    /**
+     * 启动处理器线程，线程开始执行run()之前绑定到计划的CPU
+     * @return 绑定成功的数量，所有线程都完成绑定后才返回
+     */
+    public int start() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(plan.size());
+        AtomicInteger pinned = new AtomicInteger();
+        for (Map.Entry<Thread, String> entry : plan.entrySet()) {
+            Thread stage = entry.getKey();
+            String cpuList = entry.getValue();
+            Thread runner = new Thread(() -> {
+                try {
+                    int tid = ThreadAffinity.currentTid(); // 在线程内部获取，不存在查找的竞争
+                    if (tid > 0) {
+                        tids.put(stage, tid);
+                        if (ThreadAffinity.pin(tid, cpuList)) pinned.incrementAndGet();
+                    }
+                } finally {
+                    started.countDown();
+                }
+                stage.run();
+            }, stage.getName());
+            runner.setDaemon(stage.isDaemon());
+            runner.start();
+        }
+        started.await();
+        return pinned.get();
+    }
+
+    /**
+     * 每个处理器线程的计划CPU、当前CPU和迁移次数
+     */
+    public String report() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<Thread, String> entry : plan.entrySet()) {
+            Integer tid = tids.get(entry.getKey());
+            builder.append(entry.getKey().getName()).append(" tid=").append(tid)
+                    .append(" 计划CPU=").append(entry.getValue())
+                    .append(" 当前CPU=").append(tid == null ? -1 : ThreadAffinity.currentCpu(tid))
+                    .append(" 迁移次数=").append(tid == null ? -1 : ThreadAffinity.migrations(tid)).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 对比绑定前后请求经过整条责任链的延迟
+     *      运行参数为pin时绑定CPU，在多插槽机器上分别运行两次进行对比
+     */
+    public static void main(String[] args) throws InterruptedException {
+        boolean pin = args.length > 0 && "pin".equals(args[0]);
+        Supplier<String> report = () -> "";
+        SaveProcessor saveProcessor = new SaveProcessor();
+        PrintProcessor printProcessor = new PrintProcessor(saveProcessor);
+        PreProcessor preProcessor = new PreProcessor(printProcessor);
+        if (pin) {
+            StagePlacement placement = new StagePlacement().assign(preProcessor, printProcessor, saveProcessor);
+            System.err.println("绑定成功: " + placement.start()); // 处理器会向标准输出打印请求，结果输出到标准错误
+            report = placement::report;
+        } else {
+            saveProcessor.start();
+            printProcessor.start();
+            preProcessor.start();
+        }
+
+        LatencyHistogram latency = new LatencyHistogram();
+        for (int i = 0; i < 20_000; i++) {
+            if (i == 10_000) latency.reset(); // 前一半用于预热
+            long start = System.nanoTime();
+            preProcessor.processAsync(new Request("佳欢" + i)).join();
+            latency.record(System.nanoTime() - start);
+        }
+        System.err.println((pin ? "绑定CPU: " : "不绑定CPU: ") + latency);
+        System.err.print(report.get());
+        System.exit(0); // 处理器线程阻塞在take()上，直接退出
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.tideseng.multithreading.application;
+
+import com.tideseng.multithreading.log.Logger;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 处理器线程监督者，处理器线程因未捕获的异常退出时自动重启
+ * 背景：
+ *      处理器线程的run()中抛出未捕获的异常（如Error、队列抛出的异常）时线程静默退出，队列中的请求无人处理，整条责任链停顿
+ * 原理：
+ *      为处理器线程设置UncaughtExceptionHandler，线程异常退出后按指数退避延迟重启，避免每次都立即失败导致空转
+ *      Thread不能重复start()，重启时创建新线程执行同一个处理器的run()，处理器的队列和下一个处理器都保留
+ *      处理器已关闭时run()直接返回，不会被重复重启
+ */
+public class StageSupervisor {
+
+    private static final Logger LOGGER = Logger.getLogger(StageSupervisor.class);
+
+    private final Map<Runnable, AtomicInteger> restarts = new ConcurrentHashMap<>();
+    private final Map<Thread, Runnable> replacements = new ConcurrentHashMap<>(); // 重启的线程 -> 处理器
+    private final ScheduledExecutorService scheduler;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Thread.UncaughtExceptionHandler handler = this::onCrash;
+
+    public StageSupervisor(long baseBackoffMillis, long maxBackoffMillis) {
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stage-supervisor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 监督处理器线程，在线程启动前调用
+     */
+    public StageSupervisor supervise(Thread... stages) {
+        for (Thread stage : stages) {
+            restarts.putIfAbsent(stage, new AtomicInteger());
+            stage.setUncaughtExceptionHandler(handler);
+        }
+        return this;
+    }
+
+    private void onCrash(Thread thread, Throwable e) {
+        Runnable stage = replacements.remove(thread);
+        if (stage == null) stage = thread; // 原处理器线程的Runnable是自身
+        AtomicInteger count = restarts.get(stage);
+        if (count == null || scheduler.isShutdown()) return;
+        int n = count.incrementAndGet();
+        long backoff = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(n - 1, 20));
+        LOGGER.warn("{}异常退出, {}ms后第{}次重启", thread.getName(), backoff, n, e);
+        try {
+            Runnable crashed = stage;
+            scheduler.schedule(() -> restart(crashed, thread.getName()), backoff, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) { // 已停止监督
+        }
+    }
+
+    private void restart(Runnable stage, String name) {
+        Thread replacement = new Thread(stage, name);
+        replacement.setUncaughtExceptionHandler(handler);
+        replacements.put(replacement, stage);
+        replacement.start();
+    }
+
+    /**
+     * 处理器线程被重启的次数
+     */
+    public int getRestartCount(Thread stage) {
+        AtomicInteger count = restarts.get(stage);
+        return count == null ? 0 : count.get();
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 处理某个请求时抛出Error导致线程退出，重启后后续请求继续处理
+     */
+    public static void main(String[] args) throws Exception {
+        SaveProcessor saveProcessor = new SaveProcessor();
+        PreProcessor preProcessor = new PreProcessor(new IRequestProcessor() {
+            @Override
+            public void process(Request request) {
+                if (request.getName().equals("crash")) throw new StackOverflowError("模拟线程崩溃");
+                saveProcessor.process(request);
+            }
+
+            @Override
+            public void shutdown() {
+                saveProcessor.shutdown();
+            }
+        });
+        preProcessor.setName("PreProcessor");
+        saveProcessor.setName("SaveProcessor");
+        StageSupervisor supervisor = new StageSupervisor(10, 1000).supervise(preProcessor, saveProcessor);
+        saveProcessor.start();
+        preProcessor.start();
+
+        preProcessor.process(new Request("crash"));
+        CompletableFuture<Result> future = preProcessor.processAsync(new Request("佳欢"));
+        System.out.println("完成: " + future.get(5, TimeUnit.SECONDS) + ", 重启次数: " + supervisor.getRestartCount(preProcessor));
+        preProcessor.shutdown();
+        supervisor.stop();
+    }
+
+}
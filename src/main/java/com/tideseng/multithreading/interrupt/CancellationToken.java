@@ -0,0 +1,226 @@
+package com.tideseng.multithreading.interrupt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * 协作式取消令牌
+ * 背景：
+ *      忙循环轮询isInterrupted()会一直占用CPU，捕获InterruptedException后只打印异常会吞掉中断标识，导致取消请求被忽略
+ *      中断标识属于线程而不属于任务，线程池中的线程被中断后如果不复位，会影响该线程执行的下一个任务
+ * 原理：
+ *      cancelled被volatile修饰，热点循环中通过isCancellationRequested()检查，只有一次内存读取
+ *      取消时依次执行注册的回调，回调可以中断阻塞中的线程、取消CompletableFuture或取消子令牌
+ *      子令牌在父令牌取消时一起取消，取消子令牌不会影响父令牌，从而实现任务树的取消传播
+ *      通过supplyAsync()提交的任务在取消时会中断执行线程，使阻塞在sleep/wait/take上的任务及时释放线程池线程
+ *      中断由令牌发出时，任务结束后会复位该线程的中断标识，避免污染线程池中的下一个任务
+ */
+public class CancellationToken {
+
+    private volatile boolean cancelled;
+    private final List<Runnable> callbacks = new ArrayList<>(); // 由this保护
+    private volatile Registration parentRegistration;
+
+    public static CancellationToken create() {
+        return new CancellationToken();
+    }
+
+    /**
+     * 创建子令牌，父令牌取消时子令牌一起取消
+     */
+    public CancellationToken child() {
+        CancellationToken child = new CancellationToken();
+        child.parentRegistration = onCancel(child::cancel);
+        return child;
+    }
+
+    public boolean isCancellationRequested() {
+        return cancelled;
+    }
+
+    public void throwIfCancellationRequested() {
+        if (cancelled) throw new CancellationException();
+    }
+
+    /**
+     * 请求取消，重复调用时只有第一次生效
+     */
+    public void cancel() {
+        Runnable[] toRun;
+        synchronized (this) {
+            if (cancelled) return;
+            cancelled = true;
+            toRun = callbacks.toArray(new Runnable[0]);
+            callbacks.clear();
+        }
+        RuntimeException failure = null;
+        for (Runnable callback : toRun) { // 在锁外执行回调，避免回调中再次访问令牌时死锁
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                if (failure == null) failure = e; else failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * 注册取消回调，令牌已取消时立即执行
+     * @return 用于注销回调的句柄，任务正常结束后应注销，避免长生命周期的令牌持有大量回调
+     */
+    public Registration onCancel(Runnable callback) {
+        synchronized (this) {
+            if (!cancelled) {
+                callbacks.add(callback);
+                return () -> {
+                    synchronized (CancellationToken.this) {
+                        callbacks.remove(callback);
+                    }
+                };
+            }
+        }
+        callback.run();
+        return () -> { };
+    }
+
+    /**
+     * 子令牌不再使用时从父令牌中注销
+     */
+    public void dispose() {
+        Registration registration = parentRegistration;
+        if (registration != null) registration.close();
+    }
+
+    /**
+     * 将CompletableFuture与令牌绑定
+     *      令牌取消时取消future，依赖它的thenApply/thenCompose等后续阶段会以CancellationException异常完成
+     *      future先被外部取消时同样取消令牌，使上游任务停止工作
+     */
+    public <T> CompletableFuture<T> bind(CompletableFuture<T> future) {
+        Registration registration = onCancel(() -> future.cancel(false));
+        future.whenComplete((result, error) -> {
+            registration.close();
+            if (future.isCancelled()) cancel();
+        });
+        return future;
+    }
+
+    /**
+     * 在线程池中执行可取消的任务
+     *      每个任务持有一个子令牌，调用返回的future.cancel()或取消当前令牌都会取消该任务
+     *      任务未开始时直接跳过，执行中时中断执行线程
+     */
+    public <T> CompletableFuture<T> supplyAsync(Supplier<T> task, Executor executor) {
+        CancellationToken token = child();
+        CompletableFuture<T> future = new CompletableFuture<>();
+        token.bind(future);
+        future.whenComplete((result, error) -> token.dispose());
+        executor.execute(new InterruptibleTask<>(token, task, future));
+        return future;
+    }
+
+    /**
+     * 在令牌取消或超时前阻塞等待，不占用CPU
+     * @return 令牌是否已取消
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        Registration registration = onCancel(latch::countDown);
+        try {
+            return latch.await(timeout, unit);
+        } finally {
+            registration.close();
+        }
+    }
+
+    /**
+     * 捕获InterruptedException后恢复中断标识，让调用栈上层仍然能感知到中断
+     */
+    public static void restoreInterrupt(InterruptedException e) {
+        Thread.currentThread().interrupt();
+    }
+
+    /**
+     * 回调注销句柄
+     */
+    public interface Registration extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    static class InterruptibleTask<T> implements Runnable {
+
+        private final CancellationToken token;
+        private final Supplier<T> task;
+        private final CompletableFuture<T> future;
+        private Thread runner; // 由this保护
+        private boolean interruptedByToken; // 由this保护
+
+        InterruptibleTask(CancellationToken token, Supplier<T> task, CompletableFuture<T> future) {
+            this.token = token;
+            this.task = task;
+            this.future = future;
+        }
+
+        @Override
+        public void run() {
+            if (token.isCancellationRequested()) return; // 排队期间已被取消，不再执行
+            synchronized (this) {
+                runner = Thread.currentThread();
+            }
+            Registration registration = token.onCancel(this::interruptRunner);
+            try {
+                future.complete(task.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(token.isCancellationRequested() ? new CancellationException() : e);
+            } finally {
+                registration.close();
+                synchronized (this) {
+                    runner = null;
+                    if (interruptedByToken) Thread.interrupted(); // 只复位由令牌发出的中断，其它来源的中断(如shutdownNow)保持不变
+                }
+            }
+        }
+
+        private synchronized void interruptRunner() {
+            if (runner != null) {
+                interruptedByToken = true;
+                runner.interrupt();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        CancellationToken root = CancellationToken.create();
+
+        CompletableFuture<Long> spin = root.supplyAsync(() -> { // 热点循环通过令牌检查取消
+            long i = 0;
+            while (!root.isCancellationRequested()) i++;
+            return i;
+        }, executorService);
+        CompletableFuture<String> blocked = root.supplyAsync(() -> { // 阻塞中的任务通过中断唤醒
+            try {
+                TimeUnit.SECONDS.sleep(30);
+                return "完成";
+            } catch (InterruptedException e) {
+                restoreInterrupt(e);
+                throw new CancellationException();
+            }
+        }, executorService);
+        CompletableFuture<String> chain = blocked.thenApply(s -> s + "后续处理");
+
+        TimeUnit.MILLISECONDS.sleep(100);
+        long start = System.nanoTime();
+        root.cancel(); // 取消整棵任务树
+        System.out.println("spin: " + spin.handle((r, e) -> r != null ? "计数" + r : "已取消").get());
+        System.out.println("blocked: " + blocked.isCancelled() + ", chain: " + chain.isCompletedExceptionally());
+
+        Future<Boolean> reused = executorService.submit(() -> Thread.currentThread().isInterrupted());
+        System.out.println("线程池线程中断标识: " + reused.get() + ", 释放耗时(ms): " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        executorService.shutdown();
+    }
+
+}
@@ -37,6 +37,7 @@ import java.util.concurrent.TimeUnit;
  *          os::interrupt调用了hotspot\hotspot-87ee5ee27509\src\share\vm\runtime\osThread.hpp文件的set_interrupted
  *              volatile jint _interrupted;     // Thread.isInterrupted state
  *              void set_interrupted(bool z) { _interrupted = z ? 1 : 0; }
+ *      示例中的忙循环会一直占用CPU，任务需要被取消时可使用CancellationToken实现协作式取消
  */
 public class ThreadInterrupt {
 
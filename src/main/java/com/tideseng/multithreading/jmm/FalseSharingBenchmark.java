@@ -0,0 +1,75 @@
+package com.tideseng.multithreading.jmm;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 伪共享测试：两个线程各自写入自己的volatile字段，对比字段相邻和字段之间填充一个缓存行的耗时
+ * 填充方式：
+ *      JVM会重排同一个类中的字段，直接在两个字段之间声明long p1~p7不一定有效
+ *      父类字段总是在子类字段之前，所以通过继承层次把填充字段夹在两个热点字段之间（与Disruptor的Sequence相同）
+ *      JDK8也可以使用@sun.misc.Contended，但需要-XX:-RestrictContended才对应用类生效
+ * 说明：
+ *      需要两个线程真正并行运行才能观察到差别，单核机器上两次结果接近
+ */
+public class FalseSharingBenchmark {
+
+    static final class Unpadded {
+        volatile long a;
+        volatile long b;
+    }
+
+    static class PaddedA {
+        volatile long a;
+    }
+
+    static class PaddedGap extends PaddedA {
+        long p1, p2, p3, p4, p5, p6, p7, p8;
+    }
+
+    static final class Padded extends PaddedGap {
+        volatile long b;
+    }
+
+    interface Writer {
+        void write(long value);
+    }
+
+    private static long run(Writer first, Writer second, long iterations) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = {
+                new Thread(() -> loop(start, first, iterations)),
+                new Thread(() -> loop(start, second, iterations))};
+        for (Thread thread : threads) thread.start();
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+        return System.nanoTime() - begin;
+    }
+
+    private static void loop(CountDownLatch start, Writer writer, long iterations) {
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (long i = 0; i < iterations; i++) writer.write(i);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (Runtime.getRuntime().availableProcessors() < 2) System.out.println("只有一个CPU，无法观察到伪共享");
+        System.out.println(FieldLayoutInspector.describe(Unpadded.class));
+        System.out.println(FieldLayoutInspector.describe(Padded.class));
+
+        long iterations = 100_000_000L;
+        for (int round = 0; round < 3; round++) {
+            Unpadded unpadded = new Unpadded();
+            Padded padded = new Padded();
+            long adjacent = run(v -> unpadded.a = v, v -> unpadded.b = v, iterations);
+            long separated = run(v -> padded.a = v, v -> padded.b = v, iterations);
+            System.out.printf("第%d轮 相邻: %.2fns/op, 填充: %.2fns/op%n", round,
+                    (double) adjacent / iterations, (double) separated / iterations);
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+package com.tideseng.multithreading.jmm;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 对象字段布局检查工具（类似JOL），用于发现伪共享
+ * 背景：
+ *      CPU缓存以缓存行(64字节)为单位，两个被不同线程频繁写入的字段位于同一缓存行时，每次写入都会使对方CPU的缓存行失效(MESI)
+ *      字段本身没有共享，但性能和共享一样差，称为伪共享(false sharing)
+ * 原理：
+ *      通过Unsafe.objectFieldOffset()获取每个实例字段相对对象起始地址的偏移量，按偏移量排序即为JVM实际的字段布局
+ *      JVM会重排字段（按long/double、int、short、byte、引用等大小分组），源码中的声明顺序不等于内存顺序，父类字段在子类字段之前
+ *      volatile字段通常会被多个线程写入，视为热点字段，两个热点字段的偏移量相差小于64字节时可能位于同一缓存行
+ *      对象起始地址只保证8字节对齐，所以这里按偏移量差值判断"可能"伪共享，而不是按偏移量/64判断
+ * 说明：
+ *      Unsafe不是标准API，只通过反射访问，源码中不引用sun.misc，编译时没有内部API警告，也可以使用--release 8编译
+ */
+public class FieldLayoutInspector {
+
+    static final int CACHE_LINE = 64;
+    private static final Object UNSAFE;
+    private static final Method OBJECT_FIELD_OFFSET;
+    private static final int REFERENCE_SIZE; // 开启压缩指针时为4
+
+    static {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = field.get(null);
+            OBJECT_FIELD_OFFSET = unsafeClass.getMethod("objectFieldOffset", Field.class);
+            REFERENCE_SIZE = (Integer) unsafeClass.getMethod("arrayIndexScale", Class.class).invoke(UNSAFE, Object[].class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static long objectFieldOffset(Field field) {
+        try {
+            return (Long) OBJECT_FIELD_OFFSET.invoke(UNSAFE, field);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 按内存顺序返回所有实例字段（包括父类字段）
+     */
+    public static List<FieldInfo> layout(Class<?> clazz) {
+        List<FieldInfo> fields = new ArrayList<>();
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) continue;
+                fields.add(new FieldInfo(field, objectFieldOffset(field)));
+            }
+        }
+        fields.sort(Comparator.comparingLong(FieldInfo::getOffset));
+        return fields;
+    }
+
+    /**
+     * 可能位于同一缓存行的热点字段
+     */
+    public static List<String> falseSharingCandidates(Class<?> clazz) {
+        List<FieldInfo> hot = new ArrayList<>();
+        for (FieldInfo info : layout(clazz)) {
+            if (info.isHot()) hot.add(info);
+        }
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < hot.size(); i++) {
+            for (int j = i + 1; j < hot.size(); j++) {
+                long distance = hot.get(j).offset - hot.get(i).offset;
+                if (distance < CACHE_LINE)
+                    result.add(hot.get(i).field.getName() + " <-> " + hot.get(j).field.getName() + " 相距" + distance + "字节");
+            }
+        }
+        return result;
+    }
+
+    public static String describe(Class<?> clazz) {
+        List<FieldInfo> fields = layout(clazz);
+        StringBuilder builder = new StringBuilder(clazz.getName()).append('\n');
+        long end = fields.isEmpty() ? 0 : fields.get(0).offset; // 第一个字段之前是对象头
+        builder.append(String.format("  %4d %4d  %s%n", 0, end, "(对象头)"));
+        for (FieldInfo info : fields) {
+            if (info.offset > end) builder.append(String.format("  %4d %4d  %s%n", end, info.offset - end, "(对齐填充)"));
+            builder.append(String.format("  %4d %4d  %s%n", info.offset, info.size, info));
+            end = Math.max(end, info.offset + info.size);
+        }
+        builder.append("  实例大小: ").append((end + 7) & ~7).append("字节\n");
+        for (String candidate : falseSharingCandidates(clazz)) builder.append("  可能伪共享: ").append(candidate).append('\n');
+        return builder.toString();
+    }
+
+    private static int sizeOf(Class<?> type) {
+        if (type == long.class || type == double.class) return 8;
+        if (type == int.class || type == float.class) return 4;
+        if (type == short.class || type == char.class) return 2;
+        if (type == byte.class || type == boolean.class) return 1;
+        return REFERENCE_SIZE;
+    }
+
+    public static class FieldInfo {
+        private final Field field;
+        private final long offset;
+        private final int size;
+
+        FieldInfo(Field field, long offset) {
+            this.field = field;
+            this.offset = offset;
+            this.size = sizeOf(field.getType());
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * volatile字段视为会被多个线程频繁写入
+         */
+        public boolean isHot() {
+            return Modifier.isVolatile(field.getModifiers());
+        }
+
+        @Override
+        public String toString() {
+            return (isHot() ? "volatile " : "") + field.getType().getSimpleName() + " "
+                    + field.getDeclaringClass().getSimpleName() + "." + field.getName();
+        }
+    }
+
+    /**
+     * 检查项目中的并发类，运行参数可以指定其它类的全限定名
+     */
+    public static void main(String[] args) throws ClassNotFoundException {
+        List<Class<?>> classes = new ArrayList<>();
+        String[] names = args.length > 0 ? args : new String[]{
+                "com.tideseng.multithreading.jmm.FalseSharingBenchmark$Unpadded",
+                "com.tideseng.multithreading.jmm.FalseSharingBenchmark$Padded",
+                "com.tideseng.multithreading.pool.CircuitBreaker",
+                "com.tideseng.multithreading.pool.HierarchicalTimingWheel",
+                "com.tideseng.multithreading.application.PrintProcessor",
+                "com.tideseng.multithreading.interrupt.CancellationToken",
+                "com.tideseng.multithreading.juc.SnapshotMap"};
+        for (String name : names) classes.add(Class.forName(name));
+        for (Class<?> clazz : classes) System.out.println(describe(clazz));
+    }
+
+}
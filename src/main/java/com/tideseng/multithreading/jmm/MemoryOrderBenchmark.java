@@ -0,0 +1,110 @@
+package com.tideseng.multithreading.jmm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * 不同内存语义读写的开销测试
+ * 背景：
+ *      ThreadVolatile只演示了volatile的可见性，没有说明volatile的代价，也没有说明什么时候可以使用更弱的内存语义
+ * 对应关系（JDK9的VarHandle在JDK8中的等价操作）：
+ *      plain            普通字段读写，JIT可以把读取提升到循环外、合并多次写入
+ *      opaque/acquire   JDK8没有公开的API，只能使用volatile读；x86上volatile读与普通读取一样是一条mov指令，只禁止编译器重排，acquire读没有更便宜的实现
+ *      release          AtomicLong.lazySet()/AtomicLongFieldUpdater.lazySet()，只有StoreStore屏障，x86上不需要lock指令
+ *      volatile         写入后有StoreLoad屏障(lock addl)，需要等待Store Buffer排空，是最贵的操作
+ *      fence            JDK8只有内部API(sun.misc.Unsafe)，效果上storeFence相当于release写入，fullFence相当于volatile写入
+ * 使用：
+ *      单写者发布数据（如队列的生产者序号、统计计数）时使用release写入 + volatile读取即可保证可见性和有序性，可以替换volatile写入
+ *      需要StoreLoad顺序时（如Dekker式互斥、先写自己的标识再读对方的标识）必须使用volatile写入
+ *      每个操作取多轮测试中的最小值，结果用于比较相对开销，精确的测试应使用JMH
+ */
+public class MemoryOrderBenchmark {
+
+    private static final AtomicLongFieldUpdater<Cell> VALUE = AtomicLongFieldUpdater.newUpdater(Cell.class, "value");
+
+    static final class Cell {
+        long plain;
+        volatile long value;
+    }
+
+    interface Op {
+        /**
+         * 返回值防止JIT消除无用代码
+         */
+        long run(Cell cell, AtomicLong atomic, int n);
+    }
+
+    private static final Map<String, Op> OPS = new LinkedHashMap<>();
+
+    static {
+        OPS.put("plain读", (cell, atomic, n) -> {
+            long sum = 0;
+            for (int i = 0; i < n; i++) sum += cell.plain; // 可能被提升到循环外
+            return sum;
+        });
+        OPS.put("volatile读", (cell, atomic, n) -> {
+            long sum = 0;
+            for (int i = 0; i < n; i++) sum += cell.value;
+            return sum;
+        });
+        OPS.put("AtomicLong.get(volatile读)", (cell, atomic, n) -> {
+            long sum = 0;
+            for (int i = 0; i < n; i++) sum += atomic.get();
+            return sum;
+        });
+        OPS.put("plain写", (cell, atomic, n) -> {
+            for (int i = 0; i < n; i++) cell.plain = i; // 可能被合并为一次写入
+            return cell.plain;
+        });
+        OPS.put("volatile写", (cell, atomic, n) -> {
+            for (int i = 0; i < n; i++) cell.value = i;
+            return cell.value;
+        });
+        OPS.put("FieldUpdater.lazySet(release)", (cell, atomic, n) -> {
+            for (int i = 0; i < n; i++) VALUE.lazySet(cell, i); // 不需要单独的AtomicLong对象
+            return cell.value;
+        });
+        OPS.put("AtomicLong.lazySet", (cell, atomic, n) -> {
+            for (int i = 0; i < n; i++) atomic.lazySet(i);
+            return atomic.get();
+        });
+        OPS.put("AtomicLong.set", (cell, atomic, n) -> {
+            for (int i = 0; i < n; i++) atomic.set(i);
+            return atomic.get();
+        });
+        OPS.put("AtomicLong.incrementAndGet", (cell, atomic, n) -> {
+            for (int i = 0; i < n; i++) atomic.incrementAndGet();
+            return atomic.get();
+        });
+    }
+
+    /**
+     * @return 每个操作的最小耗时(ns/op)
+     */
+    public static Map<String, Double> measure(int n, int rounds) {
+        Map<String, Double> result = new LinkedHashMap<>();
+        Cell cell = new Cell();
+        AtomicLong atomic = new AtomicLong();
+        long sink = 0;
+        for (Map.Entry<String, Op> entry : OPS.entrySet()) {
+            double best = Double.MAX_VALUE;
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                sink += entry.getValue().run(cell, atomic, n);
+                best = Math.min(best, (double) (System.nanoTime() - start) / n);
+            }
+            result.put(entry.getKey(), best);
+        }
+        if (sink == 42) System.out.println(); // 使用结果，防止JIT消除
+        return result;
+    }
+
+    public static void main(String[] args) {
+        measure(1_000_000, 10); // 预热，触发JIT编译
+        for (Map.Entry<String, Double> entry : measure(50_000_000, 5).entrySet())
+            System.out.printf("%-28s %6.2f ns/op%n", entry.getKey(), entry.getValue());
+    }
+
+}
@@ -2,6 +2,7 @@ package com.tideseng.multithreading.jmm;
 
 /**
  * 线程可见性
+ * volatile和更弱内存语义的开销参考MemoryOrderBenchmark，伪共享参考FalseSharingBenchmark和FieldLayoutInspector
  *
  * volatile作用
  *      使得在多处理器环境下保证共享数据的可见性
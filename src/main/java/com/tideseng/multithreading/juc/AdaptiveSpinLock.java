@@ -0,0 +1,278 @@
+package com.tideseng.multithreading.juc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 自适应自旋锁（先自旋再阻塞）
+ * 背景：
+ *      ReentrantLock获取锁失败后很快会进入acquireQueued()，经过shouldParkAfterFailedAcquire()后在parkAndCheckInterrupt()中挂起线程
+ *      挂起和唤醒线程需要用户态和内核态的切换，临界区比一次上下文切换还短时，阻塞的代价远大于等待的代价
+ * 原理：
+ *      与ReentrantLock一样基于AQS实现可重入的独占锁，state表示重入次数
+ *      lock()先自旋尝试获取锁，自旋时长为最近持有时间(指数加权平均)的2倍，等到持有者释放锁的概率较大
+ *          持有时间越长自旋越久，自旋时长超过上限（持有时间长到阻塞比自旋更划算）后不再自旋，直接排队挂起
+ *          与JDK1.6引入的synchronized自适应自旋类似，只是依据的是锁的持有时间
+ *      自旋阶段先读state再CAS(TTAS)，锁被占用时只读本地缓存行，避免大量CAS造成缓存行在CPU之间来回失效
+ *      同时自旋的线程数量不超过CPU核数的一半，其余线程直接进入AQS的CLH同步队列挂起，队列中的线程只关注前驱节点的状态
+ *      自旋的线程与被唤醒的队列头线程竞争锁（与非公平的ReentrantLock相同），队列非空时自旋仍然有效，自旋线程数有上限，队列中的线程不会一直抢不到锁
+ *      tryLock(timeout)同样先自旋，自旋时长不超过超时时间，剩余时间在队列中等待
+ *      自旋失败后调用acquire()，走与ReentrantLock相同的排队和挂起流程
+ * 统计：
+ *      持有时间：从获取锁(state由0变为非0)到释放锁(state变回0)，每16次获取采样一次，避免每次加锁都调用System.nanoTime()
+ *      等待时间：第一次tryAcquire失败后，从调用lock()到获取锁的时间（无竞争的加锁不计时）
+ */
+public class AdaptiveSpinLock implements Lock {
+
+    private static final long MIN_SPIN_NANOS = 1_000;
+    private static final long MAX_SPIN_NANOS = 50_000; // 超过该持有时间时阻塞比自旋更划算
+    private static final int SAMPLE_MASK = 15;
+    private static final int MAX_SPINNERS = Runtime.getRuntime().availableProcessors() / 2; // 单核CPU上自旋没有意义
+
+    private final Sync sync = new Sync();
+    private final AtomicInteger spinners = new AtomicInteger();
+    private final LatencyHistogram holdTimes = new LatencyHistogram();
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+    private final boolean statistics;
+    private volatile long averageHoldNanos = MIN_SPIN_NANOS;
+
+    public AdaptiveSpinLock() {
+        this(true);
+    }
+
+    /**
+     * @param statistics 是否记录持有时间和等待时间直方图
+     */
+    public AdaptiveSpinLock(boolean statistics) {
+        this.statistics = statistics;
+    }
+
+    final class Sync extends AbstractQueuedSynchronizer {
+
+        private static final long serialVersionUID = 1L;
+
+        private long acquiredAt; // 只有持有锁的线程读写，为0表示本次不采样
+        private int acquisitions; // 只有持有锁的线程读写
+
+        @Override
+        protected boolean tryAcquire(int acquires) {
+            Thread current = Thread.currentThread();
+            int c = getState();
+            if (c == 0) {
+                if (compareAndSetState(0, acquires)) {
+                    setExclusiveOwnerThread(current);
+                    acquiredAt = (++acquisitions & SAMPLE_MASK) == 0 ? System.nanoTime() : 0;
+                    return true;
+                }
+            } else if (current == getExclusiveOwnerThread()) { // 重入
+                int next = c + acquires;
+                if (next < 0) throw new Error("Maximum lock count exceeded");
+                setState(next);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected boolean tryRelease(int releases) {
+            if (Thread.currentThread() != getExclusiveOwnerThread())
+                throw new IllegalMonitorStateException();
+            int c = getState() - releases;
+            boolean free = c == 0;
+            if (free) {
+                if (acquiredAt != 0) {
+                    long held = System.nanoTime() - acquiredAt;
+                    averageHoldNanos += (held - averageHoldNanos) >> 3; // 指数加权平均，权重1/8
+                    if (statistics) holdTimes.record(held);
+                }
+                setExclusiveOwnerThread(null);
+            }
+            setState(c); // volatile写，释放锁之前的写操作对下一个获取锁的线程可见
+            return free;
+        }
+
+        @Override
+        protected boolean isHeldExclusively() {
+            return getExclusiveOwnerThread() == Thread.currentThread();
+        }
+
+        /**
+         * @param maxNanos 最长自旋时间，不超过自适应的自旋时长
+         */
+        boolean spinAcquire(long maxNanos) {
+            long limit = Math.max(MIN_SPIN_NANOS, averageHoldNanos * 2);
+            if (limit > MAX_SPIN_NANOS || spinners.get() >= MAX_SPINNERS) return false;
+            limit = Math.min(limit, maxNanos);
+            if (spinners.incrementAndGet() > MAX_SPINNERS) {
+                spinners.decrementAndGet();
+                return false;
+            }
+            try {
+                long deadline = System.nanoTime() + limit;
+                do {
+                    if (getState() == 0 && tryAcquire(1)) // 先读后CAS，与队列头被唤醒的线程竞争
+                        return true;
+                } while (System.nanoTime() < deadline);
+                return false;
+            } finally {
+                spinners.decrementAndGet();
+            }
+        }
+
+        boolean isLocked() {
+            return getState() != 0;
+        }
+
+        Thread owner() {
+            return getState() == 0 ? null : getExclusiveOwnerThread();
+        }
+
+        ConditionObject newCondition() {
+            return new ConditionObject();
+        }
+    }
+
+    @Override
+    public void lock() {
+        if (sync.tryAcquire(1)) return;
+        long start = statistics ? System.nanoTime() : 0;
+        if (!sync.spinAcquire(Long.MAX_VALUE))
+            sync.acquire(1); // 自旋失败，进入同步队列
+        if (statistics) waitTimes.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        if (Thread.interrupted()) throw new InterruptedException();
+        if (sync.tryAcquire(1)) return;
+        long start = statistics ? System.nanoTime() : 0;
+        if (!sync.spinAcquire(Long.MAX_VALUE))
+            sync.acquireInterruptibly(1);
+        if (statistics) waitTimes.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public boolean tryLock() {
+        return sync.tryAcquire(1);
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        if (Thread.interrupted()) throw new InterruptedException();
+        if (sync.tryAcquire(1)) return true;
+        long start = System.nanoTime();
+        long timeout = unit.toNanos(time);
+        boolean acquired = sync.spinAcquire(timeout)
+                || sync.tryAcquireNanos(1, timeout - (System.nanoTime() - start)); // 剩余时间在队列中等待
+        if (acquired && statistics) waitTimes.record(System.nanoTime() - start);
+        return acquired;
+    }
+
+    @Override
+    public void unlock() {
+        sync.release(1);
+    }
+
+    @Override
+    public Condition newCondition() {
+        return sync.newCondition();
+    }
+
+    public boolean isLocked() {
+        return sync.isLocked();
+    }
+
+    public int getQueueLength() {
+        return sync.getQueueLength();
+    }
+
+    /**
+     * 当前的自旋时长(ns)，为0表示直接阻塞
+     */
+    public long getSpinNanos() {
+        long limit = Math.max(MIN_SPIN_NANOS, averageHoldNanos * 2);
+        return limit > MAX_SPIN_NANOS ? 0 : limit;
+    }
+
+    public LatencyHistogram getHoldTimes() {
+        return holdTimes;
+    }
+
+    public LatencyHistogram getWaitTimes() {
+        return waitTimes;
+    }
+
+    @Override
+    public String toString() {
+        Thread owner = sync.owner();
+        return super.toString() + (owner == null ? "[Unlocked]" : "[Locked by thread " + owner.getName() + "]");
+    }
+
+    private static long counter;
+
+    /**
+     * 与ReentrantLock、synchronized对比吞吐量（临界区很短，多个线程激烈竞争）
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        int iterations = 2_000_000 / threads;
+        ReentrantLock reentrantLock = new ReentrantLock();
+        AdaptiveSpinLock adaptiveSpinLock = new AdaptiveSpinLock();
+        AdaptiveSpinLock noStatisticsLock = new AdaptiveSpinLock(false);
+        Object monitor = new Object();
+        for (int round = 0; round < 3; round++) { // 前几轮用于JIT预热
+            System.out.println("第" + (round + 1) + "轮，线程数: " + threads);
+            benchmark("ReentrantLock", threads, iterations, () -> {
+                reentrantLock.lock();
+                try {
+                    counter++;
+                } finally {
+                    reentrantLock.unlock();
+                }
+            });
+            benchmark("synchronized", threads, iterations, () -> {
+                synchronized (monitor) {
+                    counter++;
+                }
+            });
+            benchmark("AdaptiveSpinLock", threads, iterations, () -> {
+                adaptiveSpinLock.lock();
+                try {
+                    counter++;
+                } finally {
+                    adaptiveSpinLock.unlock();
+                }
+            });
+            benchmark("AdaptiveSpinLock(无统计)", threads, iterations, () -> {
+                noStatisticsLock.lock();
+                try {
+                    counter++;
+                } finally {
+                    noStatisticsLock.unlock();
+                }
+            });
+        }
+        System.out.println("持有时间: " + adaptiveSpinLock.getHoldTimes());
+        System.out.println("等待时间: " + adaptiveSpinLock.getWaitTimes());
+        System.out.println("自旋时长: " + adaptiveSpinLock.getSpinNanos() + "ns");
+    }
+
+    private static void benchmark(String name, int threads, int iterations, Runnable criticalSection) throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                for (int j = 0; j < iterations; j++) criticalSection.run();
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) worker.join();
+        long elapsed = System.nanoTime() - start;
+        System.out.println("  " + name + ": " + (long) threads * iterations * 1_000_000_000L / elapsed + " ops/s");
+    }
+
+}
@@ -0,0 +1,27 @@
+package com.tideseng.multithreading.juc;
+
+import java.util.Map;
+
+/**
+ * ShardedLruStore的后端存储，如数据库、远程缓存
+ */
+public interface BackingStore<K, V> {
+
+    /**
+     * 缓存未命中时读取，不存在时返回null
+     */
+    V load(K key) throws Exception;
+
+    /**
+     * 是否存在，用于幂等写入前的确认，默认通过load()判断
+     */
+    default boolean contains(K key) throws Exception {
+        return load(key) != null;
+    }
+
+    /**
+     * 批量写入脏数据（write-behind）
+     */
+    void storeAll(Map<K, V> entries) throws Exception;
+
+}
@@ -0,0 +1,58 @@
+package com.tideseng.multithreading.juc;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 基于本地文件的后端存储，用于本地运行和演示，代替数据库
+ *      内存中保存全部数据，每次storeAll()将全部数据序列化到临时文件后原子替换原文件，进程崩溃时不会留下写了一半的文件
+ *      替换成功后才更新内存中的数据，storeAll()失败时load()/contains()仍然返回写入之前的结果
+ *      loadDelayMillis模拟后端读取延迟
+ */
+public class FileBackingStore<K extends Serializable, V extends Serializable> implements BackingStore<K, V> {
+
+    private final Path file;
+    private final long loadDelayMillis;
+    private final Map<K, V> data = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    public FileBackingStore(Path file, long loadDelayMillis) throws IOException {
+        this.file = file;
+        this.loadDelayMillis = loadDelayMillis;
+        if (Files.exists(file) && Files.size(file) > 0) {
+            try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                data.putAll((Map<K, V>) in.readObject());
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    @Override
+    public V load(K key) throws InterruptedException {
+        if (loadDelayMillis > 0) Thread.sleep(loadDelayMillis);
+        return data.get(key);
+    }
+
+    @Override
+    public synchronized void storeAll(Map<K, V> entries) throws IOException {
+        Map<K, V> snapshot = new HashMap<>(data);
+        snapshot.putAll(entries);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeObject(snapshot);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        data.putAll(entries); // 写入成功后才对load()可见，写入失败时不会把未保存的数据当作已保存
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+}
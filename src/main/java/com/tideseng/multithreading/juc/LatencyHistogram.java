@@ -0,0 +1,73 @@
+package com.tideseng.multithreading.juc;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 并发延迟直方图
+ *      按2的n次方划分桶，第i个桶记录[2^(i-1), 2^i)纳秒范围内的样本，记录一次只需要一次LongAdder累加
+ *      LongAdder在竞争时将累加分散到多个Cell上，避免多个线程同时修改同一个缓存行
+ *      百分位数返回所在桶的上界，精度为2倍以内，适合观察数量级和长尾
+ */
+public class LatencyHistogram {
+
+    private final LongAdder[] buckets = new LongAdder[64];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        buckets[Math.min(63, 64 - Long.numberOfLeadingZeros(nanos))].increment();
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile 百分位数，取值(0, 100]
+     */
+    public long percentile(double percentile) {
+        long total = count.sum();
+        if (total == 0) return 0;
+        long target = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i].sum();
+            if (seen >= target) return i == 0 ? 0 : Math.min(max(), (1L << i) - 1);
+        }
+        return max();
+    }
+
+    public void reset() {
+        for (LongAdder bucket : buckets) bucket.reset();
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count() + ", mean=" + mean() + "ns, p50=" + percentile(50) + "ns, p99="
+                + percentile(99) + "ns, p999=" + percentile(99.9) + "ns, max=" + max() + "ns";
+    }
+
+}
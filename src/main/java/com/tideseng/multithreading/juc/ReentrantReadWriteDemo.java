@@ -7,6 +7,8 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * 重入读写锁，适用读多写少的场景
+ * 全局只有一把锁，写入时所有读线程都会被阻塞，分段加锁的实现参考ShardedLruStore
+ * 读操作也需要加锁，几乎只读的配置数据可以使用无锁读取的SnapshotMap
  */
 public class ReentrantReadWriteDemo {
 
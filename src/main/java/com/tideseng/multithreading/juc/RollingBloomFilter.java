@@ -0,0 +1,138 @@
+package com.tideseng.multithreading.juc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 滚动布隆过滤器，用于判断id最近是否出现过（去重索引）
+ * 原理：
+ *      布隆过滤器用k个散列位置表示一个元素，占用空间与元素本身无关（每个元素约10位即可达到1%误判率），不会漏判，可能误判
+ *      普通布隆过滤器不能删除元素，插入越多误判率越高；这里分为多代，新元素只写入当前代，查询时检查所有代
+ *      当前代插入数量达到容量时轮换：最老的一代清空后成为当前代，效果是只记住最近(代数 - 1) * 容量 ~ 代数 * 容量个元素，误判率约为代数 * 单代误判率，不随插入总数增长
+ *      位数组为AtomicLongArray，查询无锁；插入和轮换由this保护，不会在清空的过程中写入
+ * 说明：
+ *      mightContain()返回false说明最近一定没有出现过，返回true时需要其它方式确认（如精确窗口或查询存储）
+ */
+public class RollingBloomFilter {
+
+    private final AtomicLongArray[] generations;
+    private final int mask; // 每代的位数 - 1
+    private final int hashes;
+    private final int capacity; // 每代的插入数量
+    private volatile int current;
+    private int inserted; // 由this保护
+
+    /**
+     * @param capacity 每代的插入数量
+     * @param falsePositiveRate 单代的误判率
+     * @param generations 代数，至少为2
+     */
+    public RollingBloomFilter(int capacity, double falsePositiveRate, int generations) {
+        if (generations < 2) throw new IllegalArgumentException("generations: " + generations);
+        long optimalBits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int bits = (int) Math.min(1 << 30, Long.highestOneBit(Math.max(64, optimalBits) * 2 - 1)); // 向上取整为2的幂
+        this.mask = bits - 1;
+        this.hashes = Math.max(1, (int) Math.round((double) bits / capacity * Math.log(2)));
+        this.capacity = capacity;
+        this.generations = new AtomicLongArray[generations];
+        for (int i = 0; i < generations; i++) this.generations[i] = new AtomicLongArray(bits / 64);
+    }
+
+    public boolean mightContain(long key) {
+        long h1 = mix(key);
+        long h2 = mix(h1) | 1; // 双重散列：第i个位置为h1 + i * h2
+        for (AtomicLongArray generation : generations)
+            if (contains(generation, h1, h2)) return true;
+        return false;
+    }
+
+    /**
+     * 插入元素，当前代已满时先轮换
+     */
+    public synchronized void put(long key) {
+        if (inserted >= capacity) rotate();
+        long h1 = mix(key);
+        long h2 = mix(h1) | 1;
+        AtomicLongArray generation = generations[current];
+        for (int i = 0; i < hashes; i++) {
+            int bit = (int) (h1 + i * h2) & mask;
+            int index = bit >>> 6;
+            long bitMask = 1L << bit;
+            long word;
+            while (((word = generation.get(index)) & bitMask) == 0 && !generation.compareAndSet(index, word, word | bitMask)); // 查询线程只读，CAS保证不覆盖同一个字中的其它位
+        }
+        inserted++;
+    }
+
+    private void rotate() {
+        int next = (current + 1) % generations.length;
+        AtomicLongArray oldest = generations[next];
+        for (int i = 0; i < oldest.length(); i++) oldest.set(i, 0);
+        current = next;
+        inserted = 0;
+    }
+
+    private boolean contains(AtomicLongArray generation, long h1, long h2) {
+        for (int i = 0; i < hashes; i++) {
+            int bit = (int) (h1 + i * h2) & mask;
+            if ((generation.get(bit >>> 6) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private static long mix(long key) { // MurmurHash3的finalizer，相邻的id也能均匀分布
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * 每代的位数
+     */
+    public int bitsPerGeneration() {
+        return mask + 1;
+    }
+
+    /**
+     * 写出全部位数组，用于检查点
+     */
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeInt(generations.length);
+        out.writeInt(mask + 1);
+        out.writeInt(current);
+        out.writeInt(inserted);
+        for (AtomicLongArray generation : generations)
+            for (int i = 0; i < generation.length(); i++) out.writeLong(generation.get(i));
+    }
+
+    /**
+     * 从检查点恢复，参数必须与写出时相同
+     */
+    public synchronized void readFrom(DataInput in) throws IOException {
+        if (in.readInt() != generations.length || in.readInt() != mask + 1) throw new IOException("RollingBloomFilter参数不一致");
+        current = in.readInt();
+        inserted = in.readInt();
+        for (AtomicLongArray generation : generations)
+            for (int i = 0; i < generation.length(); i++) generation.set(i, in.readLong());
+    }
+
+    /**
+     * 插入100万个id，统计未插入的id的误判率，以及轮换后是否还能查到最近的id
+     */
+    public static void main(String[] args) {
+        RollingBloomFilter filter = new RollingBloomFilter(100_000, 0.01, 3);
+        int n = 1_000_000;
+        for (long id = 0; id < n; id++) filter.put(id);
+        int recent = 0, falsePositives = 0;
+        for (long id = n - 200_000; id < n; id++) if (filter.mightContain(id)) recent++;
+        for (long id = n; id < 2L * n; id++) if (filter.mightContain(id)) falsePositives++;
+        System.out.println("每代" + filter.bitsPerGeneration() / 8 / 1024 + "KB, " + filter.hashes + "个散列函数, 最近20万个id命中: " + recent
+                + ", 误判率: " + String.format("%.3f%%", falsePositives * 100.0 / n));
+    }
+
+}
@@ -0,0 +1,277 @@
+package com.tideseng.multithreading.juc;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 分段加锁的LRU缓存，支持读穿透(read-through)和异步回写(write-behind)
+ * 背景：
+ *      ReentrantReadWriteDemo中整个HashMap只有一把读写锁，任何一次写入都会阻塞所有读线程
+ * 原理：
+ *      按key的哈希值分到多个Segment，每个Segment继承ReentrantLock并维护一个按访问顺序排列的LinkedHashMap作为LRU链表
+ *          不同Segment的读写互不影响，锁竞争随分段数量增加而减少；LRU的读操作也会调整链表顺序，所以读写都使用独占锁
+ *      读穿透：未命中时在锁外调用BackingStore.load()，同一个key的并发加载只执行一次，其它线程等待同一个CompletableFuture
+ *      异步回写：put()只写缓存并记录脏数据，后台线程定时在锁外批量调用BackingStore.storeAll()，写入失败时放回脏数据等待下次重试
+ *          脏数据单独保存，被LRU淘汰的脏数据在写入后端之前仍然可以读到，不会读到后端中的旧值
+ */
+public class ShardedLruStore<K, V> implements AutoCloseable {
+
+    private final Segment<K, V>[] segments;
+    private final int segmentMask;
+    private final BackingStore<K, V> backingStore;
+    private final ScheduledExecutorService flusher;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder flushFailures = new LongAdder();
+
+    /**
+     * @param shards 分段数量，向上取整为2的n次方
+     * @param capacity 总容量，平均分配到每个分段
+     * @param flushInterval 回写间隔
+     */
+    @SuppressWarnings("unchecked")
+    public ShardedLruStore(int shards, int capacity, BackingStore<K, V> backingStore, long flushInterval, TimeUnit unit) {
+        int size = shards <= 1 ? 1 : Integer.highestOneBit(shards - 1) << 1;
+        this.segments = (Segment<K, V>[]) new Segment<?, ?>[size]; // 不能创建泛型数组
+        for (int i = 0; i < size; i++) segments[i] = new Segment<>(Math.max(1, capacity / size));
+        this.segmentMask = size - 1;
+        this.backingStore = backingStore;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lru-store-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, unit);
+    }
+
+    public V get(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        CompletableFuture<V> loading;
+        boolean loader = false;
+        lock(segment);
+        try {
+            V value = segment.find(key);
+            if (value != null) {
+                hits.increment();
+                return value;
+            }
+            loading = segment.loading.get(key);
+            if (loading == null) { // 第一个未命中的线程负责加载
+                loading = new CompletableFuture<>();
+                segment.loading.put(key, loading);
+                loader = true;
+            }
+        } finally {
+            segment.unlock();
+        }
+        misses.increment();
+        return loader ? load(segment, key, loading) : await(key, loading);
+    }
+
+    private V load(Segment<K, V> segment, K key, CompletableFuture<V> loading) {
+        V value;
+        try {
+            value = backingStore.load(key);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+            lock(segment);
+            try {
+                segment.loading.remove(key);
+            } finally {
+                segment.unlock();
+            }
+            loading.completeExceptionally(e);
+            throw new IllegalStateException("Load failed: " + key, e);
+        }
+        lock(segment);
+        try {
+            segment.loading.remove(key);
+            V current = segment.find(key); // 加载期间其它线程put的值更新
+            if (current != null) value = current;
+            else if (value != null) segment.cache.put(key, value);
+        } finally {
+            segment.unlock();
+        }
+        loading.complete(value);
+        return value;
+    }
+
+    private V await(K key, CompletableFuture<V> loading) {
+        try {
+            return loading.join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("Load failed: " + key, e.getCause());
+        }
+    }
+
+    public V put(K key, V value) {
+        if (key == null || value == null) throw new NullPointerException();
+        Segment<K, V> segment = segmentFor(key);
+        lock(segment);
+        try {
+            segment.dirty.put(key, value);
+            return segment.cache.put(key, value);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * 将所有分段的脏数据合并为一批写入后端，由后台线程定时调用，也可以手动调用
+     */
+    public synchronized void flush() {
+        Map<K, V> batch = new LinkedHashMap<>();
+        for (Segment<K, V> segment : segments) {
+            lock(segment);
+            try {
+                if (segment.dirty.isEmpty()) continue;
+                batch.putAll(segment.dirty);
+                segment.flushing = segment.dirty;
+                segment.dirty = new LinkedHashMap<>();
+            } finally {
+                segment.unlock();
+            }
+        }
+        if (batch.isEmpty()) return;
+        boolean stored = false;
+        try {
+            backingStore.storeAll(batch); // 在锁外写入，不阻塞读写
+            stored = true;
+        } catch (Exception e) {
+            flushFailures.increment();
+        }
+        for (Segment<K, V> segment : segments) {
+            lock(segment);
+            try {
+                if (segment.flushing == null) continue;
+                if (!stored) {
+                    for (Map.Entry<K, V> entry : segment.flushing.entrySet())
+                        segment.dirty.putIfAbsent(entry.getKey(), entry.getValue()); // 写入期间的新值优先
+                }
+                segment.flushing = null;
+            } finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            lock(segment);
+            try {
+                size += segment.cache.size();
+            } finally {
+                segment.unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 停止后台回写并写入剩余的脏数据
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        flush();
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        int h = key.hashCode() * 0x9E3779B9; // 斐波那契散列，相似的key也能均匀分布到各个分段
+        return segments[(h >>> 16) & segmentMask];
+    }
+
+    /**
+     * 统计锁竞争次数
+     */
+    private void lock(Segment<K, V> segment) {
+        if (!segment.tryLock()) {
+            contended.increment();
+            segment.lock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ShardedLruStore{shards=" + segments.length + ", size=" + size() + ", hits=" + hits.sum() + ", misses=" + misses.sum()
+                + ", contended=" + contended.sum() + ", flushFailures=" + flushFailures.sum() + "}";
+    }
+
+    static final class Segment<K, V> extends ReentrantLock {
+
+        private static final long serialVersionUID = 1L;
+
+        // 以下字段由Segment锁保护
+        final LinkedHashMap<K, V> cache;
+        final Map<K, CompletableFuture<V>> loading = new LinkedHashMap<>();
+        Map<K, V> dirty = new LinkedHashMap<>();
+        Map<K, V> flushing; // 正在写入后端的脏数据
+
+        Segment(int capacity) {
+            this.cache = new LinkedHashMap<K, V>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        V find(K key) {
+            V value = cache.get(key);
+            if (value != null) return value;
+            value = dirty.get(key);
+            if (value == null && flushing != null) value = flushing.get(key);
+            if (value != null) cache.put(key, value); // 被淘汰但未写入后端的脏数据重新放回缓存
+            return value;
+        }
+    }
+
+    /**
+     * 对比单个分段（相当于全局锁）和多个分段的读写吞吐量，并演示读穿透和异步回写
+     *      多核机器上分段越多锁竞争越少，单核机器上线程不会同时运行，差别不明显
+     */
+    public static void main(String[] args) throws Exception {
+        Path file = Files.createTempFile("lru-store", ".bin");
+        for (int shards : new int[]{1, 16}) {
+            try (ShardedLruStore<String, String> store = new ShardedLruStore<>(shards, 10_000, new FileBackingStore<>(file, 0), 100, TimeUnit.MILLISECONDS)) {
+                int threads = 4, ops = 500_000;
+                CountDownLatch done = new CountDownLatch(threads);
+                long start = System.nanoTime();
+                for (int t = 0; t < threads; t++) {
+                    new Thread(() -> {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        for (int i = 0; i < ops; i++) {
+                            String key = "key-" + random.nextInt(20_000);
+                            if (random.nextInt(10) < 2) store.put(key, "佳欢"); // 20%写
+                            else store.get(key);
+                        }
+                        done.countDown();
+                    }).start();
+                }
+                done.await();
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                System.out.println(shards + "个分段: " + threads * ops / Math.max(1, millis) + " ops/ms, " + store);
+            }
+        }
+
+        FileBackingStore<String, String> backingStore = new FileBackingStore<>(file, 50); // 模拟50ms的后端读取延迟
+        try (ShardedLruStore<String, String> store = new ShardedLruStore<>(16, 100, backingStore, 100, TimeUnit.MILLISECONDS)) {
+            String key = "key-1";
+            ExecutorService executorService = Executors.newFixedThreadPool(8);
+            long start = System.nanoTime();
+            for (int i = 0; i < 8; i++) executorService.submit(() -> store.get(key)); // 并发未命中只加载一次
+            executorService.shutdown();
+            executorService.awaitTermination(1, TimeUnit.SECONDS);
+            System.out.println("读穿透: " + store.get(key) + ", 耗时: " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms, " + store);
+        }
+        Files.deleteIfExists(file);
+    }
+
+}
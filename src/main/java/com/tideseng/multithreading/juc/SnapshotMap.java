@@ -0,0 +1,469 @@
+package com.tideseng.multithreading.juc;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * 多版本快照Map(MVCC)，适用于读远多于写的配置类数据
+ * 背景：
+ *      ReentrantReadWriteDemo中每次读取都要获取读锁，读锁本身也是一次CAS，大量读线程会在同一个state变量上竞争
+ * 原理：
+ *      数据保存在不可变的哈希数组映射前缀树(HAMT)中，每层按哈希值的5位选择子节点，节点只保存存在的子节点(bitmap压缩)
+ *      每个版本是一个不可变的Snapshot(版本号、根节点、大小)，current被volatile修饰
+ *          读操作只有一次volatile读，拿到的快照不会再变化，读线程之间、读线程和写线程之间没有任何竞争
+ *      写操作在写锁内基于当前版本执行，只复制从根到修改位置路径上的节点(O(log32 n))，其它节点与旧版本共享，最后一次volatile写发布新版本
+ *          update()将多个修改合并为一个版本，批内新建的节点直接原地修改，读线程要么看到全部修改，要么一个都看不到
+ *      旧版本只被持有快照的读线程引用，读线程不再使用快照后，不再共享的节点由GC回收，不需要引用计数
+ */
+public class SnapshotMap<K, V> {
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile Snapshot<K, V> current = new Snapshot<>(0, null, 0);
+
+    /**
+     * 获取当前版本的快照，之后的写入不影响该快照
+     */
+    public Snapshot<K, V> snapshot() {
+        return current;
+    }
+
+    public V get(K key) {
+        return current.get(key);
+    }
+
+    public int size() {
+        return current.size();
+    }
+
+    public V put(K key, V value) {
+        Object[] previous = new Object[1];
+        update(transaction -> previous[0] = transaction.put(key, value));
+        return cast(previous[0]);
+    }
+
+    public V remove(K key) {
+        Object[] previous = new Object[1];
+        update(transaction -> previous[0] = transaction.remove(key));
+        return cast(previous[0]);
+    }
+
+    /**
+     * 在一个版本中执行多个修改，mutations抛出异常时不发布任何修改
+     * @return 发布后的快照
+     */
+    public Snapshot<K, V> update(Consumer<Transaction<K, V>> mutations) {
+        writeLock.lock();
+        try {
+            Snapshot<K, V> base = current;
+            Transaction<K, V> transaction = new Transaction<>(base);
+            try {
+                mutations.accept(transaction);
+            } finally {
+                transaction.edit = null; // 事务结束后节点不再允许原地修改
+            }
+            if (transaction.root == base.root) return base; // 没有修改，不产生新版本
+            Snapshot<K, V> next = new Snapshot<>(base.version + 1, transaction.root, transaction.size);
+            current = next;
+            return next;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object value) {
+        return (T) value;
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 不可变的时间点视图
+     */
+    public static final class Snapshot<K, V> {
+        private final long version;
+        private final Node root;
+        private final int size;
+
+        Snapshot(long version, Node root, int size) {
+            this.version = version;
+            this.root = root;
+            this.size = size;
+        }
+
+        public long version() {
+            return version;
+        }
+
+        public V get(K key) {
+            if (root == null) return null;
+            return cast(root.find(0, hash(key), key));
+        }
+
+        public boolean containsKey(K key) {
+            return get(key) != null;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void forEach(BiConsumer<? super K, ? super V> action) {
+            if (root != null) root.forEach(action);
+        }
+
+        public Map<K, V> toMap() {
+            Map<K, V> map = new HashMap<>(size * 4 / 3 + 1);
+            forEach(map::put);
+            return map;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{version=" + version + ", " + toMap() + "}";
+        }
+    }
+
+    /**
+     * 一批修改，只能在update()中使用，可以读到本批次之前的修改
+     */
+    public static final class Transaction<K, V> {
+        private Object edit = new Object(); // 本批次新建节点的标识，相同标识的节点可以原地修改
+        private Node root;
+        private int size;
+
+        Transaction(Snapshot<K, V> base) {
+            this.root = base.root;
+            this.size = base.size;
+        }
+
+        public V get(K key) {
+            checkOpen();
+            return root == null ? null : cast(root.find(0, hash(key), key));
+        }
+
+        public V put(K key, V value) {
+            checkOpen();
+            if (key == null || value == null) throw new NullPointerException();
+            Box box = new Box();
+            Node node = root == null ? new BitmapNode(edit, 0, new Object[0]) : root;
+            root = node.assoc(edit, 0, hash(key), key, value, box);
+            if (!box.found) size++;
+            return cast(box.old);
+        }
+
+        public V remove(K key) {
+            checkOpen();
+            if (root == null) return null;
+            Box box = new Box();
+            root = root.without(edit, 0, hash(key), key, box);
+            if (box.found) size--;
+            return cast(box.old);
+        }
+
+        private void checkOpen() {
+            if (edit == null) throw new IllegalStateException("Transaction already committed");
+        }
+    }
+
+    static final class Box {
+        Object old;
+        boolean found;
+    }
+
+    interface Node {
+        /**
+         * @return 不存在时返回null
+         */
+        Object find(int shift, int hash, Object key);
+
+        Node assoc(Object edit, int shift, int hash, Object key, Object value, Box box);
+
+        /**
+         * @return 节点为空时返回null
+         */
+        Node without(Object edit, int shift, int hash, Object key, Box box);
+
+        @SuppressWarnings("rawtypes")
+        void forEach(BiConsumer action);
+    }
+
+    /**
+     * 位图节点，array中每两个元素为一组：[key, value]或[null, 子节点]
+     */
+    static final class BitmapNode implements Node {
+        final Object edit;
+        int bitmap;
+        Object[] array;
+
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        public Object find(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) return null;
+            int i = index(bit) << 1;
+            Object k = array[i];
+            if (k == null) return ((Node) array[i + 1]).find(shift + 5, hash, key);
+            return key.equals(k) ? array[i + 1] : null;
+        }
+
+        @Override
+        public Node assoc(Object edit, int shift, int hash, Object key, Object value, Box box) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int i = index(bit) << 1;
+            if ((bitmap & bit) != 0) {
+                Object k = array[i], v = array[i + 1];
+                if (k == null) { // 子节点
+                    Node child = ((Node) v).assoc(edit, shift + 5, hash, key, value, box);
+                    return child == v ? this : set(edit, i + 1, child);
+                }
+                if (key.equals(k)) { // 覆盖
+                    box.old = v;
+                    box.found = true;
+                    return v == value ? this : set(edit, i + 1, value);
+                }
+                // 哈希前缀冲突，下沉为子节点
+                BitmapNode node = set(edit, i, null);
+                node.array[i + 1] = createNode(edit, shift + 5, k, v, hash, key, value);
+                return node;
+            }
+            Object[] grown = new Object[array.length + 2];
+            System.arraycopy(array, 0, grown, 0, i);
+            grown[i] = key;
+            grown[i + 1] = value;
+            System.arraycopy(array, i, grown, i + 2, array.length - i);
+            if (edit != null && edit == this.edit) {
+                this.array = grown;
+                this.bitmap |= bit;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap | bit, grown);
+        }
+
+        @Override
+        public Node without(Object edit, int shift, int hash, Object key, Box box) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) return this;
+            int i = index(bit) << 1;
+            Object k = array[i], v = array[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).without(edit, shift + 5, hash, key, box);
+                if (child == v) return this;
+                if (child != null) return set(edit, i + 1, child);
+            } else if (key.equals(k)) {
+                box.old = v;
+                box.found = true;
+            } else {
+                return this;
+            }
+            if (bitmap == bit) return null;
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            if (edit != null && edit == this.edit) {
+                this.array = shrunk;
+                this.bitmap ^= bit;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap ^ bit, shrunk);
+        }
+
+        /**
+         * 本批次的节点原地修改，否则复制
+         */
+        private BitmapNode set(Object edit, int i, Object value) {
+            BitmapNode node = edit != null && edit == this.edit ? this : new BitmapNode(edit, bitmap, array.clone());
+            node.array[i] = value;
+            return node;
+        }
+
+        @Override
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        public void forEach(BiConsumer action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) ((Node) array[i + 1]).forEach(action);
+                else action.accept(array[i], array[i + 1]);
+            }
+        }
+    }
+
+    private static Node createNode(Object edit, int shift, Object k1, Object v1, int hash2, Object k2, Object v2) {
+        int hash1 = hash(k1);
+        if (hash1 == hash2) return new CollisionNode(edit, hash1, new Object[]{k1, v1, k2, v2});
+        Box box = new Box();
+        return new BitmapNode(edit, 0, new Object[0])
+                .assoc(edit, shift, hash1, k1, v1, box)
+                .assoc(edit, shift, hash2, k2, v2, box);
+    }
+
+    /**
+     * 哈希值完全相同的键值对，线性查找
+     */
+    static final class CollisionNode implements Node {
+        final Object edit;
+        final int hash;
+        Object[] array;
+
+        CollisionNode(Object edit, int hash, Object[] array) {
+            this.edit = edit;
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        public Object find(int shift, int hash, Object key) {
+            int i = indexOf(key);
+            return i < 0 ? null : array[i + 1];
+        }
+
+        @Override
+        public Node assoc(Object edit, int shift, int hash, Object key, Object value, Box box) {
+            if (hash != this.hash) { // 放到位图节点下面
+                int bit = 1 << ((this.hash >>> shift) & 31);
+                return new BitmapNode(edit, bit, new Object[]{null, this}).assoc(edit, shift, hash, key, value, box);
+            }
+            int i = indexOf(key);
+            Object[] updated;
+            if (i >= 0) {
+                box.old = array[i + 1];
+                box.found = true;
+                if (array[i + 1] == value) return this;
+                updated = edit != null && edit == this.edit ? array : array.clone();
+                updated[i + 1] = value;
+            } else {
+                updated = new Object[array.length + 2];
+                System.arraycopy(array, 0, updated, 0, array.length);
+                updated[array.length] = key;
+                updated[array.length + 1] = value;
+            }
+            if (edit != null && edit == this.edit) {
+                this.array = updated;
+                return this;
+            }
+            return new CollisionNode(edit, hash, updated);
+        }
+
+        @Override
+        public Node without(Object edit, int shift, int hash, Object key, Box box) {
+            int i = indexOf(key);
+            if (i < 0) return this;
+            box.old = array[i + 1];
+            box.found = true;
+            if (array.length == 2) return null;
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            if (edit != null && edit == this.edit) {
+                this.array = shrunk;
+                return this;
+            }
+            return new CollisionNode(edit, hash, shrunk);
+        }
+
+        @Override
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        public void forEach(BiConsumer action) {
+            for (int i = 0; i < array.length; i += 2) action.accept(array[i], array[i + 1]);
+        }
+    }
+
+    /**
+     * 写线程在两个账户之间转账，读线程检查总额是否一致，并对比读写锁的读吞吐量
+     */
+    public static void main(String[] args) throws InterruptedException {
+        SnapshotMap<String, Integer> accounts = new SnapshotMap<>();
+        accounts.update(transaction -> {
+            for (int i = 0; i < 1000; i++) transaction.put("account-" + i, 100);
+        });
+
+        ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        Map<String, Integer> locked = new HashMap<>(accounts.snapshot().toMap());
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            int i = 0;
+            while (running.get()) {
+                String from = "account-" + (i % 1000), to = "account-" + ((i + 1) % 1000);
+                accounts.update(transaction -> { // 两个修改在同一个版本中发布
+                    transaction.put(from, transaction.get(from) - 1);
+                    transaction.put(to, transaction.get(to) + 1);
+                });
+                lock.writeLock().lock();
+                try {
+                    locked.put(from, locked.get(from) - 1);
+                    locked.put(to, locked.get(to) + 1);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                i++;
+            }
+        });
+        writer.start();
+
+        int readers = 4, reads = 2_000_000;
+        LongAdder inconsistent = new LongAdder();
+        for (boolean mvcc : new boolean[]{false, true}) {
+            CountDownLatch done = new CountDownLatch(readers);
+            long start = System.nanoTime();
+            for (int r = 0; r < readers; r++) {
+                new Thread(() -> {
+                    for (int i = 0; i < reads; i++) {
+                        String key = "account-" + (i % 1000);
+                        if (mvcc) {
+                            accounts.get(key);
+                        } else {
+                            lock.readLock().lock();
+                            try {
+                                locked.get(key);
+                            } finally {
+                                lock.readLock().unlock();
+                            }
+                        }
+                    }
+                    done.countDown();
+                }).start();
+            }
+            done.await();
+            System.out.println((mvcc ? "SnapshotMap" : "ReentrantReadWriteLock") + " 读取耗时: "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        }
+
+        for (int i = 0; i < 1000; i++) { // 快照中的总额始终一致
+            int[] total = new int[1];
+            Snapshot<String, Integer> snapshot = accounts.snapshot();
+            snapshot.forEach((key, value) -> total[0] += value);
+            if (total[0] != 100_000) inconsistent.increment();
+        }
+        running.set(false);
+        writer.join();
+        System.out.println("版本: " + accounts.snapshot().version() + ", 大小: " + accounts.size() + ", 不一致的快照: " + inconsistent.sum());
+    }
+
+}
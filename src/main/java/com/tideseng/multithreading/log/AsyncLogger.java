@@ -0,0 +1,356 @@
+package com.tideseng.multithreading.log;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步日志输出
+ * 背景：
+ *      System.out.println()每次调用都对PrintStream加锁并同步执行write系统调用，多个处理器线程打印时在stdout上串行，处理速度受限于控制台I/O
+ * 原理：
+ *      环形数组的每个槽位预分配StringBuilder，生产者（业务线程）通过getAndIncrement()申请序号，将消息格式化到槽位后发布序号，无锁且不分配对象
+ *      后台线程按序号顺序消费已发布的槽位，补充时间、级别、线程名，编码到直接内存缓冲区，缓冲区满或没有新记录时才写入FileChannel
+ *      大量日志时一次write系统调用写出成百上千条记录；没有新记录时后台线程park等待，不占用CPU
+ *      级别过滤在格式化之前进行（见Logger），被过滤的日志只有一次volatile读
+ * 说明：
+ *      环形数组满时默认等待后台线程消费（不丢日志），dropWhenFull为true时直接丢弃并计数，业务线程不会被日志阻塞
+ *      默认实例输出到stdout，后台线程是守护线程，JVM退出时由shutdown hook写出剩余日志
+ */
+public class AsyncLogger implements AutoCloseable {
+
+    /**
+     * 环形数组的槽位，由申请到序号的生产者独占写入，发布后由后台线程读取
+     */
+    static final class Slot {
+        StringBuilder text = new StringBuilder(INITIAL_CAPACITY);
+        long sequence;
+        long timestamp;
+        Level level;
+        String logger;
+        Thread thread;
+    }
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MAX_RETAINED = 8192; // 超长消息消费后换回小的StringBuilder，避免长期占用内存
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLongArray published; // published[i] == 序号 表示该序号的槽位已写完
+    private final AtomicLong claimed = new AtomicLong(); // 下一个待申请的序号
+    private volatile long consumed; // 小于该序号的槽位都已被后台线程读取，可以重用
+    private volatile long written; // 小于该序号的记录都已写入通道
+    private final FileChannel channel;
+    private final boolean ownsChannel;
+    private final boolean dropWhenFull;
+    private final LongAdder dropped = new LongAdder();
+    private volatile Level level;
+    private volatile boolean closed;
+    private final Thread writer;
+
+    /**
+     * @param channel 输出通道，close()时不会关闭
+     * @param capacity 环形数组容量，向上取整为2的幂
+     * @param dropWhenFull 环形数组满时是否丢弃日志
+     */
+    public AsyncLogger(FileChannel channel, int capacity, Level level, boolean dropWhenFull) {
+        this(channel, false, capacity, level, dropWhenFull);
+    }
+
+    private AsyncLogger(FileChannel channel, boolean ownsChannel, int capacity, Level level, boolean dropWhenFull) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) slots[i] = new Slot();
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) published.set(i, -1);
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        this.level = level;
+        this.dropWhenFull = dropWhenFull;
+        this.writer = new Thread(this::writeLoop, "async-logger");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 输出到文件（追加写入），close()时关闭文件
+     */
+    public static AsyncLogger toFile(Path file, int capacity, Level level) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return new AsyncLogger(channel, true, capacity, level, false);
+    }
+
+    /**
+     * 默认实例，输出到stdout，级别由系统属性log.level指定（默认INFO）
+     */
+    public static AsyncLogger getDefault() {
+        return Holder.INSTANCE;
+    }
+
+    private static class Holder {
+        private static final AsyncLogger INSTANCE = createDefault();
+
+        private static AsyncLogger createDefault() {
+            Level level = Level.valueOf(System.getProperty("log.level", Level.INFO.name()).toUpperCase());
+            AsyncLogger logger = new AsyncLogger(new FileOutputStream(FileDescriptor.out).getChannel(), 8192, level, false);
+            Runtime.getRuntime().addShutdownHook(new Thread(logger::close, "async-logger-shutdown"));
+            return logger;
+        }
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= this.level.ordinal();
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * 申请一个槽位，调用方写入slot.text后必须调用publish()
+     * @return 已关闭或丢弃时返回null
+     */
+    Slot claim(Level level, String logger) {
+        if (closed) return null;
+        long sequence;
+        if (dropWhenFull) {
+            do {
+                sequence = claimed.get();
+                if (sequence - consumed >= slots.length) {
+                    dropped.increment();
+                    return null;
+                }
+            } while (!claimed.compareAndSet(sequence, sequence + 1));
+        } else {
+            sequence = claimed.getAndIncrement();
+            if (sequence - consumed >= slots.length) {
+                LockSupport.unpark(writer); // 后台线程可能在park，唤醒后等待它腾出槽位
+                while (sequence - consumed >= slots.length) {
+                    if (!writer.isAlive()) return null;
+                    Thread.yield();
+                }
+            }
+        }
+        Slot slot = slots[(int) sequence & mask];
+        slot.sequence = sequence;
+        slot.timestamp = System.currentTimeMillis();
+        slot.level = level;
+        slot.logger = logger;
+        slot.thread = Thread.currentThread();
+        slot.text.setLength(0);
+        return slot;
+    }
+
+    void publish(Slot slot) {
+        published.lazySet((int) slot.sequence & mask, slot.sequence); // 之前对槽位的写入对读到该序号的后台线程可见
+    }
+
+    /**
+     * 等待当前已申请的日志全部写入通道
+     */
+    public void flush() {
+        long target = claimed.get();
+        LockSupport.unpark(writer);
+        while (written < target && writer.isAlive()) LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * 写出剩余日志后停止后台线程
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (ownsChannel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // 关闭失败时忽略
+            }
+        }
+    }
+
+    private void writeLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        LineFormatter formatter = new LineFormatter();
+        long next = 0;
+        int idle = 0;
+        while (true) {
+            int count = 0;
+            while (published.get((int) next & mask) == next) {
+                Slot slot = slots[(int) next & mask];
+                CharBuffer line = formatter.format(slot);
+                if (slot.text.capacity() > MAX_RETAINED) slot.text = new StringBuilder(INITIAL_CAPACITY);
+                slot.thread = null; // 不持有已结束的线程
+                next++;
+                if ((++count & 63) == 0) consumed = next; // 大量日志时及时释放槽位
+                encoder.reset();
+                while (encoder.encode(line, buffer, true).isOverflow()) write(buffer);
+            }
+            consumed = next;
+            if (count > 0) {
+                write(buffer); // 本批记录一次写出
+                written = next;
+                idle = 0;
+            } else if (closed && next == claimed.get()) {
+                return;
+            } else if (++idle < 64) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private void write(ByteBuffer buffer) {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        } catch (IOException e) {
+            dropped.increment();
+            System.err.println("AsyncLogger写入失败: " + e);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * 后台线程使用的行格式：yyyy-MM-dd HH:mm:ss.SSS LEVEL [线程名] 日志名 - 消息
+     *      日期部分每天计算一次，其它部分直接追加数字，不使用SimpleDateFormat
+     */
+    private static class LineFormatter {
+
+        private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+        private final TimeZone zone = TimeZone.getDefault();
+        private final StringBuilder line = new StringBuilder(512);
+        private char[] chars = new char[512];
+        private CharBuffer charBuffer = CharBuffer.wrap(chars);
+        private long day = Long.MIN_VALUE;
+        private String date;
+
+        CharBuffer format(Slot slot) {
+            line.setLength(0);
+            long local = slot.timestamp + zone.getOffset(slot.timestamp);
+            long day = Math.floorDiv(local, DAY_MILLIS);
+            if (day != this.day) {
+                this.day = day;
+                this.date = LocalDate.ofEpochDay(day).toString();
+            }
+            int millisOfDay = (int) Math.floorMod(local, DAY_MILLIS);
+            line.append(date).append(' ');
+            pad(millisOfDay / 3_600_000, 2).append(':');
+            pad(millisOfDay / 60_000 % 60, 2).append(':');
+            pad(millisOfDay / 1000 % 60, 2).append('.');
+            pad(millisOfDay % 1000, 3).append(' ');
+            line.append(slot.level.name());
+            if (slot.level.name().length() == 4) line.append(' ');
+            line.append(" [").append(slot.thread.getName()).append("] ")
+                    .append(slot.logger).append(" - ").append(slot.text).append('\n');
+
+            int length = line.length();
+            if (length > chars.length) {
+                chars = new char[Integer.highestOneBit(length) * 2];
+                charBuffer = CharBuffer.wrap(chars);
+            }
+            line.getChars(0, length, chars, 0);
+            charBuffer.clear();
+            charBuffer.limit(length);
+            return charBuffer;
+        }
+
+        private StringBuilder pad(int value, int width) {
+            for (int bound = width == 3 ? 100 : 10; bound > 1 && value < bound; bound /= 10) line.append('0');
+            return line.append(value);
+        }
+    }
+
+    /**
+     * 4个线程各写25万条日志，对比同步的PrintStream（与System.out相同，每行flush）和AsyncLogger的耗时
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = 4, perThread = 250_000;
+        for (int round = 0; round < 3; round++) {
+            Path printFile = Files.createTempFile("print", ".log");
+            try (PrintStream out = new PrintStream(new FileOutputStream(printFile.toFile()), true, "UTF-8")) {
+                long elapsed = run(threads, perThread, i -> out.println("PrintProcessor: Request{name='佳欢-" + i + "'}"));
+                System.out.println("第" + (round + 1) + "轮 PrintStream: " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms, " + Files.size(printFile) / 1024 + "KB");
+            }
+
+            Path asyncFile = Files.createTempFile("async", ".log");
+            AsyncLogger sink = AsyncLogger.toFile(asyncFile, 8192, Level.INFO);
+            Logger logger = new Logger("PrintProcessor", sink);
+            long elapsed = run(threads, perThread, i -> logger.info("Request{name='佳欢-{}'}", i));
+            long enqueued = elapsed;
+            sink.flush();
+            elapsed = run(threads, perThread, i -> logger.debug("Request{name='佳欢-{}'}", i)); // 低于INFO级别，不格式化
+            sink.close();
+            System.out.println("第" + (round + 1) + "轮 AsyncLogger: " + TimeUnit.NANOSECONDS.toMillis(enqueued) + "ms, " + Files.size(asyncFile) / 1024
+                    + "KB, 被过滤的DEBUG日志: " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms");
+            Files.deleteIfExists(printFile);
+            Files.deleteIfExists(asyncFile);
+        }
+    }
+
+    private interface LongTask {
+        void run(long i);
+    }
+
+    private static long run(int threads, int perThread, LongTask task) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int base = t * perThread;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) task.run(base + i);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }, "logger-" + t).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - begin;
+    }
+
+}
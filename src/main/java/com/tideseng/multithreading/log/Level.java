@@ -0,0 +1,18 @@
+package com.tideseng.multithreading.log;
+
+/**
+ * 日志级别，按严重程度从低到高排列
+ */
+public enum Level {
+
+    TRACE,
+
+    DEBUG,
+
+    INFO,
+
+    WARN,
+
+    ERROR
+
+}
@@ -0,0 +1,11 @@
+package com.tideseng.multithreading.log;
+
+/**
+ * 可以直接格式化到日志槽位中的对象
+ *      作为日志参数时调用formatTo()追加内容，不调用toString()，避免每条日志创建临时字符串
+ */
+public interface Loggable {
+
+    void formatTo(StringBuilder builder);
+
+}
@@ -0,0 +1,174 @@
+package com.tideseng.multithreading.log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 日志记录器，将消息格式化到AsyncLogger的槽位中
+ *      先判断级别再格式化，被过滤的日志不申请槽位、不拼接字符串
+ *      消息中的{}依次替换为参数，参数实现Loggable时直接追加到槽位，long参数不装箱
+ *      固定参数个数的重载方法不创建可变参数数组，热点路径上每条日志不分配对象
+ *      格式化抛出异常时槽位中写入错误标记，槽位总是会发布，参数的异常不会让后台线程和其它生产者停顿
+ */
+public final class Logger {
+
+    private static final ConcurrentMap<String, Logger> LOGGERS = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final AsyncLogger sink;
+
+    public Logger(String name, AsyncLogger sink) {
+        this.name = name;
+        this.sink = sink;
+    }
+
+    /**
+     * 获取输出到默认AsyncLogger的记录器，名称为类的简单名称
+     */
+    public static Logger getLogger(Class<?> type) {
+        return getLogger(type.getSimpleName());
+    }
+
+    public static Logger getLogger(String name) {
+        return LOGGERS.computeIfAbsent(name, n -> new Logger(n, AsyncLogger.getDefault()));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isEnabled(Level level) {
+        return sink.isEnabled(level);
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message, 0, null, null, null, null);
+    }
+
+    public void debug(String pattern, Object arg) {
+        log(Level.DEBUG, pattern, 1, arg, null, null, null);
+    }
+
+    public void debug(String pattern, long arg) {
+        if (isEnabled(Level.DEBUG)) logLong(Level.DEBUG, pattern, arg);
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message, 0, null, null, null, null);
+    }
+
+    public void info(String pattern, Object arg) {
+        log(Level.INFO, pattern, 1, arg, null, null, null);
+    }
+
+    public void info(String pattern, long arg) {
+        if (isEnabled(Level.INFO)) logLong(Level.INFO, pattern, arg);
+    }
+
+    public void info(String pattern, Object arg1, Object arg2) {
+        log(Level.INFO, pattern, 2, arg1, arg2, null, null);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message, 0, null, null, null, null);
+    }
+
+    public void warn(String pattern, Object arg) {
+        log(Level.WARN, pattern, 1, arg, null, null, null);
+    }
+
+    public void warn(String pattern, Object arg1, Object arg2) {
+        log(Level.WARN, pattern, 2, arg1, arg2, null, null);
+    }
+
+    public void warn(String pattern, Object arg1, Object arg2, Object arg3, Throwable error) {
+        log(Level.WARN, pattern, 3, arg1, arg2, arg3, error);
+    }
+
+    public void error(String message, Throwable error) {
+        log(Level.ERROR, message, 0, null, null, null, error);
+    }
+
+    public void error(String pattern, Object arg, Throwable error) {
+        log(Level.ERROR, pattern, 1, arg, null, null, error);
+    }
+
+    private void log(Level level, String pattern, int argCount, Object arg1, Object arg2, Object arg3, Throwable error) {
+        if (!sink.isEnabled(level)) return; // 先过滤级别，再格式化
+        AsyncLogger.Slot slot = sink.claim(level, name);
+        if (slot == null) return;
+        StringBuilder text = slot.text;
+        try {
+            int start = appendUntilPlaceholder(text, pattern, 0);
+            for (int i = 0; i < argCount && start >= 0; i++) {
+                appendArg(text, i == 0 ? arg1 : i == 1 ? arg2 : arg3);
+                start = appendUntilPlaceholder(text, pattern, start);
+            }
+            while (start >= 0) { // 多余的占位符原样输出
+                text.append("{}");
+                start = appendUntilPlaceholder(text, pattern, start);
+            }
+            if (error != null) appendThrowable(text, error);
+        } catch (RuntimeException e) {
+            formatFailed(text, pattern, e);
+        } finally {
+            sink.publish(slot); // 申请到的序号必须发布，否则后台线程停在该序号，环形数组写满后所有生产者都被阻塞
+        }
+    }
+
+    private void logLong(Level level, String pattern, long arg) {
+        AsyncLogger.Slot slot = sink.claim(level, name);
+        if (slot == null) return;
+        StringBuilder text = slot.text;
+        try {
+            int start = appendUntilPlaceholder(text, pattern, 0);
+            if (start >= 0) {
+                text.append(arg);
+                while ((start = appendUntilPlaceholder(text, pattern, start)) >= 0) text.append("{}");
+            }
+        } catch (RuntimeException e) {
+            formatFailed(text, pattern, e);
+        } finally {
+            sink.publish(slot);
+        }
+    }
+
+    /**
+     * 格式化失败（如参数的toString()/formatTo()抛出异常）时丢弃已追加的内容，输出消息模板和错误标记
+     */
+    private static void formatFailed(StringBuilder text, String pattern, RuntimeException e) {
+        text.setLength(0);
+        text.append(pattern).append(" [日志格式化失败: ").append(e.getClass().getName()).append(": ").append(e.getMessage()).append(']');
+    }
+
+    /**
+     * 追加从from开始到下一个占位符之前的内容
+     * @return 占位符之后的位置，没有占位符时返回-1
+     */
+    private static int appendUntilPlaceholder(StringBuilder text, String pattern, int from) {
+        int index = pattern.indexOf("{}", from);
+        if (index < 0) {
+            text.append(pattern, from, pattern.length());
+            return -1;
+        }
+        text.append(pattern, from, index);
+        return index + 2;
+    }
+
+    private static void appendArg(StringBuilder text, Object arg) {
+        if (arg instanceof Loggable) ((Loggable) arg).formatTo(text);
+        else if (arg instanceof CharSequence) text.append((CharSequence) arg);
+        else if (arg instanceof Integer || arg instanceof Long) text.append(((Number) arg).longValue());
+        else text.append(arg);
+    }
+
+    private static void appendThrowable(StringBuilder text, Throwable error) {
+        String prefix = "";
+        for (Throwable t = error; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            text.append('\n').append(prefix).append(t);
+            for (StackTraceElement element : t.getStackTrace()) text.append("\n\tat ").append(element);
+            prefix = "Caused by: ";
+        }
+    }
+
+}
@@ -0,0 +1,460 @@
+package com.tideseng.multithreading.offheap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 堆外并发HashMap，适用于数据量远大于堆内存的场景
+ * 背景：
+ *      ConcurrentHashMap等堆内集合在存放几十GB数据时，大量存活对象会进入老年代，导致GC标记和复制的停顿时间很长
+ *      将键值序列化后存放在堆外内存(DirectByteBuffer)中，堆内只保留少量Segment对象，GC停顿时间与数据量无关
+ * 结构：
+ *      与JDK1.7的ConcurrentHashMap类似，整个Map由多个Segment组成，每个Segment继承了ReentrantReadWriteLock实现分段加锁
+ *      每个Segment包含两块堆外内存
+ *          index索引区：开放寻址(线性探测)的哈希表，每个槽位8个字节，高32位存放哈希值、低32位存放记录偏移量+1（0表示空槽、-1表示已删除）
+ *          slab数据区：追加写入的记录，每条记录格式为[int keyLen][int valueLen][key][value]
+ *      覆盖和删除只会将旧记录标记为垃圾，当数据区空间不足时将存活记录压缩(compact)到新的数据区中，并按需扩容
+ * 持久化：
+ *      save()将每个Segment压缩后的数据区直接通过FileChannel写入文件，load()读取到新的堆外内存后重建索引，用于热重启
+ * 说明：
+ *      堆外内存受-XX:MaxDirectMemorySize限制，DirectByteBuffer会在对应的堆内对象被GC回收后才释放
+ *      单个Segment的数据区受ByteBuffer容量限制(2GB)，存放更大的数据集需要增加Segment数量
+ */
+public class OffHeapHashMap<K, V> {
+
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    private static final int DEFAULT_SLAB_SIZE = 1 << 20; // 每个Segment初始数据区大小1MB
+    private static final int MAX_SLAB_SIZE = 1 << 30; // 每个Segment数据区最大1GB
+    private static final int INITIAL_INDEX_CAPACITY = 1 << 10;
+    private static final int FILE_MAGIC = 0x4F484D31; // OHM1
+
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    public OffHeapHashMap(Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        this(keySerializer, valueSerializer, DEFAULT_CONCURRENCY_LEVEL, DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * @param concurrencyLevel 并发级别，向上取整为2的n次方作为Segment数量
+     * @param initialSlabSize 每个Segment初始数据区大小
+     */
+    public OffHeapHashMap(Serializer<K> keySerializer, Serializer<V> valueSerializer, int concurrencyLevel, int initialSlabSize) {
+        if (concurrencyLevel <= 0 || initialSlabSize <= 0 || initialSlabSize > MAX_SLAB_SIZE)
+            throw new IllegalArgumentException();
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        int size = 1;
+        while (size < concurrencyLevel) size <<= 1;
+        this.segments = new Segment[size];
+        this.segmentMask = size - 1;
+        for (int i = 0; i < size; i++)
+            segments[i] = new Segment(initialSlabSize);
+    }
+
+    public V get(K key) {
+        byte[] keyBytes = keySerializer.serialize(key);
+        int hash = hash(ByteBuffer.wrap(keyBytes), 0, keyBytes.length);
+        Segment segment = segmentFor(hash);
+        segment.readLock().lock(); // 读锁之间不互斥，同一个Segment允许并发读取
+        try {
+            ByteBuffer value = segment.getValue(keyBytes, hash);
+            return value == null ? null : valueSerializer.deserialize(value); // 在锁内反序列化，避免数据区被压缩后视图失效
+        } finally {
+            segment.readLock().unlock();
+        }
+    }
+
+    public boolean containsKey(K key) {
+        byte[] keyBytes = keySerializer.serialize(key);
+        int hash = hash(ByteBuffer.wrap(keyBytes), 0, keyBytes.length);
+        Segment segment = segmentFor(hash);
+        segment.readLock().lock();
+        try {
+            return segment.find(keyBytes, hash) >= 0;
+        } finally {
+            segment.readLock().unlock();
+        }
+    }
+
+    /**
+     * 写入键值对，返回旧值（不存在时返回null）
+     */
+    public V put(K key, V value) {
+        byte[] keyBytes = keySerializer.serialize(key);
+        byte[] valueBytes = valueSerializer.serialize(value);
+        int hash = hash(ByteBuffer.wrap(keyBytes), 0, keyBytes.length);
+        Segment segment = segmentFor(hash);
+        segment.writeLock().lock(); // 只锁住当前Segment，其它Segment的读写不受影响
+        try {
+            ByteBuffer old = segment.getValue(keyBytes, hash);
+            V previous = old == null ? null : valueSerializer.deserialize(old);
+            segment.put(keyBytes, valueBytes, hash);
+            return previous;
+        } finally {
+            segment.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 删除键值对，返回旧值（不存在时返回null）
+     */
+    public V remove(K key) {
+        byte[] keyBytes = keySerializer.serialize(key);
+        int hash = hash(ByteBuffer.wrap(keyBytes), 0, keyBytes.length);
+        Segment segment = segmentFor(hash);
+        segment.writeLock().lock();
+        try {
+            ByteBuffer old = segment.getValue(keyBytes, hash);
+            if (old == null) return null;
+            V previous = valueSerializer.deserialize(old);
+            segment.remove(keyBytes, hash);
+            return previous;
+        } finally {
+            segment.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            segment.readLock().lock();
+            try {
+                size += segment.count;
+            } finally {
+                segment.readLock().unlock();
+            }
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 已分配的堆外内存字节数（索引区+数据区）
+     */
+    public long offHeapBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            segment.readLock().lock();
+            try {
+                bytes += segment.index.capacity() + segment.slab.capacity();
+            } finally {
+                segment.readLock().unlock();
+            }
+        }
+        return bytes;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.writeLock().lock();
+            try {
+                segment.reset(segment.slab.capacity());
+            } finally {
+                segment.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * 持久化到文件，逐个Segment加写锁并保证单个Segment内的数据一致
+     * 文件格式：[int magic][int segmentCount]，然后每个Segment依次为[int count][int liveBytes][压缩后的记录]
+     */
+    public void save(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(FILE_MAGIC).putInt(segments.length).flip();
+            writeFully(channel, header);
+            for (Segment segment : segments) {
+                segment.writeLock().lock();
+                try {
+                    if (segment.garbage > 0) segment.compact(segment.slab.capacity());
+                    header.clear();
+                    header.putInt(segment.count).putInt(segment.tail).flip();
+                    writeFully(channel, header);
+                    ByteBuffer data = segment.slab.duplicate();
+                    data.position(0).limit(segment.tail);
+                    writeFully(channel, data); // 直接从堆外内存写入文件，不经过堆内字节数组
+                } finally {
+                    segment.writeLock().unlock();
+                }
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * 从save()生成的文件中恢复Map
+     */
+    public static <K, V> OffHeapHashMap<K, V> load(Path file, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            readFully(channel, header);
+            if (header.getInt(0) != FILE_MAGIC)
+                throw new IOException("Not an off-heap map file: " + file);
+            int segmentCount = header.getInt(4);
+            OffHeapHashMap<K, V> map = new OffHeapHashMap<>(keySerializer, valueSerializer, segmentCount, DEFAULT_SLAB_SIZE);
+            if (map.segments.length != segmentCount)
+                throw new IOException("Corrupted segment count: " + segmentCount);
+            for (Segment segment : map.segments) {
+                header.clear();
+                readFully(channel, header);
+                int count = header.getInt(0);
+                int liveBytes = header.getInt(4);
+                segment.reset(slabSizeFor(DEFAULT_SLAB_SIZE, liveBytes));
+                ByteBuffer data = segment.slab.duplicate();
+                data.limit(liveBytes);
+                readFully(channel, data); // 直接读取到堆外内存
+                segment.rebuild(liveBytes, count);
+            }
+            return map;
+        }
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[(hash >>> 16) & segmentMask]; // 高位选择Segment、低位选择槽位，避免同一个Segment内的槽位分布倾斜
+    }
+
+    /**
+     * 基于序列化后的字节计算哈希值（不依赖对象的hashCode实现，保证重启后哈希值一致）
+     */
+    static int hash(ByteBuffer buffer, int offset, int length) {
+        int h = 1;
+        for (int i = 0; i < length; i++)
+            h = 31 * h + buffer.get(offset + i);
+        h ^= (h >>> 16); // 扰动函数，与HashMap的hash()相同
+        h *= 0x85EBCA6B;
+        return h ^ (h >>> 13);
+    }
+
+    private static int slabSizeFor(int current, long needed) {
+        if (needed > MAX_SLAB_SIZE)
+            throw new IllegalStateException("Segment is full, increase the concurrency level");
+        long size = current;
+        while (size < needed * 2 && size < MAX_SLAB_SIZE) size <<= 1; // 预留一倍空间，减少压缩次数
+        return (int) Math.min(size, MAX_SLAB_SIZE);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                throw new IOException("Unexpected end of file");
+        }
+    }
+
+    /**
+     * 分段，读写锁保护一个索引区和一个数据区
+     */
+    static final class Segment extends ReentrantReadWriteLock {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int SLOT_SIZE = 8;
+        private static final int RECORD_HEADER = 8;
+        private static final int TOMBSTONE = -1;
+
+        ByteBuffer index; // 哈希索引区
+        int capacity; // 索引槽位数量（2的n次方）
+        int count; // 存活的键值对数量
+        int used; // 非空槽位数量（包含已删除的槽位）
+        ByteBuffer slab; // 数据区
+        int tail; // 数据区追加写入的位置
+        long garbage; // 数据区中已失效记录的字节数
+
+        Segment(int slabSize) {
+            reset(slabSize);
+        }
+
+        void reset(int slabSize) {
+            capacity = INITIAL_INDEX_CAPACITY;
+            index = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+            slab = ByteBuffer.allocateDirect(slabSize);
+            count = used = tail = 0;
+            garbage = 0;
+        }
+
+        /**
+         * 查找key所在的槽位，不存在时返回-1
+         */
+        int find(byte[] key, int hash) {
+            int mask = capacity - 1;
+            for (int i = hash & mask, n = 0; n < capacity; i = (i + 1) & mask, n++) {
+                long entry = index.getLong(i * SLOT_SIZE);
+                if (entry == 0) return -1; // 空槽位，探测结束
+                int ref = (int) entry;
+                if (ref != TOMBSTONE && (int) (entry >>> 32) == hash && keyEquals(ref - 1, key))
+                    return i;
+            }
+            return -1;
+        }
+
+        ByteBuffer getValue(byte[] key, int hash) {
+            int slot = find(key, hash);
+            if (slot < 0) return null;
+            int offset = (int) index.getLong(slot * SLOT_SIZE) - 1;
+            int keyLength = slab.getInt(offset);
+            int valueLength = slab.getInt(offset + 4);
+            ByteBuffer value = slab.duplicate(); // duplicate()共享堆外内存，只复制position/limit
+            int start = offset + RECORD_HEADER + keyLength;
+            value.limit(start + valueLength).position(start);
+            return value;
+        }
+
+        void put(byte[] key, byte[] value, int hash) {
+            int recordLength = RECORD_HEADER + key.length + value.length;
+            if ((long) tail + recordLength > slab.capacity())
+                compact(slabSizeFor(slab.capacity(), tail - garbage + recordLength));
+            if ((used + 1) * 4L > capacity * 3L) // 负载因子0.75
+                rehash(count * 2 >= capacity ? capacity << 1 : capacity); // 已删除的槽位较多时只清理、不扩容
+
+            int offset = tail;
+            slab.putInt(offset, key.length);
+            slab.putInt(offset + 4, value.length);
+            for (int i = 0; i < key.length; i++) slab.put(offset + RECORD_HEADER + i, key[i]);
+            for (int i = 0; i < value.length; i++) slab.put(offset + RECORD_HEADER + key.length + i, value[i]);
+            tail += recordLength;
+
+            int slot = find(key, hash);
+            if (slot >= 0) { // 覆盖旧值，旧记录变成垃圾
+                garbage += recordLength(slotOffset(slot));
+                index.putLong(slot * SLOT_SIZE, entry(hash, offset));
+                return;
+            }
+            int mask = capacity - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                long current = index.getLong(i * SLOT_SIZE);
+                if (current == 0 || (int) current == TOMBSTONE) {
+                    if (current == 0) used++;
+                    index.putLong(i * SLOT_SIZE, entry(hash, offset));
+                    count++;
+                    return;
+                }
+            }
+        }
+
+        void remove(byte[] key, int hash) {
+            int slot = find(key, hash);
+            if (slot < 0) return;
+            garbage += recordLength(slotOffset(slot));
+            index.putLong(slot * SLOT_SIZE, TOMBSTONE & 0xFFFFFFFFL); // 保留槽位，避免打断其它key的探测链
+            count--;
+        }
+
+        /**
+         * 将存活记录复制到新的数据区，并更新索引中的偏移量
+         */
+        void compact(int newSlabSize) {
+            ByteBuffer target = ByteBuffer.allocateDirect(newSlabSize);
+            int position = 0;
+            for (int i = 0; i < capacity; i++) {
+                long entry = index.getLong(i * SLOT_SIZE);
+                int ref = (int) entry;
+                if (entry == 0 || ref == TOMBSTONE) continue;
+                int length = recordLength(ref - 1);
+                ByteBuffer source = slab.duplicate();
+                source.limit(ref - 1 + length).position(ref - 1);
+                target.position(position);
+                target.put(source);
+                index.putLong(i * SLOT_SIZE, entry((int) (entry >>> 32), position));
+                position += length;
+            }
+            slab = target;
+            tail = position;
+            garbage = 0;
+        }
+
+        void rehash(int newCapacity) {
+            ByteBuffer oldIndex = index;
+            int oldCapacity = capacity;
+            index = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+            capacity = newCapacity;
+            int mask = newCapacity - 1;
+            for (int i = 0; i < oldCapacity; i++) {
+                long entry = oldIndex.getLong(i * SLOT_SIZE);
+                if (entry == 0 || (int) entry == TOMBSTONE) continue;
+                int j = (int) (entry >>> 32) & mask;
+                while (index.getLong(j * SLOT_SIZE) != 0) j = (j + 1) & mask;
+                index.putLong(j * SLOT_SIZE, entry);
+            }
+            used = count;
+        }
+
+        /**
+         * 加载文件后扫描数据区重建索引
+         */
+        void rebuild(int liveBytes, int expectedCount) {
+            int newCapacity = INITIAL_INDEX_CAPACITY;
+            while (expectedCount * 4L > newCapacity * 3L) newCapacity <<= 1;
+            capacity = newCapacity;
+            index = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+            int mask = newCapacity - 1;
+            int offset = 0;
+            while (offset < liveBytes) {
+                int keyLength = slab.getInt(offset);
+                int hash = hash(slab, offset + RECORD_HEADER, keyLength);
+                int j = hash & mask;
+                while (index.getLong(j * SLOT_SIZE) != 0) j = (j + 1) & mask;
+                index.putLong(j * SLOT_SIZE, entry(hash, offset));
+                count++;
+                offset += recordLength(offset);
+            }
+            used = count;
+            tail = liveBytes;
+        }
+
+        private boolean keyEquals(int offset, byte[] key) {
+            if (slab.getInt(offset) != key.length) return false;
+            for (int i = 0; i < key.length; i++) {
+                if (slab.get(offset + RECORD_HEADER + i) != key[i]) return false;
+            }
+            return true;
+        }
+
+        private int slotOffset(int slot) {
+            return (int) index.getLong(slot * SLOT_SIZE) - 1;
+        }
+
+        private int recordLength(int offset) {
+            return RECORD_HEADER + slab.getInt(offset) + slab.getInt(offset + 4);
+        }
+
+        private static long entry(int hash, int offset) {
+            return ((long) hash << 32) | ((offset + 1) & 0xFFFFFFFFL);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        OffHeapHashMap<String, String> map = new OffHeapHashMap<>(Serializer.STRING, Serializer.STRING);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100000; i++)
+                    map.put("key-" + id + "-" + i, "佳欢-" + i);
+                for (int i = 0; i < 100000; i += 2)
+                    map.remove("key-" + id + "-" + i);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        System.out.println("size: " + map.size() + ", offHeapBytes: " + map.offHeapBytes());
+        System.out.println(map.get("key-0-1") + ", " + map.get("key-0-2"));
+
+        Path file = Files.createTempFile("offheap", ".map");
+        map.save(file);
+        OffHeapHashMap<String, String> loaded = OffHeapHashMap.load(file, Serializer.STRING, Serializer.STRING); // 热重启
+        System.out.println("loaded size: " + loaded.size() + ", " + loaded.get("key-3-99999"));
+        Files.delete(file);
+    }
+
+}
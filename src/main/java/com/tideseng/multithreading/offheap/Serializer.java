@@ -0,0 +1,65 @@
+package com.tideseng.multithreading.offheap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 堆外存储的序列化器
+ *      serialize: 将对象转换成字节数组后写入堆外内存（字节数组是短命对象，会在年轻代中被快速回收）
+ *      deserialize: 从堆外内存的视图中读取对象，buffer的position~limit即为数据区间
+ */
+public interface Serializer<T> {
+
+    byte[] serialize(T value);
+
+    T deserialize(ByteBuffer buffer);
+
+    /**
+     * UTF-8字符串序列化器
+     */
+    Serializer<String> STRING = new Serializer<String>() {
+        @Override
+        public byte[] serialize(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String deserialize(ByteBuffer buffer) {
+            return StandardCharsets.UTF_8.decode(buffer).toString();
+        }
+    };
+
+    /**
+     * JDK序列化器，适用于任意实现了Serializable接口的对象（体积较大，只在没有专用序列化器时使用）
+     */
+    static <T extends Serializable> Serializer<T> java() {
+        return new Serializer<T>() {
+            @Override
+            public byte[] serialize(T value) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return bytes.toByteArray();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T deserialize(ByteBuffer buffer) {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return (T) in.readObject();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.tideseng.multithreading.pool;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁熔断器，下游持续失败时快速失败，避免请求堆积在已经不可用的下游上
+ * 原理：
+ *      CLOSED：正常放行，连续失败次数达到阈值后切换到OPEN
+ *      OPEN：全部拒绝，经过openNanos后第一个请求通过CAS切换到HALF_OPEN作为探测请求
+ *      HALF_OPEN：只放行探测请求，探测成功切换到CLOSED，失败重新切换到OPEN
+ *      状态保存在AtomicReference中，放行判断只有一次volatile读，可以放在热点路径上
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private volatile long openedAt;
+
+    /**
+     * @param failureThreshold 连续失败多少次后熔断
+     * @param openDuration 熔断持续时间，之后放行一个探测请求
+     */
+    public CircuitBreaker(int failureThreshold, long openDuration, TimeUnit unit) {
+        if (failureThreshold <= 0 || openDuration < 0) throw new IllegalArgumentException();
+        this.failureThreshold = failureThreshold;
+        this.openNanos = unit.toNanos(openDuration);
+    }
+
+    /**
+     * 是否允许调用下游，返回true后必须调用onSuccess()或onFailure()
+     */
+    public boolean tryAcquire() {
+        State current = state.get();
+        if (current == State.CLOSED) return true;
+        if (current == State.OPEN && System.nanoTime() - openedAt >= openNanos
+                && state.compareAndSet(State.OPEN, State.HALF_OPEN)) return true; // 只有一个线程能拿到探测机会
+        rejected.increment();
+        return false;
+    }
+
+    public void onSuccess() {
+        consecutiveFailures.set(0);
+        state.compareAndSet(State.HALF_OPEN, State.CLOSED);
+    }
+
+    public void onFailure() {
+        if (state.get() == State.HALF_OPEN) { // 探测失败，重新熔断
+            openedAt = System.nanoTime();
+            state.set(State.OPEN);
+        } else if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            openedAt = System.nanoTime(); // 先写时间再切换状态，其它线程看到OPEN时一定能看到新的时间
+            if (state.compareAndSet(State.CLOSED, State.OPEN)) consecutiveFailures.set(0);
+        }
+    }
+
+    /**
+     * 距离允许探测还有多久，未熔断时为0
+     */
+    public long remainingOpenNanos() {
+        if (state.get() != State.OPEN) return 0;
+        return Math.max(0, openedAt + openNanos - System.nanoTime());
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * 被熔断拒绝的调用次数
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker{state=" + state.get() + ", rejected=" + rejected.sum() + "}";
+    }
+
+}
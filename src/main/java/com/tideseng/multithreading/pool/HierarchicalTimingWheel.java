@@ -0,0 +1,267 @@
+package com.tideseng.multithreading.pool;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 分层时间轮定时器，适用于海量短超时任务（如请求截止时间、重试）
+ * 背景：
+ *      ScheduledThreadPoolExecutor基于堆(DelayedWorkQueue)实现，添加和取消任务都是O(log n)，且需要加锁
+ * 原理：
+ *      时间按tick离散化，共4层时间轮，每层64个槽位，第l层一个槽位跨越64^l个tick，总共可以表示64^4个tick
+ *      添加任务时按剩余tick数选择层级，槽位下标为(到期tick >> 6l) & 63，挂到槽位的双向链表上，O(1)
+ *      时间轮线程每走一个tick处理第0层的当前槽位，槽位中的任务全部到期；第l层走完一圈时将上一层的当前槽位降级(cascade)到下层
+ *      超过最大范围的任务先放在最高层的最远槽位，降级时按实际到期时间重新放置
+ * 并发：
+ *      时间轮只由时间轮线程修改，其它线程添加和取消任务只是放入无锁队列，由时间轮线程在每个tick批量处理，不需要加锁
+ *      取消时先CAS修改任务状态，再由时间轮线程从链表中摘除，O(1)
+ *      时间轮线程被延迟唤醒时一次处理所有落后的tick（批量处理），到期任务交给Executor执行，不占用时间轮线程
+ */
+public class HierarchicalTimingWheel {
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_TICKS = 1L << (WHEEL_BITS * LEVELS);
+
+    private final long tickNanos;
+    private final Executor executor;
+    private final Timeout[][] wheels = new Timeout[LEVELS][WHEEL_SIZE]; // 槽位链表的哨兵节点
+    private final Queue<Timeout> pendingAdds = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> pendingCancels = new ConcurrentLinkedQueue<>();
+    private final LongAdder pendingCount = new LongAdder();
+    private final Thread worker;
+    private final long startNanos;
+    private volatile boolean stopped;
+    private long currentTick; // 下一个要处理的tick，只由时间轮线程读写
+
+    /**
+     * @param tick tick时长，决定定时精度
+     * @param executor 执行到期任务的线程池
+     */
+    public HierarchicalTimingWheel(long tick, TimeUnit unit, Executor executor) {
+        this.tickNanos = Math.max(1, unit.toNanos(tick));
+        this.executor = executor;
+        for (Timeout[] wheel : wheels) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                Timeout head = new Timeout(this, null, 0);
+                head.prev = head.next = head;
+                wheel[i] = head;
+            }
+        }
+        this.startNanos = System.nanoTime();
+        this.worker = new Thread(this::run, "timing-wheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 添加延迟任务，O(1)
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (stopped) throw new RejectedExecutionException("Timing wheel stopped");
+        long deadlineNanos = System.nanoTime() - startNanos + Math.max(0, unit.toNanos(delay));
+        long deadlineTick = (deadlineNanos + tickNanos - 1) / tickNanos; // 向上取整，不会提前执行
+        Timeout timeout = new Timeout(this, task, deadlineTick);
+        pendingCount.increment();
+        pendingAdds.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * 添加延迟任务，到期后将结果设置到返回的future中，取消future即取消任务
+     */
+    public <T> CompletableFuture<T> schedule(Callable<T> task, long delay, TimeUnit unit) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Timeout timeout = schedule(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }, delay, unit);
+        future.whenComplete((result, e) -> {
+            if (future.isCancelled()) timeout.cancel();
+        });
+        return future;
+    }
+
+    /**
+     * 未到期且未取消的任务数量
+     */
+    public long pendingTimeouts() {
+        return pendingCount.sum();
+    }
+
+    /**
+     * 停止时间轮，未到期的任务不再执行
+     */
+    public void stop() {
+        stopped = true;
+        LockSupport.unpark(worker);
+    }
+
+    private void run() {
+        while (!stopped) {
+            long targetTick = (System.nanoTime() - startNanos) / tickNanos; // 当前应该处理到的tick
+            if (currentTick > targetTick) {
+                LockSupport.parkNanos(this, startNanos + currentTick * tickNanos - System.nanoTime());
+                continue;
+            }
+            drainCancels();
+            drainAdds();
+            while (currentTick <= targetTick) { // 批量处理落后的tick
+                cascade();
+                expire(wheels[0][(int) (currentTick & WHEEL_MASK)]);
+                currentTick++;
+            }
+        }
+    }
+
+    private void drainAdds() {
+        Timeout timeout;
+        while ((timeout = pendingAdds.poll()) != null) {
+            if (timeout.state.get() == Timeout.PENDING) place(timeout);
+        }
+    }
+
+    private void drainCancels() {
+        Timeout timeout;
+        while ((timeout = pendingCancels.poll()) != null) timeout.unlink();
+    }
+
+    /**
+     * 按剩余tick数选择层级和槽位
+     */
+    private void place(Timeout timeout) {
+        long deadline = Math.max(timeout.deadlineTick, currentTick); // 已经过期的任务在当前tick执行
+        long delta = deadline - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) level++;
+        if (delta >= MAX_TICKS) deadline = currentTick + MAX_TICKS - 1; // 超出范围，放在最远的槽位，降级时重新放置
+        int slot = (int) ((deadline >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        wheels[level][slot].append(timeout);
+    }
+
+    /**
+     * 第l-1层走完一圈时，将第l层当前槽位中的任务降级
+     */
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0) return;
+            Timeout head = wheels[level][(int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK)];
+            Timeout timeout = head.next;
+            head.prev = head.next = head;
+            while (timeout != head) {
+                Timeout next = timeout.next;
+                timeout.prev = timeout.next = null;
+                place(timeout);
+                timeout = next;
+            }
+        }
+    }
+
+    private void expire(Timeout head) {
+        Timeout timeout = head.next;
+        head.prev = head.next = head;
+        while (timeout != head) {
+            Timeout next = timeout.next;
+            timeout.prev = timeout.next = null;
+            if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+                pendingCount.decrement();
+                try {
+                    executor.execute(timeout.task);
+                } catch (RejectedExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * 延迟任务句柄
+     */
+    public static class Timeout {
+
+        static final int PENDING = 0;
+        static final int CANCELLED = 1;
+        static final int EXPIRED = 2;
+
+        private final HierarchicalTimingWheel timer;
+        private final Runnable task;
+        private final long deadlineTick;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        // 链表指针，只由时间轮线程读写
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(HierarchicalTimingWheel timer, Runnable task, long deadlineTick) {
+            this.timer = timer;
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * 取消任务，O(1)
+         * @return 任务到期执行前取消成功返回true
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) return false;
+            timer.pendingCount.decrement();
+            timer.pendingCancels.add(this); // 由时间轮线程从槽位中摘除
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        void append(Timeout timeout) {
+            timeout.prev = prev;
+            timeout.next = this;
+            prev.next = timeout;
+            prev = timeout;
+        }
+
+        void unlink() {
+            if (prev == null) return; // 还未放入槽位或已经摘除
+            prev.next = next;
+            next.prev = prev;
+            prev = next = null;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        HierarchicalTimingWheel timer = new HierarchicalTimingWheel(1, TimeUnit.MILLISECONDS, executorService);
+
+        int n = 1_000_000;
+        CountDownLatch fired = new CountDownLatch(n / 2);
+        Timeout[] timeouts = new Timeout[n];
+        long start = System.nanoTime();
+        Runnable cancelled = () -> System.out.println("取消失败");
+        for (int i = 0; i < n; i++) // 大量请求超时，一半会在到期前取消
+            timeouts[i] = timer.schedule(i % 2 == 0 ? cancelled : fired::countDown, 1000 + i % 1000, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < n; i += 2) timeouts[i].cancel();
+        System.out.println("添加并取消" + n + "个任务耗时: " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+
+        fired.await();
+        System.out.println("全部到期耗时: " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms, 剩余: " + timer.pendingTimeouts());
+
+        long scheduled = System.nanoTime();
+        CompletableFuture<String> future = timer.schedule(() -> "佳欢", 50, TimeUnit.MILLISECONDS);
+        System.out.println(future.join() + ", 延迟: " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduled) + "ms");
+        timer.stop();
+        executorService.shutdown();
+    }
+
+}
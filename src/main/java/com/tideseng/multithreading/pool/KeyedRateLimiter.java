@@ -0,0 +1,47 @@
+package com.tideseng.multithreading.pool;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * 按key（如租户）限流，每个key拥有独立的令牌桶
+ *      限流器保存在ConcurrentHashMap中，已存在的key只需要一次无锁的get()
+ */
+public class KeyedRateLimiter<K> {
+
+    private final ConcurrentMap<K, RateLimiter> limiters = new ConcurrentHashMap<>();
+    private final Function<? super K, RateLimiter> factory;
+
+    /**
+     * @param factory 为新的key创建限流器，可以按key设置不同的速率
+     */
+    public KeyedRateLimiter(Function<? super K, RateLimiter> factory) {
+        this.factory = factory;
+    }
+
+    public RateLimiter limiter(K key) {
+        RateLimiter limiter = limiters.get(key); // 快速路径
+        return limiter != null ? limiter : limiters.computeIfAbsent(key, factory);
+    }
+
+    public boolean tryAcquire(K key) {
+        return limiter(key).tryAcquire();
+    }
+
+    public long acquire(K key) throws InterruptedException {
+        return limiter(key).acquire();
+    }
+
+    /**
+     * 替换某个key的限流器，用于运行期间调整速率
+     */
+    public void update(K key, RateLimiter limiter) {
+        limiters.put(key, limiter);
+    }
+
+    public void remove(K key) {
+        limiters.remove(key);
+    }
+
+}
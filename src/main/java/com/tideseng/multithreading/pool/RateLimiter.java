@@ -0,0 +1,134 @@
+package com.tideseng.multithreading.pool;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁令牌桶限流器
+ * 原理：
+ *      采用GCRA(通用信元速率算法)实现令牌桶，只维护一个"理论到达时间"TAT，不需要后台线程定时补充令牌
+ *          每个许可占用interval纳秒，获取许可后TAT = max(TAT, now) + interval * permits
+ *          TAT - now不超过(burst - 1) * interval时允许通过，相当于容量为burst的令牌桶
+ *      TAT保存在AtomicLong中，获取许可只需要一次System.nanoTime()和一次CAS，可以放在热点路径上
+ *      预热：限流器创建后或空闲超过预热时长后，interval从3倍线性下降到正常值，避免冷启动时瞬间打满下游
+ *      acquire()预占许可后按需睡眠，tryAcquire()不阻塞，拿不到许可时立即返回false
+ */
+public class RateLimiter {
+
+    private static final int COLD_FACTOR = 3;
+
+    private final long intervalNanos;
+    private final long burst;
+    private final long warmupNanos;
+    private final AtomicLong theoreticalArrival = new AtomicLong(Long.MIN_VALUE);
+    private volatile long warmupStart;
+
+    private RateLimiter(double permitsPerSecond, int burst, long warmupNanos) {
+        if (permitsPerSecond <= 0 || burst <= 0 || warmupNanos < 0) throw new IllegalArgumentException();
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.burst = burst;
+        this.warmupNanos = warmupNanos;
+        this.warmupStart = System.nanoTime();
+    }
+
+    /**
+     * @param permitsPerSecond 每秒许可数
+     * @param burst 允许的突发许可数（令牌桶容量）
+     */
+    public static RateLimiter create(double permitsPerSecond, int burst) {
+        return new RateLimiter(permitsPerSecond, burst, 0);
+    }
+
+    public static RateLimiter create(double permitsPerSecond, int burst, long warmupPeriod, TimeUnit unit) {
+        return new RateLimiter(permitsPerSecond, burst, unit.toNanos(warmupPeriod));
+    }
+
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    public boolean tryAcquire(int permits) {
+        long now = System.nanoTime();
+        long cost = cost(permits, now);
+        long tolerance = (burst - 1) * intervalNanos;
+        for (;;) {
+            long tat = theoreticalArrival.get();
+            long base = Math.max(tat, now);
+            if (base - now > tolerance) return false; // 令牌不足
+            if (theoreticalArrival.compareAndSet(tat, base + cost)) return true;
+        }
+    }
+
+    /**
+     * 在超时时间内等待许可
+     */
+    public boolean tryAcquire(int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        long wait = reserve(permits, unit.toNanos(timeout));
+        if (wait < 0) return false;
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        return true;
+    }
+
+    /**
+     * 阻塞直到获取许可
+     * @return 等待的纳秒数
+     */
+    public long acquire(int permits) throws InterruptedException {
+        long wait = reserve(permits, Long.MAX_VALUE);
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        return wait;
+    }
+
+    public long acquire() throws InterruptedException {
+        return acquire(1);
+    }
+
+    /**
+     * 预占许可，返回需要等待的纳秒数，超过maxWait时不预占并返回-1
+     */
+    private long reserve(int permits, long maxWait) {
+        long now = System.nanoTime();
+        long cost = cost(permits, now);
+        long tolerance = (burst - 1) * intervalNanos;
+        for (;;) {
+            long tat = theoreticalArrival.get();
+            long base = Math.max(tat, now);
+            long wait = Math.max(0, base - now - tolerance);
+            if (wait > maxWait) return -1;
+            if (theoreticalArrival.compareAndSet(tat, base + cost)) return wait;
+        }
+    }
+
+    private long cost(int permits, long now) {
+        if (permits <= 0) throw new IllegalArgumentException("permits: " + permits);
+        if (warmupNanos == 0) return permits * intervalNanos;
+        long tat = theoreticalArrival.get();
+        if (tat != Long.MIN_VALUE && now - tat > warmupNanos) warmupStart = now; // 空闲超过预热时长，重新预热
+        long elapsed = now - warmupStart;
+        if (elapsed >= warmupNanos) return permits * intervalNanos;
+        double coldness = 1 - (double) elapsed / warmupNanos; // 1 -> 0
+        return (long) (permits * intervalNanos * (1 + (COLD_FACTOR - 1) * coldness));
+    }
+
+    public double getRate() {
+        return (double) TimeUnit.SECONDS.toNanos(1) / intervalNanos;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        RateLimiter limiter = RateLimiter.create(1_000_000, 100);
+        int iterations = 10_000_000, passed = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            if (limiter.tryAcquire()) passed++;
+        long elapsed = System.nanoTime() - start;
+        System.out.println("tryAcquire: " + elapsed / iterations + "ns/次, 通过: " + passed + ", 耗时: " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms");
+
+        RateLimiter warmup = RateLimiter.create(10, 1, 1, TimeUnit.SECONDS); // 每秒10个，预热1秒
+        start = System.nanoTime();
+        for (int i = 0; i < 15; i++) {
+            warmup.acquire();
+            System.out.println("第" + i + "个许可: " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+package com.tideseng.multithreading.pool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Linux线程亲和性工具（CPU绑定）
+ * 原理：
+ *      Java线程与内核线程一一对应，内核线程号(tid)可以从/proc/thread-self或/proc/self/task/{tid}/comm（线程名）中找到
+ *      通过taskset -p -c {cpus} {tid}调用sched_setaffinity将线程绑定到指定CPU，不需要JNA/JNI依赖
+ *      NUMA拓扑从/sys/devices/system/node/node{n}/cpulist读取，CPU列表使用taskset的格式，如"0-3,8"
+ *      线程当前所在的CPU为/proc/self/task/{tid}/stat的第39个字段，迁移次数为/proc/self/task/{tid}/sched中的se.nr_migrations
+ * 说明：
+ *      只在Linux上生效，其它平台或缺少taskset时所有方法都返回失败，调用方可以忽略
+ *      JDK9开始JVM会把Java线程名（最多15个字符）设置为内核线程名，按名称查找tid依赖这一特性，优先在线程内部使用currentTid()
+ */
+public class ThreadAffinity {
+
+    private static final Path PROC_TASKS = Paths.get("/proc/self/task");
+    private static final Path NUMA_NODES = Paths.get("/sys/devices/system/node");
+
+    private ThreadAffinity() {
+    }
+
+    public static boolean isSupported() {
+        return Files.isDirectory(PROC_TASKS) && (Files.isExecutable(Paths.get("/usr/bin/taskset")) || Files.isExecutable(Paths.get("/bin/taskset")));
+    }
+
+    /**
+     * 当前线程的内核线程号，不支持时返回-1
+     */
+    public static int currentTid() {
+        try {
+            Path link = Files.readSymbolicLink(Paths.get("/proc/thread-self")); // {pid}/task/{tid}
+            return Integer.parseInt(link.getFileName().toString());
+        } catch (IOException | UnsupportedOperationException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 按线程名查找内核线程号，名称不唯一或找不到时返回-1
+     *      内核线程名最多15个字符，更长的名称截断后可能与其它线程相同，无法确认，直接返回-1
+     *      JVM在线程启动后异步设置内核线程名，刚启动的线程可能还找不到；能在线程内部执行代码时应使用currentTid()
+     */
+    public static int findTid(String threadName) {
+        if (threadName.length() > 15) return -1;
+        int found = -1;
+        try (DirectoryStream<Path> tasks = Files.newDirectoryStream(PROC_TASKS)) {
+            for (Path task : tasks) {
+                String name = read(task.resolve("comm"));
+                if (threadName.equals(name)) {
+                    if (found != -1) return -1; // 不唯一
+                    found = Integer.parseInt(task.getFileName().toString());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+        return found;
+    }
+
+    /**
+     * 将内核线程绑定到指定CPU
+     * @param cpuList taskset格式的CPU列表，如"0-3,8"
+     */
+    public static boolean pin(int tid, String cpuList) {
+        if (tid <= 0 || !isSupported()) return false;
+        try {
+            Process process = new ProcessBuilder("taskset", "-p", "-c", cpuList, String.valueOf(tid))
+                    .redirectErrorStream(true).redirectOutput(new File("/dev/null")).start(); // 丢弃输出，避免管道写满阻塞
+            return process.waitFor(5, TimeUnit.SECONDS) && process.exitValue() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public static boolean pinCurrentThread(String cpuList) {
+        return pin(currentTid(), cpuList);
+    }
+
+    /**
+     * 线程当前所在的CPU，不支持时返回-1
+     */
+    public static int currentCpu(int tid) {
+        try {
+            String stat = read(PROC_TASKS.resolve(tid + "/stat"));
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" "); // 线程名可能包含空格，从')'之后开始解析
+            return Integer.parseInt(fields[36]); // 第39个字段，前两个字段已跳过
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 线程在CPU之间的迁移次数，不支持时返回-1
+     */
+    public static long migrations(int tid) {
+        try {
+            for (String line : Files.readAllLines(PROC_TASKS.resolve(tid + "/sched"), StandardCharsets.UTF_8)) {
+                if (line.startsWith("se.nr_migrations"))
+                    return Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+            }
+        } catch (IOException | RuntimeException ignored) {
+        }
+        return -1;
+    }
+
+    /**
+     * NUMA节点 -> CPU列表，不支持时返回只有一个节点、包含所有CPU的拓扑
+     */
+    public static SortedMap<Integer, List<Integer>> numaTopology() {
+        SortedMap<Integer, List<Integer>> nodes = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(NUMA_NODES, "node[0-9]*")) {
+            for (Path node : stream) {
+                List<Integer> cpus = parseCpuList(read(node.resolve("cpulist")));
+                if (!cpus.isEmpty()) nodes.put(Integer.parseInt(node.getFileName().toString().substring(4)), cpus);
+            }
+        } catch (IOException | RuntimeException ignored) {
+        }
+        if (nodes.isEmpty()) {
+            List<Integer> cpus = new ArrayList<>();
+            for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) cpus.add(i);
+            nodes.put(0, cpus);
+        }
+        return nodes;
+    }
+
+    /**
+     * 解析taskset格式的CPU列表，如"0-3,8" -> [0, 1, 2, 3, 8]
+     */
+    public static List<Integer> parseCpuList(String cpuList) {
+        List<Integer> cpus = new ArrayList<>();
+        for (String part : cpuList.trim().split(",")) {
+            if (part.isEmpty()) continue;
+            int dash = part.indexOf('-');
+            int from = Integer.parseInt(dash < 0 ? part : part.substring(0, dash));
+            int to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1));
+            for (int cpu = from; cpu <= to; cpu++) cpus.add(cpu);
+        }
+        return cpus;
+    }
+
+    /**
+     * 创建的线程启动后先将自己绑定到指定CPU
+     */
+    public static ThreadFactory threadFactory(String namePrefix, String cpuList) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> new Thread(() -> {
+            pinCurrentThread(cpuList);
+            runnable.run();
+        }, namePrefix + counter.getAndIncrement());
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+    }
+
+}
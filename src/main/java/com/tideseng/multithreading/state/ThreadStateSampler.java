@@ -0,0 +1,246 @@
+package com.tideseng.multithreading.state;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于ThreadMXBean的线程状态采样器和锁竞争分析器
+ * 原理：
+ *      按固定频率调用ThreadMXBean.dumpAllThreads()获取所有线程的状态、等待的锁(LockInfo)、锁的持有者和调用栈
+ *      每次采样记为interval时长，统计每个线程处于NEW/RUNNABLE/BLOCKED/WAITING/TIMED_WAITING状态的时间
+ *      线程处于BLOCKED（等待synchronized监视器）或WAITING/TIMED_WAITING且锁有持有者（等待Lock）时，记为该锁的阻塞时间
+ *      每次采样调用findDeadlockedThreads()检测死锁环
+ *      调用栈按"线程名;栈底方法;...;栈顶方法 次数"的折叠格式累计，可直接作为flamegraph.pl的输入
+ * 说明：
+ *      采样是统计意义上的结果，采样间隔越小越精确，但dumpAllThreads()会进入安全点，间隔不宜小于10ms
+ *      等价于在运行中的程序里反复执行jstack，不需要连接外部profiler
+ */
+public class ThreadStateSampler {
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private final long intervalMillis;
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> task;
+
+    // 以下统计数据由this保护
+    private final Map<Long, ThreadStats> threads = new HashMap<>();
+    private final Map<String, LockStats> locks = new HashMap<>();
+    private final Map<String, Long> foldedStacks = new HashMap<>();
+    private final Set<String> deadlocks = new LinkedHashSet<>();
+    private long samples;
+
+    public ThreadStateSampler(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "thread-state-sampler");
+            thread.setDaemon(true); // 不阻止JVM退出
+            return thread;
+        });
+    }
+
+    public synchronized void start() {
+        if (task == null)
+            task = scheduler.scheduleAtFixedRate(this::sample, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (task != null) task.cancel(false);
+        task = null;
+        scheduler.shutdown();
+    }
+
+    /**
+     * 采样一次，也可以在需要时手动调用
+     */
+    public void sample() {
+        long self = Thread.currentThread().getId();
+        ThreadInfo[] infos = threadMXBean.dumpAllThreads(false, false);
+        long[] deadlocked = threadMXBean.findDeadlockedThreads();
+        ThreadInfo[] cycle = deadlocked == null ? null : threadMXBean.getThreadInfo(deadlocked);
+        synchronized (this) {
+            samples++;
+            for (ThreadInfo info : infos) {
+                if (info == null || info.getThreadId() == self) continue;
+                threads.computeIfAbsent(info.getThreadId(), id -> new ThreadStats(info.getThreadName()))
+                        .states[info.getThreadState().ordinal()]++;
+                recordLock(info);
+                recordStack(info);
+            }
+            if (cycle != null) deadlocks.add(describeCycle(cycle));
+        }
+    }
+
+    private void recordLock(ThreadInfo info) {
+        LockInfo lock = info.getLockInfo();
+        if (lock == null) return;
+        Thread.State state = info.getThreadState();
+        boolean contended = state == Thread.State.BLOCKED || info.getLockOwnerId() != -1; // 等待notify的线程没有持有者，不算竞争
+        if (!contended) return;
+        LockStats stats = locks.computeIfAbsent(lock.toString(), LockStats::new);
+        stats.blockedSamples++;
+        if (info.getLockOwnerName() != null)
+            stats.owners.merge(info.getLockOwnerName(), 1L, Long::sum);
+    }
+
+    private void recordStack(ThreadInfo info) {
+        StackTraceElement[] stack = info.getStackTrace();
+        StringBuilder folded = new StringBuilder(info.getThreadName().replace(';', '_').replace(' ', '_'));
+        for (int i = stack.length - 1; i >= 0; i--) // 折叠格式从栈底到栈顶
+            folded.append(';').append(stack[i].getClassName()).append('.').append(stack[i].getMethodName());
+        foldedStacks.merge(folded.toString(), 1L, Long::sum);
+    }
+
+    private static String describeCycle(ThreadInfo[] cycle) {
+        StringBuilder builder = new StringBuilder();
+        for (ThreadInfo info : cycle) {
+            if (info == null) continue;
+            builder.append('"').append(info.getThreadName()).append("\" 等待 ").append(info.getLockName())
+                    .append(" (持有者 \"").append(info.getLockOwnerName()).append("\") -> ");
+        }
+        return builder.length() == 0 ? "" : builder.substring(0, builder.length() - 4);
+    }
+
+    /**
+     * 每个线程处于各个状态的时间(ms)
+     */
+    public synchronized Map<String, Map<Thread.State, Long>> stateTimes() {
+        Map<String, Map<Thread.State, Long>> result = new LinkedHashMap<>();
+        for (ThreadStats stats : threads.values()) {
+            Map<Thread.State, Long> times = new EnumMap<>(Thread.State.class);
+            for (Thread.State state : Thread.State.values()) {
+                if (stats.states[state.ordinal()] > 0)
+                    times.put(state, stats.states[state.ordinal()] * intervalMillis);
+            }
+            result.put(stats.name, times);
+        }
+        return result;
+    }
+
+    /**
+     * 按阻塞时间倒序排列的锁
+     */
+    public synchronized List<String> topContendedLocks(int limit) {
+        List<LockStats> sorted = new ArrayList<>(locks.values());
+        sorted.sort((a, b) -> Long.compare(b.blockedSamples, a.blockedSamples));
+        List<String> result = new ArrayList<>();
+        for (LockStats stats : sorted.subList(0, Math.min(limit, sorted.size())))
+            result.add(stats.lock + " 阻塞" + stats.blockedSamples * intervalMillis + "ms 持有者" + stats.owners);
+        return result;
+    }
+
+    public synchronized List<String> deadlocks() {
+        return new ArrayList<>(deadlocks);
+    }
+
+    public synchronized String report() {
+        StringBuilder builder = new StringBuilder("采样次数: ").append(samples).append(", 间隔: ").append(intervalMillis).append("ms\n");
+        builder.append("线程状态耗时(ms):\n");
+        for (Map.Entry<String, Map<Thread.State, Long>> entry : stateTimes().entrySet())
+            builder.append("  ").append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        builder.append("竞争最激烈的锁:\n");
+        for (String lock : topContendedLocks(10))
+            builder.append("  ").append(lock).append('\n');
+        builder.append("死锁:\n");
+        for (String deadlock : deadlocks)
+            builder.append("  ").append(deadlock).append('\n');
+        return builder.toString();
+    }
+
+    /**
+     * 导出折叠格式的调用栈，使用flamegraph.pl生成火焰图
+     */
+    public void writeFoldedStacks(Path file) throws IOException {
+        Map<String, Long> snapshot;
+        synchronized (this) {
+            snapshot = new TreeMap<>(foldedStacks);
+        }
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Long> entry : snapshot.entrySet())
+                writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+        }
+    }
+
+    static class ThreadStats {
+        final String name;
+        final long[] states = new long[Thread.State.values().length];
+
+        ThreadStats(String name) {
+            this.name = name;
+        }
+    }
+
+    static class LockStats {
+        final String lock;
+        long blockedSamples;
+        final Map<String, Long> owners = new HashMap<>();
+
+        LockStats(String lock) {
+            this.lock = lock;
+        }
+    }
+
+    /**
+     * 模拟synchronized竞争、Lock竞争和死锁，观察采样结果
+     */
+    public static void main(String[] args) throws Exception {
+        ThreadStateSampler sampler = new ThreadStateSampler(10);
+        sampler.start();
+
+        Object monitor = new Object();
+        ReentrantLock lock = new ReentrantLock();
+        for (int i = 0; i < 3; i++) {
+            new Thread(() -> {
+                for (int j = 0; j < 20; j++) {
+                    synchronized (monitor) {
+                        sleep(20); // 持有监视器期间其它线程处于BLOCKED状态
+                    }
+                    lock.lock();
+                    try {
+                        sleep(10); // 持有Lock期间其它线程处于WAITING状态
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }, "佳欢" + i).start();
+        }
+
+        Object a = new Object(), b = new Object();
+        startDaemon("deadlock-a", () -> { synchronized (a) { sleep(50); synchronized (b) { } } });
+        startDaemon("deadlock-b", () -> { synchronized (b) { sleep(50); synchronized (a) { } } });
+
+        TimeUnit.SECONDS.sleep(2);
+        sampler.stop();
+        System.out.println(sampler.report());
+        Path folded = Files.createTempFile("stacks", ".folded");
+        sampler.writeFoldedStacks(folded);
+        System.out.println("折叠调用栈: " + folded);
+    }
+
+    private static void startDaemon(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
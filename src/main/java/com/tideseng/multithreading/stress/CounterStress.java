@@ -0,0 +1,79 @@
+package com.tideseng.multithreading.stress;
+
+import com.tideseng.multithreading.safe.ThreadSafe2;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.tideseng.multithreading.stress.Expect.*;
+
+/**
+ * 计数器的压力测试：两个线程各自加1，检查是否丢失更新
+ */
+public class CounterStress {
+
+    /**
+     * 对应ThreadLocalDemo中多个线程共享的count++
+     */
+    static class PlainCounter {
+        int count;
+    }
+
+    static class VolatileCounter {
+        volatile int count;
+    }
+
+    public static List<StressTest<?>> tests() {
+        return Arrays.asList(
+                StressTest.<Object>named("ThreadSafe2.add")
+                        .state(() -> {
+                            StressSuite.setStatic(ThreadSafe2.class, "count", 0);
+                            return new Object();
+                        })
+                        .actor((s, r) -> ThreadSafe2.add())
+                        .actor((s, r) -> ThreadSafe2.add())
+                        .arbiter((s, r) -> String.valueOf(StressSuite.getStatic(ThreadSafe2.class, "count")))
+                        .expect("2", ACCEPTABLE, "")
+                        .expect("1", INTERESTING, "已知的竞争：count++丢失更新")
+                        .batchSize(1)
+                        .maxTrials(2000), // add()中sleep(1)，每次试验至少1ms
+
+                StressTest.<PlainCounter>named("ThreadLocalDemo count++")
+                        .state(PlainCounter::new)
+                        .actor((s, r) -> s.count++)
+                        .actor((s, r) -> s.count++)
+                        .arbiter((s, r) -> String.valueOf(s.count))
+                        .expect("2", ACCEPTABLE, "")
+                        .expect("1", INTERESTING, "已知的竞争：读-改-写不是原子操作"),
+
+                StressTest.<VolatileCounter>named("volatile count++")
+                        .state(VolatileCounter::new)
+                        .actor((s, r) -> s.count++)
+                        .actor((s, r) -> s.count++)
+                        .arbiter((s, r) -> String.valueOf(s.count))
+                        .expect("2", ACCEPTABLE, "")
+                        .expect("1", INTERESTING, "volatile只保证可见性，不保证原子性"),
+
+                StressTest.<AtomicInteger>named("AtomicInteger.incrementAndGet")
+                        .state(AtomicInteger::new)
+                        .actor((s, r) -> r[0] = s.incrementAndGet())
+                        .actor((s, r) -> r[1] = s.incrementAndGet())
+                        .arbiter((s, r) -> s.get() + " (" + r[0] + ", " + r[1] + ")")
+                        .expect("2 (1, 2)", ACCEPTABLE, "actor0先执行")
+                        .expect("2 (2, 1)", ACCEPTABLE, "actor1先执行"),
+
+                StressTest.<LongAdder>named("LongAdder.increment")
+                        .state(LongAdder::new)
+                        .actor((s, r) -> s.increment())
+                        .actor((s, r) -> s.increment())
+                        .arbiter((s, r) -> String.valueOf(s.sum()))
+                        .expect("2", ACCEPTABLE, ""));
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        StressSuite.run(tests(), 1_000_000);
+    }
+
+}
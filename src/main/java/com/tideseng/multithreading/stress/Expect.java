@@ -0,0 +1,23 @@
+package com.tideseng.multithreading.stress;
+
+/**
+ * 压力测试结果的分类
+ */
+public enum Expect {
+
+    /**
+     * 符合预期的结果
+     */
+    ACCEPTABLE,
+
+    /**
+     * 内存模型允许但值得关注的结果，如数据竞争导致的丢失更新、重排序
+     */
+    INTERESTING,
+
+    /**
+     * 不允许出现的结果，出现即说明实现有bug
+     */
+    FORBIDDEN
+
+}
@@ -0,0 +1,97 @@
+package com.tideseng.multithreading.stress;
+
+import com.tideseng.multithreading.interrupt.CancellationToken;
+import com.tideseng.multithreading.juc.AdaptiveSpinLock;
+import com.tideseng.multithreading.pool.CircuitBreaker;
+import com.tideseng.multithreading.pool.RateLimiter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+import static com.tideseng.multithreading.stress.Expect.*;
+
+/**
+ * 锁和同步原语的压力测试：互斥、只允许一个线程通过、回调只执行一次
+ */
+public class LockStress {
+
+    static class Guarded {
+        final Lock lock = new AdaptiveSpinLock();
+        int count; // 由lock保护
+    }
+
+    static class Cancellation {
+        final CancellationToken token = CancellationToken.create();
+        final AtomicInteger calls = new AtomicInteger();
+    }
+
+    public static List<StressTest<?>> tests() {
+        return Arrays.asList(
+                StressTest.<Guarded>named("AdaptiveSpinLock 互斥")
+                        .state(Guarded::new)
+                        .actor((s, r) -> increment(s))
+                        .actor((s, r) -> increment(s))
+                        .arbiter((s, r) -> String.valueOf(s.count))
+                        .expect("2", ACCEPTABLE, "")
+                        .expect("1", FORBIDDEN, "两个线程同时进入临界区"),
+
+                StressTest.<Lock>named("AdaptiveSpinLock.tryLock")
+                        .state(AdaptiveSpinLock::new)
+                        .actor((lock, r) -> r[0] = lock.tryLock() ? 1 : 0)
+                        .actor((lock, r) -> r[1] = lock.tryLock() ? 1 : 0)
+                        .arbiter((lock, r) -> r[0] + ", " + r[1])
+                        .expect("1, 0", ACCEPTABLE, "actor0获取锁")
+                        .expect("0, 1", ACCEPTABLE, "actor1获取锁")
+                        .expect("1, 1", FORBIDDEN, "两个线程同时持有锁")
+                        .expect("0, 0", FORBIDDEN, "锁空闲时获取失败"),
+
+                StressTest.<CircuitBreaker>named("CircuitBreaker 半开探测")
+                        .state(() -> {
+                            CircuitBreaker breaker = new CircuitBreaker(1, 0, TimeUnit.MILLISECONDS);
+                            breaker.onFailure(); // 熔断，熔断时间为0，下一次调用即可探测
+                            return breaker;
+                        })
+                        .actor((breaker, r) -> r[0] = breaker.tryAcquire() ? 1 : 0)
+                        .actor((breaker, r) -> r[1] = breaker.tryAcquire() ? 1 : 0)
+                        .arbiter((breaker, r) -> r[0] + ", " + r[1])
+                        .expect("1, 0", ACCEPTABLE, "actor0探测")
+                        .expect("0, 1", ACCEPTABLE, "actor1探测")
+                        .expect("1, 1", FORBIDDEN, "放行了多个探测请求")
+                        .expect("0, 0", FORBIDDEN, "没有放行探测请求"),
+
+                StressTest.<RateLimiter>named("RateLimiter 突发容量")
+                        .state(() -> RateLimiter.create(1, 1))
+                        .actor((limiter, r) -> r[0] = limiter.tryAcquire() ? 1 : 0)
+                        .actor((limiter, r) -> r[1] = limiter.tryAcquire() ? 1 : 0)
+                        .arbiter((limiter, r) -> r[0] + ", " + r[1])
+                        .expect("1, 0", ACCEPTABLE, "")
+                        .expect("0, 1", ACCEPTABLE, "")
+                        .expect("1, 1", FORBIDDEN, "超过突发容量"),
+
+                StressTest.<Cancellation>named("CancellationToken 注册和取消")
+                        .state(Cancellation::new)
+                        .actor((s, r) -> s.token.onCancel(s.calls::incrementAndGet))
+                        .actor((s, r) -> s.token.cancel())
+                        .arbiter((s, r) -> "回调执行" + s.calls.get() + "次")
+                        .expect("回调执行1次", ACCEPTABLE, "")
+                        .expect("回调执行0次", FORBIDDEN, "回调丢失")
+                        .expect("回调执行2次", FORBIDDEN, "回调重复执行"));
+    }
+
+    private static void increment(Guarded s) {
+        s.lock.lock();
+        try {
+            s.count++;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        StressSuite.run(tests(), 1_000_000);
+    }
+
+}
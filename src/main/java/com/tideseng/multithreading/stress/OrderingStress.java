@@ -0,0 +1,72 @@
+package com.tideseng.multithreading.stress;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.tideseng.multithreading.stress.Expect.*;
+
+/**
+ * 内存顺序的压力测试（Store Buffering）：每个线程先写自己的变量再读对方的变量
+ *      两个线程都读到0说明写操作被重排到读操作之后（Store Buffer导致的StoreLoad重排序），x86上也会出现
+ *      volatile写之后有StoreLoad屏障，不允许出现；lazySet(release)只有StoreStore屏障，仍然允许出现
+ *      用于在改用更弱的内存语义之前确认算法是否依赖StoreLoad顺序
+ */
+public class OrderingStress {
+
+    static class Plain {
+        int x, y;
+    }
+
+    static class Volatile {
+        volatile int x, y;
+    }
+
+    static class Release {
+        final AtomicInteger x = new AtomicInteger(), y = new AtomicInteger();
+    }
+
+    public static List<StressTest<?>> tests() {
+        return Arrays.asList(
+                storeBuffering(StressTest.<Plain>named("Store Buffering: plain").state(Plain::new)
+                        .actor((s, r) -> {
+                            s.x = 1;
+                            r[0] = s.y;
+                        })
+                        .actor((s, r) -> {
+                            s.y = 1;
+                            r[1] = s.x;
+                        }), INTERESTING),
+                storeBuffering(StressTest.<Volatile>named("Store Buffering: volatile").state(Volatile::new)
+                        .actor((s, r) -> {
+                            s.x = 1;
+                            r[0] = s.y;
+                        })
+                        .actor((s, r) -> {
+                            s.y = 1;
+                            r[1] = s.x;
+                        }), FORBIDDEN),
+                storeBuffering(StressTest.<Release>named("Store Buffering: lazySet").state(Release::new)
+                        .actor((s, r) -> {
+                            s.x.lazySet(1);
+                            r[0] = s.y.get();
+                        })
+                        .actor((s, r) -> {
+                            s.y.lazySet(1);
+                            r[1] = s.x.get();
+                        }), INTERESTING));
+    }
+
+    private static <S> StressTest<S> storeBuffering(StressTest<S> test, Expect bothZero) {
+        return test.arbiter((s, r) -> r[0] + ", " + r[1])
+                .expect("0, 1", ACCEPTABLE, "actor0先执行")
+                .expect("1, 0", ACCEPTABLE, "actor1先执行")
+                .expect("1, 1", ACCEPTABLE, "交错执行")
+                .expect("0, 0", bothZero, "StoreLoad重排序");
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        StressSuite.run(tests(), 1_000_000);
+    }
+
+}
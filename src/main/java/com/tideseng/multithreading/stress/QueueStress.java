@@ -0,0 +1,70 @@
+package com.tideseng.multithreading.stress;
+
+import com.tideseng.multithreading.application.PriorityRequestQueue;
+import com.tideseng.multithreading.application.Request;
+import com.tideseng.multithreading.juc.SnapshotMap;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.tideseng.multithreading.stress.Expect.*;
+
+/**
+ * 队列和并发容器的压力测试：并发入队出队不丢失、不重复，批量修改原子可见
+ */
+public class QueueStress {
+
+    public static List<StressTest<?>> tests() {
+        return Arrays.asList(
+                StressTest.<PriorityRequestQueue>named("PriorityRequestQueue 并发入队")
+                        .state(PriorityRequestQueue::new)
+                        .actor((queue, r) -> queue.offer(new Request("bulk", 0, 0)))
+                        .actor((queue, r) -> queue.offer(new Request("urgent", 10, 0)))
+                        .arbiter((queue, r) -> {
+                            StringBuilder order = new StringBuilder();
+                            Request request;
+                            while ((request = queue.poll()) != null) order.append(request.getName()).append(' ');
+                            return order.toString().trim();
+                        })
+                        .expect("urgent bulk", ACCEPTABLE, "高优先级先出队")
+                        .expect("bulk urgent", FORBIDDEN, "优先级失效")
+                        .batchSize(256),
+
+                StressTest.<PriorityRequestQueue>named("PriorityRequestQueue 入队和出队")
+                        .state(PriorityRequestQueue::new)
+                        .actor((queue, r) -> queue.offer(new Request("佳欢")))
+                        .actor((queue, r) -> r[1] = queue.poll() != null ? 1 : 0)
+                        .arbiter((queue, r) -> "poll=" + r[1] + ", 剩余=" + queue.size())
+                        .expect("poll=1, 剩余=0", ACCEPTABLE, "出队时已入队")
+                        .expect("poll=0, 剩余=1", ACCEPTABLE, "出队时还未入队")
+                        .batchSize(256),
+
+                StressTest.<SnapshotMap<String, Integer>>named("SnapshotMap 批量修改")
+                        .state(() -> {
+                            SnapshotMap<String, Integer> map = new SnapshotMap<>();
+                            map.update(tx -> {
+                                tx.put("x", 0);
+                                tx.put("y", 0);
+                            });
+                            return map;
+                        })
+                        .actor((map, r) -> map.update(tx -> {
+                            tx.put("x", 1);
+                            tx.put("y", 1);
+                        }))
+                        .actor((map, r) -> {
+                            SnapshotMap.Snapshot<String, Integer> snapshot = map.snapshot();
+                            r[1] = snapshot.get("x") * 10 + snapshot.get("y");
+                        })
+                        .arbiter((map, r) -> String.format("x=%d, y=%d", r[1] / 10, r[1] % 10))
+                        .expect("x=0, y=0", ACCEPTABLE, "读取旧版本")
+                        .expect("x=1, y=1", ACCEPTABLE, "读取新版本")
+                        .expect("x=1, y=0", FORBIDDEN, "看到一半的修改")
+                        .expect("x=0, y=1", FORBIDDEN, "看到一半的修改"));
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        StressSuite.run(tests(), 1_000_000);
+    }
+
+}
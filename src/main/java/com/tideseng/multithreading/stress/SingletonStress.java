@@ -0,0 +1,128 @@
+package com.tideseng.multithreading.stress;
+
+import com.tideseng.multithreading.safe.ThreadSafe;
+import com.tideseng.multithreading.sync.Lazy;
+import com.tideseng.multithreading.sync.Memoizer;
+import com.tideseng.multithreading.sync.ThreadSync;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static com.tideseng.multithreading.stress.Expect.*;
+
+/**
+ * 单例和懒加载的压力测试：两个线程同时获取实例，检查是否得到同一个实例
+ */
+public class SingletonStress {
+
+    /**
+     * 两个actor获取到的实例
+     */
+    static class Instances {
+        final Object[] seen = new Object[2];
+    }
+
+    static class Data {
+        int x;
+
+        Data() {
+            x = 1;
+        }
+    }
+
+    /**
+     * 不带volatile的发布，对应没有volatile修饰的DCL
+     */
+    static class RacyHolder {
+        Data data;
+    }
+
+    public static List<StressTest<?>> tests() {
+        return Arrays.asList(
+                singleton("ThreadSafe.getInstance", ThreadSafe.class, ThreadSafe::getInstance, INTERESTING),
+                singleton("ThreadSync.getInstanceBySyncBlock", ThreadSync.class, ThreadSync::getInstanceBySyncBlock, FORBIDDEN),
+                singleton("ThreadSync.getInstanceBySyncMethod", ThreadSync.class, ThreadSync::getInstanceBySyncMethod, FORBIDDEN),
+                singleton("ThreadSync.getInstanceBySyncLock", ThreadSync.class, ThreadSync::getInstanceBySyncLock, FORBIDDEN),
+                holder(),
+
+                StressTest.<Lazy<Integer>>named("Lazy.get")
+                        .state(() -> {
+                            AtomicInteger calls = new AtomicInteger();
+                            return Lazy.of(calls::incrementAndGet);
+                        })
+                        .actor((lazy, r) -> r[0] = lazy.get())
+                        .actor((lazy, r) -> r[1] = lazy.get())
+                        .arbiter((lazy, r) -> r[0] + ", " + r[1])
+                        .expect("1, 1", ACCEPTABLE, "初始化只执行一次")
+                        .expect("2, 2", INTERESTING, "初始化执行了两次，但只发布了一个结果（Lazy允许）")
+                        .expect("1, 2", FORBIDDEN, "两个线程得到不同的值")
+                        .expect("2, 1", FORBIDDEN, "两个线程得到不同的值"),
+
+                StressTest.<Memoizer<Integer>>named("Memoizer.get")
+                        .state(() -> {
+                            AtomicInteger calls = new AtomicInteger();
+                            return Memoizer.of(calls::incrementAndGet);
+                        })
+                        .actor((memoizer, r) -> r[0] = memoizer.get())
+                        .actor((memoizer, r) -> r[1] = memoizer.get())
+                        .arbiter((memoizer, r) -> r[0] + ", " + r[1])
+                        .expect("1, 1", ACCEPTABLE, "初始化只执行一次"),
+
+                StressTest.<RacyHolder>named("没有volatile的DCL发布")
+                        .state(RacyHolder::new)
+                        .actor((holder, r) -> holder.data = new Data())
+                        .actor((holder, r) -> {
+                            Data data = holder.data;
+                            r[1] = data == null ? -1 : data.x;
+                        })
+                        .arbiter((holder, r) -> String.valueOf(r[1]))
+                        .expect("-1", ACCEPTABLE, "还未发布")
+                        .expect("1", ACCEPTABLE, "看到完整构造的对象")
+                        .expect("0", INTERESTING, "看到未初始化完成的对象，构造和发布被重排序（x86上很难观察到）"));
+    }
+
+    /**
+     * 每次试验前将单例字段重置为null，批大小为1
+     * @param race 得到不同实例时的分类
+     */
+    private static StressTest<Instances> singleton(String name, Class<?> clazz, Supplier<Object> getInstance, Expect race) {
+        return StressTest.<Instances>named(name)
+                .state(() -> {
+                    StressSuite.setStatic(clazz, "instance", null);
+                    return new Instances();
+                })
+                .actor((s, r) -> s.seen[0] = getInstance.get())
+                .actor((s, r) -> s.seen[1] = getInstance.get())
+                .arbiter((s, r) -> s.seen[0] == s.seen[1] ? "同一个实例" : "不同实例")
+                .expect("同一个实例", ACCEPTABLE, "")
+                .expect("不同实例", race, race == INTERESTING ? "已知的竞争：先检查后执行不是原子操作" : "创建了多个实例")
+                .batchSize(1);
+    }
+
+    /**
+     * Holder与DCL同时获取实例，两者必须返回同一个单例
+     *      Holder类只初始化一次，只有第一次试验是类初始化与DCL之间的竞争，第一次试验前重置instance，使竞争发生在单例创建之前
+     *      之后的试验不能重置instance（Holder已经持有旧的实例），检查两者始终返回同一个单例
+     */
+    private static StressTest<Instances> holder() {
+        AtomicBoolean first = new AtomicBoolean(true);
+        return StressTest.<Instances>named("ThreadSync.getInstanceByHolder")
+                .state(() -> {
+                    if (first.compareAndSet(true, false)) StressSuite.setStatic(ThreadSync.class, "instance", null);
+                    return new Instances();
+                })
+                .actor((s, r) -> s.seen[0] = ThreadSync.getInstanceByHolder())
+                .actor((s, r) -> s.seen[1] = ThreadSync.getInstanceBySyncBlock())
+                .arbiter((s, r) -> s.seen[0] == s.seen[1] ? "同一个实例" : "不同实例")
+                .expect("同一个实例", ACCEPTABLE, "")
+                .expect("不同实例", FORBIDDEN, "Holder与DCL各自创建了单例");
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        StressSuite.run(tests(), 1_000_000);
+    }
+
+}
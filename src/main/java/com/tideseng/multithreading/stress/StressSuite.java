@@ -0,0 +1,68 @@
+package com.tideseng.multithreading.stress;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 运行全部压力测试，出现FORBIDDEN结果时以非0状态码退出，可以在CI中执行
+ *      运行参数为每个测试的试验次数，默认1000000，竞争窗口很小的结果需要上百万次试验才能观察到
+ */
+public class StressSuite {
+
+    public static List<StressTest<?>> tests() {
+        List<StressTest<?>> tests = new ArrayList<>();
+        tests.addAll(SingletonStress.tests());
+        tests.addAll(CounterStress.tests());
+        tests.addAll(QueueStress.tests());
+        tests.addAll(LockStress.tests());
+        tests.addAll(OrderingStress.tests());
+        return tests;
+    }
+
+    /**
+     * 依次运行并打印结果
+     * @return 是否全部通过
+     */
+    public static boolean run(List<StressTest<?>> tests, int trials) throws InterruptedException {
+        int failed = 0;
+        long interesting = 0;
+        for (StressTest<?> test : tests) {
+            StressTest<?>.Result result = test.run(trials);
+            System.out.println(result);
+            if (!result.passed()) failed++;
+            interesting += result.count(Expect.INTERESTING);
+        }
+        System.out.println("测试: " + tests.size() + ", 失败: " + failed + ", INTERESTING结果: " + interesting);
+        return failed == 0;
+    }
+
+    /**
+     * 重置单例等私有静态字段，使每次试验从初始状态开始
+     */
+    static void setStatic(Class<?> clazz, String name, Object value) {
+        try {
+            Field field = clazz.getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(null, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Object getStatic(Class<?> clazz, String name) {
+        try {
+            Field field = clazz.getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int trials = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        if (!run(tests(), trials)) System.exit(1);
+    }
+
+}
@@ -0,0 +1,238 @@
+package com.tideseng.multithreading.stress;
+
+import java.util.*;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * jcstress风格的并发压力测试
+ * 原理：
+ *      每次试验(trial)创建一个新的状态对象，多个actor线程同时对同一个状态执行各自的操作，结果写入结果数组r
+ *      所有actor执行完后由arbiter根据状态和结果数组得出结果字符串，按预先声明的分类统计每种结果出现的次数
+ *      一批(batch)试验共用一次栅栏同步：所有actor线程按相同顺序遍历同一批状态
+ *      每次试验前actor在该试验的计数器上自旋会合，全部到达后才同时执行，不会因为某个线程被延迟而与其它线程错开整批试验
+ *      状态是静态字段（如单例）时批大小只能为1，由state()在每次试验前重置静态字段
+ * 说明：
+ *      数据竞争只在线程真正并行或在竞争窗口内被抢占时出现，未观察到INTERESTING结果不代表没有竞争，试验次数越多越可信
+ *      actor抛出的异常记为"异常: 类名"，未声明的结果默认为FORBIDDEN
+ */
+public class StressTest<S> {
+
+    static final String TIMEOUT = "超时";
+    private static final int SPINS_BEFORE_YIELD = 1 << 10; // 会合时先自旋，单核或线程被抢占时再让出CPU
+
+    private final String name;
+    private Supplier<S> state;
+    private final List<BiConsumer<S, long[]>> actors = new ArrayList<>();
+    private BiFunction<S, long[], String> arbiter;
+    private final Map<String, Expectation> expectations = new LinkedHashMap<>();
+    private Expect otherwise = Expect.FORBIDDEN;
+    private int batchSize = 1024;
+    private int maxTrials = Integer.MAX_VALUE;
+
+    private StressTest(String name) {
+        this.name = name;
+    }
+
+    public static <S> StressTest<S> named(String name) {
+        return new StressTest<>(name);
+    }
+
+    public StressTest<S> state(Supplier<S> state) {
+        this.state = state;
+        return this;
+    }
+
+    /**
+     * 添加一个actor，第i个actor一般只写入r[i]
+     */
+    public StressTest<S> actor(BiConsumer<S, long[]> actor) {
+        actors.add(actor);
+        return this;
+    }
+
+    /**
+     * 所有actor结束后计算结果
+     */
+    public StressTest<S> arbiter(BiFunction<S, long[], String> arbiter) {
+        this.arbiter = arbiter;
+        return this;
+    }
+
+    public StressTest<S> expect(String outcome, Expect expect, String description) {
+        expectations.put(outcome, new Expectation(expect, description));
+        return this;
+    }
+
+    /**
+     * 未声明结果的分类
+     */
+    public StressTest<S> otherwise(Expect expect) {
+        this.otherwise = expect;
+        return this;
+    }
+
+    public StressTest<S> batchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * 单次试验很慢时（如包含sleep）限制试验次数
+     */
+    public StressTest<S> maxTrials(int maxTrials) {
+        this.maxTrials = maxTrials;
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 执行试验
+     * @param trials 试验次数
+     */
+    public Result run(int trials) throws InterruptedException {
+        if (state == null || actors.isEmpty() || arbiter == null) throw new IllegalStateException("Incomplete test: " + name);
+        trials = Math.min(trials, maxTrials);
+        int batch = Math.max(1, Math.min(batchSize, trials));
+        List<S> states = new ArrayList<>(batch);
+        long[][] results = new long[batch][actors.size()];
+        Throwable[] failures = new Throwable[batch];
+        AtomicIntegerArray arrived = new AtomicIntegerArray(batch); // 每次试验已到达的actor数量
+        int[] size = new int[1];
+        boolean[] stop = new boolean[1];
+        CyclicBarrier barrier = new CyclicBarrier(actors.size() + 1);
+
+        List<Thread> threads = new ArrayList<>();
+        for (BiConsumer<S, long[]> actor : actors) {
+            Thread thread = new Thread(() -> {
+                try {
+                    while (true) {
+                        barrier.await(); // 等待一批状态准备完成，栅栏保证能看到runner线程的写入
+                        if (stop[0]) return;
+                        for (int i = 0; i < size[0]; i++) {
+                            rendezvous(arrived, i, actors.size());
+                            try {
+                                actor.accept(states.get(i), results[i]);
+                            } catch (Throwable e) {
+                                failures[i] = e;
+                            }
+                        }
+                        barrier.await(); // 本批执行完成
+                    }
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    // 测试超时或被终止
+                }
+            }, "stress-actor-" + threads.size());
+            thread.setDaemon(true); // 死锁的actor不阻止JVM退出
+            thread.start();
+            threads.add(thread);
+        }
+
+        Map<String, Long> counts = new LinkedHashMap<>();
+        long start = System.nanoTime();
+        try {
+            for (int done = 0; done < trials; done += size[0]) {
+                size[0] = Math.min(batch, trials - done);
+                states.clear();
+                for (int i = 0; i < size[0]; i++) {
+                    states.add(state.get());
+                    Arrays.fill(results[i], 0);
+                    failures[i] = null;
+                    arrived.set(i, 0);
+                }
+                barrier.await(10, TimeUnit.SECONDS);
+                barrier.await(10, TimeUnit.SECONDS);
+                for (int i = 0; i < size[0]; i++) {
+                    String outcome = failures[i] != null ? "异常: " + failures[i].getClass().getName() : arbiter.apply(states.get(i), results[i]);
+                    counts.merge(outcome, 1L, Long::sum);
+                }
+            }
+            stop[0] = true;
+            barrier.await(10, TimeUnit.SECONDS);
+        } catch (TimeoutException | BrokenBarrierException e) {
+            counts.merge(TIMEOUT, 1L, Long::sum); // actor死锁或活锁
+            for (Thread thread : threads) thread.interrupt();
+        }
+        return new Result(counts, System.nanoTime() - start);
+    }
+
+    /**
+     * 等待所有actor到达第i次试验
+     */
+    private static void rendezvous(AtomicIntegerArray arrived, int i, int parties) throws InterruptedException {
+        arrived.incrementAndGet(i);
+        for (int spins = 0; arrived.get(i) < parties; spins++) {
+            if (spins >= SPINS_BEFORE_YIELD) {
+                Thread.yield();
+                if (Thread.interrupted()) throw new InterruptedException(); // 其它actor死锁，测试超时
+            }
+        }
+    }
+
+    Expectation classify(String outcome) {
+        if (TIMEOUT.equals(outcome)) return new Expectation(Expect.FORBIDDEN, "actor死锁或活锁");
+        Expectation expectation = expectations.get(outcome);
+        return expectation != null ? expectation : new Expectation(otherwise, "未声明的结果");
+    }
+
+    static class Expectation {
+        final Expect expect;
+        final String description;
+
+        Expectation(Expect expect, String description) {
+            this.expect = expect;
+            this.description = description;
+        }
+    }
+
+    /**
+     * 一次运行的统计结果
+     */
+    public class Result {
+        private final Map<String, Long> counts;
+        private final long elapsedNanos;
+
+        Result(Map<String, Long> counts, long elapsedNanos) {
+            this.counts = counts;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public Map<String, Long> getCounts() {
+            return counts;
+        }
+
+        public long count(Expect expect) {
+            long count = 0;
+            for (Map.Entry<String, Long> entry : counts.entrySet()) {
+                if (classify(entry.getKey()).expect == expect) count += entry.getValue();
+            }
+            return count;
+        }
+
+        public boolean passed() {
+            return count(Expect.FORBIDDEN) == 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(passed() ? "[通过] " : "[失败] ").append(name)
+                    .append(" (").append(TimeUnit.NANOSECONDS.toMillis(elapsedNanos)).append("ms)\n");
+            for (Map.Entry<String, Long> entry : counts.entrySet()) {
+                Expectation expectation = classify(entry.getKey());
+                builder.append(String.format("    %-24s %10d  %-11s %s%n", entry.getKey(), entry.getValue(), expectation.expect, expectation.description));
+            }
+            return builder.toString();
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.tideseng.multithreading.sync;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Supplier;
+
+/**
+ * 无锁的懒加载值
+ * 原理：
+ *      value被volatile修饰，volatile读具有acquire语义、CAS写具有release语义，读到非空值时一定能看到对象初始化后的字段
+ *      多个线程同时首次访问时都会执行supplier，但只有CAS成功的结果会被发布，其余线程丢弃自己的结果并返回已发布的值
+ *      适用于supplier无副作用且计算代价不高的场景（需要严格只初始化一次时使用Memoizer）
+ * 说明：
+ *      项目编译目标为JDK8，没有VarHandle，这里使用AtomicReferenceFieldUpdater实现相同的CAS语义
+ *      在x86平台上volatile读与普通读的指令相同，初始化完成后的读取只有一次内存加载
+ */
+public final class Lazy<T> implements Supplier<T> {
+
+    @SuppressWarnings("rawtypes") // 字段更新器只能按原始类型创建
+    private static final AtomicReferenceFieldUpdater<Lazy, Object> VALUE =
+            AtomicReferenceFieldUpdater.newUpdater(Lazy.class, Object.class, "value");
+
+    private final Supplier<? extends T> supplier;
+    private volatile Object value;
+
+    private Lazy(Supplier<? extends T> supplier) {
+        this.supplier = supplier;
+    }
+
+    public static <T> Lazy<T> of(Supplier<? extends T> supplier) {
+        if (supplier == null) throw new NullPointerException();
+        return new Lazy<>(supplier);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get() {
+        Object current = value; // 快速路径：一次volatile读
+        if (current != null) return (T) current;
+        T created = supplier.get();
+        if (created == null) throw new NullPointerException("Lazy supplier returned null");
+        return VALUE.compareAndSet(this, null, created) ? created : (T) value;
+    }
+
+    public boolean isInitialized() {
+        return value != null;
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.tideseng.multithreading.sync;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * 按key管理的懒加载单例注册表，适用于创建代价较高的对象（如连接池、客户端）
+ * 原理：
+ *      每个key对应一个Memoizer，通过putIfAbsent保证同一个key只会注册一个Memoizer
+ *      同一个key的并发首次访问只有一个线程执行初始化，其它线程阻塞在该key的Memoizer上，不影响其它key
+ *      没有使用computeIfAbsent，因为它会在持有桶锁的情况下执行初始化，耗时的初始化会阻塞同一个桶中的其它key
+ *      初始化完成后的读取为ConcurrentHashMap的无锁get加一次volatile读
+ *      初始化失败时不缓存异常，下一次访问会重新初始化
+ */
+public class LazyRegistry<K, V> {
+
+    private final ConcurrentMap<K, Memoizer<V>> registry = new ConcurrentHashMap<>();
+    private final Function<? super K, ? extends V> factory;
+
+    public LazyRegistry(Function<? super K, ? extends V> factory) {
+        this.factory = factory;
+    }
+
+    public V get(K key) {
+        Memoizer<V> memoizer = registry.get(key); // 快速路径
+        if (memoizer == null) {
+            Memoizer<V> created = Memoizer.of(() -> factory.apply(key));
+            memoizer = registry.putIfAbsent(key, created);
+            if (memoizer == null) memoizer = created;
+        }
+        return memoizer.get();
+    }
+
+    public boolean isInitialized(K key) {
+        Memoizer<V> memoizer = registry.get(key);
+        return memoizer != null && memoizer.isInitialized();
+    }
+
+    /**
+     * 移除单例，下一次访问会重新初始化
+     */
+    public void invalidate(K key) {
+        registry.remove(key);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        AtomicInteger created = new AtomicInteger();
+        LazyRegistry<String, String> clients = new LazyRegistry<>(key -> {
+            created.incrementAndGet();
+            try {
+                TimeUnit.MILLISECONDS.sleep(100); // 模拟耗时的初始化
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return key + "-client";
+        });
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            String key = i % 2 == 0 ? "redis" : "mysql";
+            threads[i] = new Thread(() -> System.out.println(Thread.currentThread().getName() + ": " + clients.get(key)));
+            threads[i].start();
+        }
+        for (Thread thread : threads) thread.join();
+        System.out.println("初始化次数: " + created.get()); // 2
+
+        AtomicInteger attempts = new AtomicInteger();
+        Memoizer<String> memoizer = Memoizer.of(() -> {
+            if (attempts.incrementAndGet() == 1) throw new IllegalStateException("第一次初始化失败");
+            return "佳欢";
+        });
+        try {
+            memoizer.get();
+        } catch (IllegalStateException e) {
+            System.out.println(e.getMessage());
+        }
+        System.out.println(memoizer.get() + ", 尝试次数: " + attempts.get()); // 失败后重试成功
+        System.out.println(Lazy.of(() -> "佳欢").get());
+    }
+
+}
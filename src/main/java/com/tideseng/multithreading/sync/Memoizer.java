@@ -0,0 +1,47 @@
+package com.tideseng.multithreading.sync;
+
+import java.util.function.Supplier;
+
+/**
+ * 只初始化一次的懒加载值（失败可重试）
+ * 原理：
+ *      基于volatile的双重检查锁，初始化完成后的读取只有一次volatile读，不会再获取锁
+ *      supplier抛出异常时不会缓存失败结果，异常直接抛给调用方，下一次调用会重新执行初始化
+ *      初始化完成后释放supplier的引用，避免其捕获的对象无法被GC回收
+ */
+public final class Memoizer<T> implements Supplier<T> {
+
+    private volatile Supplier<? extends T> supplier;
+    private volatile boolean initialized;
+    private T value; // 由initialized的volatile写/读保证可见性
+
+    private Memoizer(Supplier<? extends T> supplier) {
+        this.supplier = supplier;
+    }
+
+    public static <T> Memoizer<T> of(Supplier<? extends T> supplier) {
+        if (supplier == null) throw new NullPointerException();
+        return new Memoizer<>(supplier);
+    }
+
+    @Override
+    public T get() {
+        if (!initialized) { // 外层判断，初始化完成后不再加锁
+            synchronized (this) {
+                if (!initialized) {
+                    T created = supplier.get(); // 抛出异常时initialized仍为false，下次调用会重试
+                    value = created;
+                    initialized = true; // volatile写，保证value的写入对其它线程可见
+                    supplier = null;
+                    return created;
+                }
+            }
+        }
+        return value;
+    }
+
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+}
@@ -82,10 +82,15 @@ import java.util.concurrent.locks.ReentrantLock;
  * 说明：
  *      JDK1.6之前，基于重量级锁(synchronized)来实现
  *      JDK1.6中为了减少获得锁和释放锁带来的性能消耗而引入的偏向锁和轻量级锁
+ * 双重检查锁(DCL)：
+ *      instance = new ThreadSync()分为分配内存、初始化对象、将引用赋值给instance三步，后两步可能被重排序
+ *      如果instance没有被volatile修饰，其它线程在外层判断中可能读到一个未初始化完成的对象
+ *      volatile写禁止了与之前的初始化操作重排序（release），volatile读保证能看到初始化后的字段（acquire）
+ *      通用的懒加载工具见Lazy、Memoizer、LazyRegistry
  */
 public class ThreadSync {
 
-    private static ThreadSync instance;
+    private static volatile ThreadSync instance; // volatile禁止指令重排序，保证DCL的正确性
 
     private static Lock lock = new ReentrantLock();
 
@@ -106,6 +111,7 @@ public class ThreadSync {
 
     /**
      * 同步方法（静态方法的锁对象是类的class对象、非静态方法的锁对象是类的实例对象）
+     * 实例创建后每次调用仍然要获取锁，高并发下会成为瓶颈
      * @return
      */
     public synchronized static ThreadSync getInstanceBySyncMethod() {
@@ -121,13 +127,31 @@ public class ThreadSync {
     public static ThreadSync getInstanceBySyncLock() {
         if (instance == null) {
             lock.lock(); // 加同步锁
-            if (instance == null)
-                instance = new ThreadSync();
-            lock.unlock(); // 释放同步锁
+            try {
+                if (instance == null)
+                    instance = new ThreadSync();
+            } finally {
+                lock.unlock(); // 释放同步锁，放在finally中保证构造方法抛出异常时也能释放
+            }
         }
         return instance;
     }
 
+    /**
+     * 静态内部类（Holder模式），利用类初始化的线程安全性实现懒加载
+     *      Holder类在第一次调用getInstanceByHolder()时才会被加载和初始化，JVM保证类初始化只执行一次
+     *      初始化完成后的每次调用只是一次普通的静态字段读取，不需要加锁也不需要volatile
+     *      Holder初始化时复用instance字段中的实例，与其它三种方式返回同一个单例
+     * @return
+     */
+    public static ThreadSync getInstanceByHolder() {
+        return Holder.INSTANCE;
+    }
+
+    private static class Holder {
+        private static final ThreadSync INSTANCE = getInstanceBySyncBlock();
+    }
+
     public static void main(String[] args) {
         for (int i = 0; i < 5; i++) {
             new Thread(() -> {
@@ -0,0 +1,124 @@
+package com.tideseng.multithreading.application;
+
+import com.tideseng.multithreading.juc.BackingStore;
+import com.tideseng.multithreading.juc.FileBackingStore;
+import com.tideseng.multithreading.pool.CircuitBreaker;
+import com.tideseng.multithreading.pool.HierarchicalTimingWheel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IdempotentSaveProcessorTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("idempotent-save");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * 写入失败的请求重试时不能被当作重复请求，否则请求以成功完成、偏移量被确认，但存储中没有这个请求
+     */
+    @Test
+    public void retryAfterFailedWriteIsSaved() throws Exception {
+        Path file = dir.resolve("store.bin");
+        Path tmp = dir.resolve("store.bin.tmp");
+        Files.createDirectory(tmp); // 临时文件无法写入
+        IdempotentSaveProcessor save = new IdempotentSaveProcessor(new FileBackingStore<>(file, 0), 100);
+        save.restore(null, "SaveProcessor", 1000); // 请求位置在recoverUntil之前，布隆过滤器未命中时也查询存储
+
+        Request request = new Request(0, "佳欢", 0, 0, null, 10);
+        save.process(request);
+        save.shutdown(); // 写出未满的批次
+        try {
+            request.getFuture().get(1, TimeUnit.SECONDS);
+            fail("写入失败的请求应该以异常完成");
+        } catch (ExecutionException expected) {
+        }
+
+        Files.delete(tmp);
+        Request retry = request.copy();
+        save.process(retry);
+        save.shutdown();
+        assertEquals("IdempotentSaveProcessor", retry.getFuture().get(1, TimeUnit.SECONDS).getProcessor());
+        assertEquals(1, save.getSavedCount());
+        assertEquals(0, save.getDuplicateCount());
+        assertEquals(1, new FileBackingStore<Long, String>(file, 0).size());
+        assertTrue(new FileBackingStore<Long, String>(file, 0).contains(request.getId()));
+    }
+
+    /**
+     * 保存总是失败的毒请求重试耗尽进入死信后，source和SaveProcessor的偏移量都越过它，之后的检查点不会停在这里
+     */
+    @Test
+    public void deadLetteredRequestDoesNotPinWatermark() throws Exception {
+        Request poison = new Request(0, "毒请求", 0, 0, null, 10);
+        Map<Long, String> stored = new ConcurrentHashMap<>();
+        IdempotentSaveProcessor save = new IdempotentSaveProcessor(new BackingStore<Long, String>() {
+            @Override
+            public String load(Long key) {
+                return stored.get(key);
+            }
+
+            @Override
+            public void storeAll(Map<Long, String> entries) throws IOException {
+                if (entries.containsKey(poison.getId())) throw new IOException("Constraint violation");
+                stored.putAll(entries);
+            }
+        }, 1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        HierarchicalTimingWheel timer = new HierarchicalTimingWheel(1, TimeUnit.MILLISECONDS, executor);
+        try {
+            FaultTolerantProcessor processor = new FaultTolerantProcessor(save, new CircuitBreaker(100, 1, TimeUnit.SECONDS),
+                    new DeadLetterStore(10), timer, 3, 1, 2, TimeUnit.MILLISECONDS);
+            OffsetTracker source = new OffsetTracker(10);
+            Request next = new Request(0, "佳欢", 0, 0, null, 20);
+            source.track(poison);
+            source.track(next);
+            processor.process(poison);
+            processor.process(next);
+            try {
+                poison.getFuture().get(5, TimeUnit.SECONDS);
+                fail("毒请求应该以异常完成");
+            } catch (ExecutionException expected) {
+            }
+            next.getFuture().get(5, TimeUnit.SECONDS);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (source.getWatermark() != 21 && System.nanoTime() < deadline) Thread.sleep(1); // 确认由完成请求的线程回调
+
+            assertTrue(poison.isAbandoned());
+            assertEquals(21, source.getWatermark());
+            assertEquals(21, save.snapshot(new DataOutputStream(new ByteArrayOutputStream())));
+        } finally {
+            timer.stop();
+            executor.shutdown();
+        }
+    }
+
+}